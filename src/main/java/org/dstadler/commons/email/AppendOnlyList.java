@@ -0,0 +1,183 @@
+package org.dstadler.commons.email;
+
+import java.time.Duration;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A list which only supports appending elements, without any locking.
+ *
+ * Each element gets a sequence number, starting at 0, which is its index in the list. Writers
+ * claim a sequence number and fill the slot afterwards, so concurrent appends do not wait for
+ * each other. An element becomes visible to readers once all elements with lower sequence
+ * numbers are visible as well, so readers always see a gap-free prefix of the list.
+ *
+ * Elements are kept in chunks which double in size, so appending never copies elements and
+ * a snapshot is only a view of the visible prefix, i.e. it is created without copying.
+ *
+ * @param <T> The type of elements
+ */
+final class AppendOnlyList<T> {
+	// the first chunk has 2^FIRST_CHUNK_BITS elements, each following chunk is twice as large
+	private static final int FIRST_CHUNK_BITS = 5;
+	private static final int CHUNKS = Integer.SIZE - FIRST_CHUNK_BITS;
+
+	// the last chunk which can be allocated covers the positions up to Integer.MAX_VALUE
+	private static final int MAX_SIZE = Integer.MAX_VALUE - (1 << FIRST_CHUNK_BITS) + 1;
+
+	private final AtomicReferenceArray<AtomicReferenceArray<T>> chunks = new AtomicReferenceArray<>(CHUNKS);
+
+	// the next sequence number which is handed out to a writer
+	private final AtomicInteger claimed = new AtomicInteger();
+
+	// the number of elements which are visible to readers, all slots below are filled
+	private final AtomicInteger published = new AtomicInteger();
+
+	/**
+	 * Append an element, can be called concurrently by multiple threads.
+	 *
+	 * @param element The element to add, not null
+	 * @return The sequence number of the element
+	 */
+	int append(T element) {
+		Validate.notNull(element, "Cannot append null");
+
+		// everything which can fail is done before the sequence number is claimed, a claimed
+		// slot which is never filled would block publishing all following elements
+		int sequence;
+		AtomicReferenceArray<T> chunk;
+		do {
+			sequence = claimed.get();
+			Validate.isTrue(sequence < MAX_SIZE, "Cannot store more than %s elements", MAX_SIZE);
+			chunk = chunk(sequence, true);
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+		chunk.set(offset(sequence), element);
+
+		// publish the filled slots, a writer which finds the lowest unpublished slot still empty leaves
+		// the publishing to the writer of that slot, which continues after filling it
+		int current;
+		while ((current = published.get()) < claimed.get() && isFilled(current)) {
+			published.compareAndSet(current, current + 1);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Wait until the element with the given sequence number is visible to readers.
+	 *
+	 * {@link #append(Object)} returns when the element is stored, but it only becomes visible when
+	 * the writers of all lower sequence numbers filled their slots as well. Those writers are
+	 * between claiming and filling their slot, so this usually only spins very briefly.
+	 *
+	 * @param sequence The sequence number which was returned by {@link #append(Object)}
+	 * @param timeout The maximum time to wait
+	 * @return true if the element is visible, false if it was not visible within the timeout
+	 */
+	boolean awaitVisible(int sequence, Duration timeout) {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		for (int spins = 0; size() <= sequence; spins++) {
+			if (spins < 100) {
+				Thread.onSpinWait();
+			} else if (System.nanoTime() - deadline >= 0) {
+				return false;
+			} else {
+				// the other writer may have been descheduled
+				Thread.yield();
+			}
+		}
+		return true;
+	}
+
+	private boolean isFilled(int sequence) {
+		AtomicReferenceArray<T> chunk = chunk(sequence, false);
+		return chunk != null && chunk.get(offset(sequence)) != null;
+	}
+
+	private AtomicReferenceArray<T> chunk(int sequence, boolean create) {
+		int index = chunkIndex(sequence);
+		AtomicReferenceArray<T> chunk = chunks.get(index);
+		if (chunk == null && create) {
+			chunks.compareAndSet(index, null, new AtomicReferenceArray<>(1 << (index + FIRST_CHUNK_BITS)));
+			chunk = chunks.get(index);
+		}
+		return chunk;
+	}
+
+	private static int chunkIndex(int sequence) {
+		// the chunk k covers the positions 2^(k+FIRST_CHUNK_BITS) to 2^(k+FIRST_CHUNK_BITS+1)-1
+		long position = (long) sequence + (1 << FIRST_CHUNK_BITS);
+		return Long.SIZE - 1 - Long.numberOfLeadingZeros(position) - FIRST_CHUNK_BITS;
+	}
+
+	private static int offset(int sequence) {
+		long position = (long) sequence + (1 << FIRST_CHUNK_BITS);
+		return (int) (position - Long.highestOneBit(position));
+	}
+
+	/**
+	 * @return The number of visible elements, which is also the sequence number of the next visible element.
+	 */
+	int size() {
+		return published.get();
+	}
+
+	/**
+	 * @param sequence The sequence number of the element
+	 * @return The element
+	 * @throws IndexOutOfBoundsException If the element is not visible yet
+	 */
+	T get(int sequence) {
+		int size = size();
+		if (sequence < 0 || sequence >= size) {
+			throw new IndexOutOfBoundsException("Sequence " + sequence + " is not available, size is " + size);
+		}
+		return chunk(sequence, false).get(offset(sequence));
+	}
+
+	/**
+	 * @return An unmodifiable view of all elements which are visible now, elements which are added
+	 * 		later are not included. The view is safe to use while elements are appended.
+	 */
+	List<T> snapshot() {
+		return since(0);
+	}
+
+	/**
+	 * @param sequence The sequence number of the first element to include
+	 * @return An unmodifiable view of the elements from the given sequence number up to the
+	 * 		last one which is visible now, empty if there are none.
+	 */
+	List<T> since(int sequence) {
+		Validate.isTrue(sequence >= 0, "Sequence cannot be negative, but had: %s", sequence);
+		return new Snapshot(sequence, Math.max(sequence, size()));
+	}
+
+	private final class Snapshot extends AbstractList<T> implements RandomAccess {
+		private final int from;
+		private final int to;
+
+		private Snapshot(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public T get(int index) {
+			if (index < 0 || index >= to - from) {
+				throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for size " + (to - from));
+			}
+			int sequence = from + index;
+			return chunk(sequence, false).get(offset(sequence));
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+	}
+}
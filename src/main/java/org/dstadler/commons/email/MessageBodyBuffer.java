@@ -0,0 +1,167 @@
+package org.dstadler.commons.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Collects the body of the messages of one SMTP session as bytes.
+ *
+ * Bodies are kept in memory until they exceed the threshold, afterwards they are written
+ * to the spool-file of the session. The file is only appended to, the messages keep the
+ * region of their body, see {@link StoredSmtpMessage#setSpilledBody(Path, long, long)}.
+ *
+ * Bodies can be at most {@link #MAX_BODY_SIZE} bytes, as they are read via a single mapping
+ * of the file. The rest of a larger body is not stored, see {@link #isTooLarge()}.
+ */
+final class MessageBodyBuffer implements Closeable {
+	/**
+	 * The maximum number of bytes of a body.
+	 */
+	static final long MAX_BODY_SIZE = Integer.MAX_VALUE;
+
+	// size of the writes to the spool-file once a body was spilled
+	private static final int WRITE_SIZE = 64 * 1024;
+
+	private final Path file;
+	private final int threshold;
+	private final long maxBodySize;
+
+	// re-used for all bodies of the session
+	private byte[] memory = new byte[1024];
+	private int memoryLength;
+
+	private FileChannel channel;
+	private long size;
+
+	// the position of the current body in the file, -1 while it is kept in memory
+	private long start = -1;
+
+	// the number of bytes of the current body, including the ones which are not stored because it is too large
+	private long bodyLength;
+
+	/**
+	 * @param file The spool-file, it is only created if a body exceeds the threshold. Null to
+	 *             keep all bodies in memory.
+	 * @param threshold The number of bytes of a body up to which it is kept in memory
+	 */
+	MessageBodyBuffer(Path file, int threshold) {
+		this(file, threshold, MAX_BODY_SIZE);
+	}
+
+	/**
+	 * @param maxBodySize The number of bytes up to which a body is stored, at most {@link #MAX_BODY_SIZE}
+	 */
+	MessageBodyBuffer(Path file, int threshold, long maxBodySize) {
+		this.file = file;
+		this.threshold = threshold;
+		this.maxBodySize = Math.min(maxBodySize, MAX_BODY_SIZE);
+	}
+
+	/**
+	 * Append the bytes between the given absolute positions of the buffer, the position of the buffer is not changed.
+	 */
+	void append(ByteBuffer buffer, int from, int to) throws IOException {
+		int length = to - from;
+		if (exceedsMaximum(length)) {
+			return;
+		}
+		if (memoryLength + length > memory.length) {
+			memory = Arrays.copyOf(memory, Math.max(memory.length * 2, memoryLength + length));
+		}
+		buffer.get(from, memory, memoryLength, length);
+		memoryLength += length;
+		if (file != null && memoryLength > (start == -1 ? threshold : WRITE_SIZE)) {
+			spill();
+		}
+	}
+
+	void append(byte b) throws IOException {
+		if (exceedsMaximum(1)) {
+			return;
+		}
+		if (memoryLength == memory.length) {
+			memory = Arrays.copyOf(memory, memory.length * 2);
+		}
+		memory[memoryLength++] = b;
+		if (file != null && memoryLength > (start == -1 ? threshold : WRITE_SIZE)) {
+			spill();
+		}
+	}
+
+	private boolean exceedsMaximum(int length) {
+		bodyLength += length;
+		if (bodyLength <= maxBodySize) {
+			return false;
+		}
+
+		// the body cannot be stored, release what was collected so far
+		start = -1;
+		memoryLength = 0;
+		return true;
+	}
+
+	/**
+	 * @return true if the current body exceeded the maximum size, it cannot be completed then.
+	 */
+	boolean isTooLarge() {
+		return bodyLength > maxBodySize;
+	}
+
+	private void spill() throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		if (start == -1) {
+			start = size;
+		}
+
+		ByteBuffer bytes = ByteBuffer.wrap(memory, 0, memoryLength);
+		while (bytes.hasRemaining()) {
+			size += channel.write(bytes);
+		}
+		memoryLength = 0;
+	}
+
+	/**
+	 * Set the collected body to the message and start a new, empty body.
+	 *
+	 * @throws IllegalStateException If the body is too large, see {@link #isTooLarge()}
+	 */
+	void complete(StoredSmtpMessage message) throws IOException {
+		if (isTooLarge()) {
+			throw new IllegalStateException("Body of " + bodyLength + " bytes exceeds the maximum of " + maxBodySize + " bytes");
+		}
+
+		if (start == -1) {
+			message.setBody(Arrays.copyOf(memory, memoryLength));
+		} else {
+			spill();
+			message.setSpilledBody(file, start, size - start);
+			start = -1;
+		}
+		memoryLength = 0;
+		bodyLength = 0;
+	}
+
+	/**
+	 * Drop the collected body, e.g. when the transaction is aborted.
+	 */
+	void discard() {
+		// a part which was already spilled stays unused in the file
+		start = -1;
+		memoryLength = 0;
+		bodyLength = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.dstadler.commons.email;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.Validate;
+
+import com.dumbster.smtp.SmtpMessage;
+
+/**
+ * Indexes received messages by envelope sender, envelope recipients and a configured set of
+ * headers, so tests can look up the messages for one key with a hash lookup instead of
+ * scanning all messages.
+ *
+ * Addresses and header names are matched case-insensitively, header values exactly, but
+ * without leading and trailing whitespace. Messages are added concurrently by the sessions,
+ * each lookup returns the messages in the order in which they were received, i.e. by their
+ * sequence number. A message is found at most once per lookup, also if e.g. the same
+ * recipient was given multiple times.
+ */
+final class MessageIndex {
+	/**
+	 * The headers which are indexed by default.
+	 */
+	static final Set<String> DEFAULT_HEADERS = Set.of("Subject", "Message-ID");
+
+	// header names cannot contain a colon, so these do not clash with indexed headers
+	private static final String SENDER = ":sender";
+	private static final String RECIPIENT = ":recipient";
+
+	private record Key(String field, String value) {
+	}
+
+	// the lists only contain instances of StoredSmtpMessage
+	private static final Comparator<SmtpMessage> BY_SEQUENCE =
+			Comparator.comparingInt(message -> ((StoredSmtpMessage) message).getSequence());
+
+	// lower-case names of the indexed headers
+	private final Set<String> headers;
+	private final String[] headerNames;
+
+	private final ConcurrentHashMap<Key, Queue<StoredSmtpMessage>> messages = new ConcurrentHashMap<>();
+
+	/**
+	 * @param headers The names of the headers to index
+	 */
+	MessageIndex(Collection<String> headers) {
+		this.headers = headers.stream()
+				.map(header -> header.toLowerCase(Locale.ROOT))
+				.collect(Collectors.toUnmodifiableSet());
+		this.headerNames = this.headers.toArray(new String[0]);
+	}
+
+	/**
+	 * @param message A message which already has its sequence number
+	 */
+	void add(StoredSmtpMessage message) {
+		// e.g. a recipient which was given twice only adds the message once
+		Set<Key> keys = new HashSet<>();
+		if (message.getEnvelopeSender() != null) {
+			keys.add(new Key(SENDER, normalizeAddress(message.getEnvelopeSender())));
+		}
+		for (String recipient : message.getEnvelopeRecipients()) {
+			keys.add(new Key(RECIPIENT, normalizeAddress(recipient)));
+		}
+
+		// only decodes the indexed headers, the others stay bytes until the message is inspected
+		if (headerNames.length > 0) {
+			message.forEachHeader(headerNames, (field, value) -> keys.add(new Key(field, value)));
+		}
+
+		for (Key key : keys) {
+			messages.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>()).add(message);
+		}
+	}
+
+	List<SmtpMessage> getBySender(String sender) {
+		return get(new Key(SENDER, normalizeAddress(sender)));
+	}
+
+	List<SmtpMessage> getByRecipient(String recipient) {
+		return get(new Key(RECIPIENT, normalizeAddress(recipient)));
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the header is not indexed
+	 */
+	List<SmtpMessage> getByHeader(String name, String value) {
+		String field = name.toLowerCase(Locale.ROOT);
+		Validate.isTrue(headers.contains(field), "Header %s is not indexed, indexed headers are: %s", name, headers);
+		return get(new Key(field, value.trim()));
+	}
+
+	private List<SmtpMessage> get(Key key) {
+		Queue<StoredSmtpMessage> found = messages.get(key);
+		if (found == null) {
+			return List.of();
+		}
+
+		// concurrent sessions may index their messages in a different order than they were received
+		List<SmtpMessage> sorted = new ArrayList<>(found);
+		sorted.sort(BY_SEQUENCE);
+		return sorted;
+	}
+
+	private static String normalizeAddress(String address) {
+		return address.trim().toLowerCase(Locale.ROOT);
+	}
+}
@@ -1,11 +1,21 @@
 package org.dstadler.commons.email;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import org.dstadler.commons.net.SocketUtils;
+import org.dstadler.commons.testing.TestEnvironment;
 
 import com.dumbster.smtp.SmtpMessage;
 
@@ -21,7 +31,7 @@ import com.dumbster.smtp.SmtpMessage;
 
  ... send email, use server.getPort() to retrieve the automatically chosen SMTP port  ...
 
- assertEquals(expectedcount, server.getMessageCount());
+ assertTrue(server.awaitMessages(expectedcount, Duration.ofSeconds(10)));
 
  Iterator iterator = server.getMessages();
 
@@ -41,6 +51,12 @@ public class MockSMTPServer implements AutoCloseable {
 
 	private int port = -1;
 
+	// bodies with more bytes are stored in files, negative to keep all bodies in memory
+	private int spillThreshold = -1;
+
+	// headers which can be queried via getMessagesWithHeader()
+	private final Set<String> indexedHeaders = new LinkedHashSet<>(MessageIndex.DEFAULT_HEADERS);
+
 	/**
 	 * Start the server, port is chosen automatically in the range of {@value #PORT_RANGE_START} and
 	 * {@value #PORT_RANGE_END}.
@@ -51,7 +67,50 @@ public class MockSMTPServer implements AutoCloseable {
 		// try to automatically retrieve a port
 		port = SocketUtils.getNextFreePort(PORT_RANGE_START, PORT_RANGE_END);
 
-		server = SafeCloseSmtpServer.start(port);
+		Path spoolDirectory = null;
+		if (spillThreshold >= 0) {
+			// a new directory for each start, messages of previous runs may still be read
+			Path runtimeData = Files.createDirectories(Path.of(TestEnvironment.ABS_RUNTIME_DATA_PATH));
+			spoolDirectory = Files.createTempDirectory(runtimeData, "MockSMTPServer-" + port + "-");
+		}
+
+		try {
+			server = SafeCloseSmtpServer.start(port, spoolDirectory, spillThreshold < 0 ? Integer.MAX_VALUE : spillThreshold, indexedHeaders);
+		} catch (UncheckedIOException e) {
+			port = -1;
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Store the body of large messages in files instead of in memory, so load-tests which send
+	 * many large emails do not fill the heap.
+	 *
+	 * Bodies with more bytes than the threshold are written to append-only files in a
+	 * directory below {@link TestEnvironment#ABS_RUNTIME_DATA_PATH} and read back through a
+	 * memory-mapped view when a message is requested, only headers and the position of the body
+	 * are kept in memory. The files are not removed when the server is stopped, use
+	 * {@link TestEnvironment#clearRuntimeData()} to remove them.
+	 *
+	 * Needs to be called before {@link #start()}.
+	 *
+	 * @param threshold The number of bytes up to which a body is kept in memory, a negative
+	 *                  value keeps all bodies in memory, which is the default.
+	 */
+	public void setSpillThreshold(int threshold) {
+		this.spillThreshold = threshold;
+	}
+
+	/**
+	 * Index the given headers in addition to "Subject" and "Message-ID", so messages can be
+	 * looked up by them via {@link #getMessagesWithHeader(String, String)}.
+	 *
+	 * Needs to be called before {@link #start()}.
+	 *
+	 * @param headers The names of the headers, compared case-insensitively
+	 */
+	public void indexHeaders(String... headers) {
+		Collections.addAll(indexedHeaders, headers);
 	}
 
 	/**
@@ -67,9 +126,18 @@ public class MockSMTPServer implements AutoCloseable {
 	 * Stops the server from accepting emails.
 	 */
 	public void stop() {
+		stopAsync().join();
+	}
+
+	/**
+	 * Stops the server from accepting emails without waiting for running sessions to finish.
+	 *
+	 * @return A future which completes when all sessions of the server have finished.
+	 */
+	public CompletableFuture<Void> stopAsync() {
 		port = -1;
 
-		server.stop();
+		return server.stopAsync();
 	}
 
 	/**
@@ -118,6 +186,91 @@ public class MockSMTPServer implements AutoCloseable {
 		return msgs.iterator();
 	}
 
+	/**
+	 * Returns the messages that were received by this server, starting at the given sequence number.
+	 *
+	 * Messages are numbered in the order in which they arrived, starting at 0, so a test which
+	 * already looked at n messages can pass n to only get the new ones.
+	 *
+	 * @param sequence The sequence number of the first message to return
+	 * @return The messages, empty if no message arrived since the given sequence number.
+	 */
+	public List<String> getMessagesSince(int sequence) {
+		return toStrings(server.getReceivedEmail(sequence));
+	}
+
+	/**
+	 * Returns the messages which were sent to the given address, including recipients in Bcc.
+	 *
+	 * Messages are indexed when they arrive, so this does not look at other messages.
+	 *
+	 * @param recipient The address without angle brackets, compared case-insensitively
+	 * @return The messages in the order in which they arrived, empty if there are none.
+	 */
+	public List<String> getMessagesTo(String recipient) {
+		return toStrings(server.getReceivedEmailTo(recipient));
+	}
+
+	/**
+	 * Returns the messages which were sent from the given address.
+	 *
+	 * @param sender The address without angle brackets, compared case-insensitively
+	 * @return The messages in the order in which they arrived, empty if there are none.
+	 */
+	public List<String> getMessagesFrom(String sender) {
+		return toStrings(server.getReceivedEmailFrom(sender));
+	}
+
+	/**
+	 * Returns the messages which have a header with the given value, e.g. a "Message-ID" as
+	 * returned when sending the email.
+	 *
+	 * @param name The name of the header, "Subject", "Message-ID" or one which was added via {@link #indexHeaders(String...)}
+	 * @param value The value of the header
+	 * @return The messages in the order in which they arrived, empty if there are none.
+	 * @throws IllegalArgumentException If the header is not indexed
+	 */
+	public List<String> getMessagesWithHeader(String name, String value) {
+		return toStrings(server.getReceivedEmailWithHeader(name, value));
+	}
+
+	private static List<String> toStrings(List<SmtpMessage> messages) {
+		List<String> msgs = new ArrayList<>(messages.size());
+		for (SmtpMessage msg : messages) {
+			msgs.add(msg.toString());
+		}
+		return msgs;
+	}
+
+	/**
+	 * Wait until at least the given number of messages was received, e.g. when email is
+	 * sent asynchronously by the code under test.
+	 *
+	 * The wait ends as soon as the message arrives, so there is no need to poll {@link #getMessageCount()}.
+	 *
+	 * @param count The number of messages to wait for
+	 * @param timeout The maximum time to wait
+	 * @return true if the number of messages was received, false if the timeout elapsed or the server was stopped before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean awaitMessages(int count, Duration timeout) throws InterruptedException {
+		return server.awaitReceivedEmail(count, timeout);
+	}
+
+	/**
+	 * Wait until a message which matches the given predicate was received, messages which
+	 * were received before the call are included.
+	 *
+	 * @param predicate Checked once for each message, with the same text as returned by {@link #getMessages()}
+	 * @param timeout The maximum time to wait
+	 * @return The first matching message, null if the timeout elapsed or the server was stopped before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public String awaitMessage(Predicate<String> predicate, Duration timeout) throws InterruptedException {
+		SmtpMessage msg = server.awaitReceivedEmail(message -> predicate.test(message.toString()), timeout);
+		return msg == null ? null : msg.toString();
+	}
+
 	@Override
 	public void close() {
 		// simply call stop() which is kept for backwards compatibility
@@ -22,24 +22,33 @@
 
 package org.dstadler.commons.email;
 
-import com.dumbster.smtp.SmtpActionType;
 import com.dumbster.smtp.SmtpMessage;
-import com.dumbster.smtp.SmtpRequest;
-import com.dumbster.smtp.SmtpResponse;
-import com.dumbster.smtp.SmtpState;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +59,14 @@ import java.util.logging.Logger;
  * does not leave threads still doing work and thus failing to
  * get the same port on re-start().
  *
+ * Each connection is handled on its own virtual thread, so many clients
+ * can send email in parallel. The ESMTP extensions PIPELINING and CHUNKING
+ * (BDAT) are supported, see {@link SmtpSession}.
+ *
+ * Starting and stopping is observable via {@link #startAsync(int)} and {@link #stopAsync()}.
+ * The accept loop blocks without timeout, stopping closes the listening channel so the
+ * loop ends immediately instead of after the next poll interval.
+ *
  * @author dominik.stadler
  *
  */
@@ -57,20 +74,49 @@ public final class SafeCloseSmtpServer implements Runnable {
 
 	private static final Logger log = Logger.getLogger(SafeCloseSmtpServer.class.getName());
 
-	// needed for proper close handling
-	private static final int MAXIMUM_CONCURRENT_READERS = 100;
+	/**
+	 * Time that stop() waits for sessions to finish before their sockets are closed.
+	 */
+	private static final long SHUTDOWN_GRACE_MS = 2_000;
+
+	/**
+	 * Time that the accept loop pauses after accepting a connection failed.
+	 */
+	private static final long ACCEPT_RETRY_MS = 50;
+
+	/**
+	 * Time that a session waits for its message to become visible before acknowledging it anyway.
+	 */
+	private static final Duration PUBLISH_TIMEOUT = Duration.ofSeconds(1);
+
+	/**
+	 * Sent to connections which cannot be handled because too many sessions are running.
+	 */
+	private static final byte[] REJECT = "421 Too many concurrent sessions, try again later\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Completed when the server socket is bound, or failed if binding failed.
+	 */
+	private final CompletableFuture<SafeCloseSmtpServer> started = new CompletableFuture<>();
 
 	/**
-	 * Timeout listening on server socket.
+	 * Completed when the accept loop and all sessions have finished, failed if the accept loop failed.
 	 */
-	private static final int TIMEOUT = 500;
+	private final CompletableFuture<Void> terminated = new CompletableFuture<>();
 
-	private final CountDownLatch startupBarrier = new CountDownLatch(1);
+	/**
+	 * Stores all of the email received since this instance started up, sessions append
+	 * without locking and readers get snapshots.
+	 */
+	private final AppendOnlyList<SmtpMessage> receivedMail = new AppendOnlyList<>();
 
 	/**
-	 * Stores all of the email received since this instance started up.
+	 * Signalled when a message was received or the server terminated, sessions only take
+	 * the lock if a thread is waiting.
 	 */
-	private final List<SmtpMessage> receivedMail;
+	private final ReentrantLock deliveryLock = new ReentrantLock();
+	private final Condition delivered = deliveryLock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
 
 	/**
 	 * Indicates whether this server is stopped or not.
@@ -80,23 +126,62 @@ public final class SafeCloseSmtpServer implements Runnable {
 	/**
 	 * Handle to the server socket this server listens to.
 	 */
-	private ServerSocket serverSocket;
+	private volatile ServerSocketChannel serverChannel;
 
 	/**
 	 * Port the server listens on - set to the default SMTP port initially.
 	 */
 	private final int port;
 
-	private final Semaphore semaphore = new Semaphore(MAXIMUM_CONCURRENT_READERS);
+	/**
+	 * The accept loop and each running session are registered as party, so the phase only
+	 * advances when the loop ended and all sessions finished, which terminates the server.
+	 *
+	 * A Phaser supports at most 65535 parties, further connections are rejected while that many
+	 * sessions are running.
+	 */
+	private final Phaser sessions = new Phaser(1) {
+		@Override
+		protected boolean onAdvance(int phase, int registeredParties) {
+			terminated.complete(null);
+			signalWaiting();
+			return true;
+		}
+	};
+
+	/**
+	 * The sockets of the running sessions, closed if they do not finish when the server is stopped.
+	 */
+	private final Set<SocketChannel> sessionSockets = ConcurrentHashMap.newKeySet();
+
+	private final Thread.Builder sessionThreads;
+
+	/**
+	 * Directory for the spool-files of bodies which exceed the spill-threshold, null to keep all bodies in memory.
+	 */
+	private final Path spoolDirectory;
+	private final int spillThreshold;
+	private final AtomicInteger spoolFiles = new AtomicInteger();
+
+	/**
+	 * Looks up received messages by envelope addresses and headers.
+	 */
+	private final MessageIndex index;
 
 	/**
 	 * private Constructor to only create instances in the static start() method below.
 	 *
 	 * @param port port number
+	 * @param spoolDirectory directory for bodies which exceed the threshold, null to keep all in memory
+	 * @param spillThreshold number of bytes up to which a body is kept in memory
+	 * @param indexedHeaders names of the headers which can be queried
 	 */
-	private SafeCloseSmtpServer(int port) {
-		receivedMail = new ArrayList<>();
+	private SafeCloseSmtpServer(int port, Path spoolDirectory, int spillThreshold, Collection<String> indexedHeaders) {
 		this.port = port;
+		this.spoolDirectory = spoolDirectory;
+		this.spillThreshold = spillThreshold;
+		this.index = new MessageIndex(indexedHeaders);
+		this.sessionThreads = Thread.ofVirtual().name("Mock SMTP Server Session " + port + "-", 1);
 	}
 
 	/**
@@ -104,63 +189,136 @@ public final class SafeCloseSmtpServer implements Runnable {
 	 */
     @Override
 	public void run() {
-		stopped = false;
 		try {
 			try {
-				serverSocket = new ServerSocket(port);
-				serverSocket.setSoTimeout(TIMEOUT); // Block for maximum of 1.5 seconds
-			} finally {
-				// Notify when server socket has been created
-				startupBarrier.countDown();
+				serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+			} catch (IOException | RuntimeException e) {
+				stopped = true;
+				started.completeExceptionally(e);
+				return;
 			}
 
-			// Server: loop until stopped
-			while (!isStopped()) {
-				// get a semaphore so we can ensure below that no thread is still doing stuff when we want to close the server
-				if (!semaphore.tryAcquire()) {
-					throw new IllegalStateException("Could not get semaphore, number of possible threads is too low.");
-				}
+			// Notify when server socket has been created
+			started.complete(this);
 
+			// Server: loop until stopped, stop() closes the channel which ends a blocking accept()
+			while (!isStopped()) {
+				final SocketChannel socket;
 				try {
-					// Start server socket and listen for client connections
-					final Socket socket;
-					try {
-						socket = serverSocket.accept();
-					} catch (@SuppressWarnings("unused") Exception e) {
-						continue; // Non-blocking socket timeout occurred: try accept() again
+					socket = serverChannel.accept();
+				} catch (@SuppressWarnings("unused") ClosedChannelException e) {
+					break; // closed by stop()
+				} catch (IOException e) {
+					if (isStopped()) {
+						break;
 					}
 
-					// Get the input and output streams
-					BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));         // NOSONAR - test class works only locally anyway
-					PrintWriter out = new PrintWriter(socket.getOutputStream());       // NOSONAR - test class works only locally anyway
-
-					synchronized (this) {
-						/*
-						 * We synchronize over the handle method and the list update because the client call completes inside
-						 * the handle method and we have to prevent the client from reading the list until we've updated it.
-						 * For higher concurrency, we could just change handle to return void and update the list inside the
-						 * method
-						 * to limit the duration that we hold the lock.
-						 */
-						List<SmtpMessage> messages = handleTransaction(out, input);
-						receivedMail.addAll(messages);
-					}
-					socket.close();
-				} finally {
-					semaphore.release();
+					// e.g. too many open files under load, the connection stays queued, so retry
+					// after a short pause instead of ending the accept loop
+					log.log(Level.WARNING, "Could not accept connection on port " + port, e);
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MS));
+					continue;
+				}
+
+				// register the session before it starts, so the server cannot terminate before it
+				try {
+					sessions.register();
+				} catch (IllegalStateException e) {
+					// too many running sessions, keep accepting so the server stays usable
+					log.log(Level.WARNING, "Rejecting connection, too many concurrent sessions", e);
+					reject(socket);
+					continue;
+				}
+				sessionSockets.add(socket);
+				try {
+					sessionThreads.start(() -> handleSession(socket));
+				} catch (RuntimeException e) {
+					sessionFinished(socket);
+					throw e;
 				}
 			}
-		} catch (Exception e) {
-			// TODO: Should throw an appropriate exception here
-			log.log(Level.SEVERE, "Caught exception: ", e);
+		} catch (RuntimeException e) {
+			// the accept loop cannot continue, report the failure to callers which wait for the server
+			log.log(Level.SEVERE, "Accept loop of SMTP server on port " + port + " failed", e);
+			stopped = true;
+			started.completeExceptionally(e);
+			terminated.completeExceptionally(e);
 		} finally {
-			if (serverSocket != null) {
+			if (serverChannel != null) {
 				try {
-					serverSocket.close();
+					serverChannel.close();
 				} catch (IOException e) {
 					log.log(Level.SEVERE, "Caught exception: ", e);
 				}
 			}
+
+			// the server terminates as soon as all sessions finished
+			sessions.arriveAndDeregister();
+		}
+	}
+
+	/**
+	 * Handle all SMTP transactions of one connection, runs on the thread of the session.
+	 */
+	private void handleSession(SocketChannel socket) {
+		Path spoolFile = spoolDirectory == null ? null : spoolDirectory.resolve("session-" + spoolFiles.incrementAndGet() + ".spool");
+		try (MessageBodyBuffer bodies = new MessageBodyBuffer(spoolFile, spillThreshold)) {
+			// Each message is stored before the response which completes it is sent, so a client
+			// can see the message as soon as sending it returned.
+			new SmtpSession(socket, bodies, this::deliver).run();
+		} catch (IOException e) {
+			// the client went away or the socket was closed by stop()
+			log.log(Level.FINE, "Session failed", e);
+		} finally {
+			sessionFinished(socket);
+		}
+	}
+
+	private void deliver(StoredSmtpMessage message) {
+		int sequence = receivedMail.append(message);
+
+		// indexed with its sequence number, so lookups return the messages in the order of receipt
+		message.setSequence(sequence);
+		index.add(message);
+
+		// the client may check for the message as soon as it is acknowledged, so it needs to be
+		// visible, also if a concurrent session with a lower sequence number did not store its message yet
+		if (!receivedMail.awaitVisible(sequence, PUBLISH_TIMEOUT)) {
+			log.warning("Message " + sequence + " was not visible within " + PUBLISH_TIMEOUT + ", acknowledging it anyway");
+		}
+
+		// the message is visible before the counter is read, so a thread which registered as
+		// waiting after this check will see it
+		signalWaiting();
+	}
+
+	private void signalWaiting() {
+		if (waiting.get() > 0) {
+			deliveryLock.lock();
+			try {
+				delivered.signalAll();
+			} finally {
+				deliveryLock.unlock();
+			}
+		}
+	}
+
+	private static void reject(SocketChannel socket) {
+		try (socket) {
+			socket.write(ByteBuffer.wrap(REJECT));
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not reject connection", e);
+		}
+	}
+
+	private void sessionFinished(SocketChannel socket) {
+		sessionSockets.remove(socket);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not close socket", e);
+		} finally {
+			sessions.arriveAndDeregister();
 		}
 	}
 
@@ -175,104 +333,178 @@ public final class SafeCloseSmtpServer implements Runnable {
 	}
 
 	/**
-	 * Stops the server. Server is shutdown after processing of the current request is complete.
+	 * Stops the server. Server is shutdown after processing of the currently running sessions is complete.
+	 *
+	 * Sessions which do not finish within a grace period, e.g. because a client keeps the
+	 * connection open, are ended by closing their socket.
+	 *
+	 * @throws java.util.concurrent.CompletionException If the accept loop had failed
 	 */
-	public synchronized void stop() {
-		if(isStopped()) {
-			return;
-		}
-
-		// Mark us closed
-		stopped = true;
+	public void stop() {
+		stopAsync().join();
+	}
 
-		try {
-			// Kick the server accept loop
-			serverSocket.close();
+	/**
+	 * Stop accepting connections and let the running sessions finish.
+	 *
+	 * Sessions which do not finish within a grace period, e.g. because a client keeps the
+	 * connection open, are ended by closing their socket.
+	 *
+	 * @return A future which completes when the accept loop and all sessions have finished, or fails
+	 * 		with the exception which ended the accept loop. The same future is returned on repeated calls.
+	 */
+	public CompletableFuture<Void> stopAsync() {
+		synchronized (this) {
+			if (isStopped()) {
+				return terminated;
+			}
 
-			// acquire all semaphores so that we wait for all connections to finish before we report back as closed
-			semaphore.acquireUninterruptibly(MAXIMUM_CONCURRENT_READERS);
+			// Mark us closed
+			stopped = true;
+		}
 
-			// free them again to have a clean state at the end
-			semaphore.release(MAXIMUM_CONCURRENT_READERS);
-		} catch (IOException e) {
-			log.log(Level.SEVERE, "Caught exception: ", e);
+		// Kick the server accept loop, if the channel is not bound yet the loop does not start at all
+		ServerSocketChannel channel = serverChannel;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Caught exception: ", e);
+			}
 		}
+
+		CompletableFuture.delayedExecutor(SHUTDOWN_GRACE_MS, TimeUnit.MILLISECONDS).execute(() -> {
+			if (!terminated.isDone() && !sessionSockets.isEmpty()) {
+				log.warning("Closing " + sessionSockets.size() + " sessions which did not finish within " + SHUTDOWN_GRACE_MS + "ms");
+				for (SocketChannel socket : sessionSockets) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Could not close socket", e);
+					}
+				}
+			}
+		});
+
+		return terminated;
 	}
 
 	/**
-	 * Handle an SMTP transaction, i.e. all activity between initial connect and QUIT command.
+	 * Get email received by this instance since start up.
+	 *
+	 * The iterator covers the messages which were received when it was created, messages
+	 * which arrive while iterating are not included.
 	 *
-	 * @param out output stream
-	 * @param input input stream
-	 * @return List of SmtpMessage
+	 * @return Iterator of the received messages
 	 */
-	private List<SmtpMessage> handleTransaction(PrintWriter out, BufferedReader input) throws IOException {
-		// Initialize the state machine
-		SmtpState smtpState = SmtpState.CONNECT;
-		SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", smtpState);
-
-		// Execute the connection request
-		SmtpResponse smtpResponse = smtpRequest.execute();
-
-		// Send initial response
-		sendResponse(out, smtpResponse);
-		smtpState = smtpResponse.getNextState();
+	public Iterator<SmtpMessage> getReceivedEmail() {
+		return receivedMail.snapshot().iterator();
+	}
 
-		List<SmtpMessage> msgList = new ArrayList<>();
-		SmtpMessage msg = new SmtpMessage();
+	/**
+	 * Get email received by this instance, starting at the given sequence number.
+	 *
+	 * Messages are numbered in the order in which they were received, starting at 0, so a test
+	 * can fetch only the messages which arrived since the last call by passing the number of
+	 * messages which it saw so far.
+	 *
+	 * @param sequence The sequence number of the first message to return
+	 * @return An unmodifiable snapshot of the messages, empty if there are no new messages
+	 */
+	public List<SmtpMessage> getReceivedEmail(int sequence) {
+		return receivedMail.since(sequence);
+	}
 
-		while (smtpState != SmtpState.CONNECT) {
-			String line = input.readLine();
+	/**
+	 * Wait until at least the given number of messages was received since start up.
+	 *
+	 * The wait ends as soon as the message is stored, it returns early if the server
+	 * terminated, as no more messages can arrive then.
+	 *
+	 * @param count The number of messages to wait for
+	 * @param timeout The maximum time to wait
+	 * @return true if the number of messages was received, false if the timeout elapsed or the server terminated before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean awaitReceivedEmail(int count, Duration timeout) throws InterruptedException {
+		return await(() -> receivedMail.size() >= count, timeout);
+	}
 
-			if (line == null) {
-				break;
+	/**
+	 * Wait until a message which matches the given predicate was received, messages which
+	 * were received before the call are included.
+	 *
+	 * @param predicate Checked once for each message
+	 * @param timeout The maximum time to wait
+	 * @return The first matching message, null if the timeout elapsed or the server terminated before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public SmtpMessage awaitReceivedEmail(Predicate<SmtpMessage> predicate, Duration timeout) throws InterruptedException {
+		SmtpMessage[] match = new SmtpMessage[1];
+		int[] checked = new int[1];
+		await(() -> {
+			for (SmtpMessage message : receivedMail.since(checked[0])) {
+				checked[0]++;
+				if (predicate.test(message)) {
+					match[0] = message;
+					return true;
+				}
 			}
+			return false;
+		}, timeout);
+		return match[0];
+	}
 
-			// Create request from client input and current state
-			SmtpRequest request = SmtpRequest.createRequest(line, smtpState);
-			// Execute request and create response object
-			SmtpResponse response = request.execute();
-			// Move to next internal state
-			smtpState = response.getNextState();
-			// Send response to client
-			sendResponse(out, response);
-
-			// Store input in message
-			String params = request.getParams();
-			msg.store(response, params);
-
-			// If message reception is complete save it
-			if (smtpState == SmtpState.QUIT) {
-				msgList.add(msg);
-				msg = new SmtpMessage();
+	private boolean await(BooleanSupplier condition, Duration timeout) throws InterruptedException {
+		long remaining = timeout.toNanos();
+		waiting.incrementAndGet();
+		deliveryLock.lock();
+		try {
+			while (!condition.getAsBoolean()) {
+				if (remaining <= 0 || terminated.isDone()) {
+					// messages which were stored while terminating are still checked once
+					return condition.getAsBoolean();
+				}
+				remaining = delivered.awaitNanos(remaining);
 			}
+			return true;
+		} finally {
+			deliveryLock.unlock();
+			waiting.decrementAndGet();
 		}
+	}
 
-		return msgList;
+	/**
+	 * Get the email which was sent to the given address, i.e. the address was used in "RCPT TO",
+	 * so this includes recipients in Bcc.
+	 *
+	 * @param recipient The address without angle brackets, compared case-insensitively
+	 * @return The messages in the order in which they were received, empty if there are none
+	 */
+	public List<SmtpMessage> getReceivedEmailTo(String recipient) {
+		return index.getByRecipient(recipient);
 	}
 
 	/**
-	 * Send response to client.
+	 * Get the email which was sent from the given address, i.e. the address was used in "MAIL FROM".
 	 *
-	 * @param out socket output stream
-	 * @param smtpResponse response object
-	 */
-	private static void sendResponse(PrintWriter out, SmtpResponse smtpResponse) {
-		if (smtpResponse.getCode() > 0) {
-			int code = smtpResponse.getCode();
-			String message = smtpResponse.getMessage();
-			out.print(code + " " + message + "\r\n");
-			out.flush();
-		}
+	 * @param sender The address without angle brackets, compared case-insensitively
+	 * @return The messages in the order in which they were received, empty if there are none
+	 */
+	public List<SmtpMessage> getReceivedEmailFrom(String sender) {
+		return index.getBySender(sender);
 	}
 
 	/**
-	 * Get email received by this instance since start up.
+	 * Get the email which has a header with the given value.
 	 *
-	 * @return List of String
+	 * @param name The name of the header, needs to be one of the indexed headers, see {@link #start(int, Path, int, Collection)}
+	 * @param value The value of the header, without leading and trailing whitespace
+	 * @return The messages in the order in which they were received, empty if there are none
+	 * @throws IllegalArgumentException If the header is not indexed
 	 */
-	public synchronized Iterator<SmtpMessage> getReceivedEmail() {
-		return receivedMail.iterator();
+	public List<SmtpMessage> getReceivedEmailWithHeader(String name, String value) {
+		return index.getByHeader(name, value);
 	}
 
 	/**
@@ -280,7 +512,7 @@ public final class SafeCloseSmtpServer implements Runnable {
 	 *
 	 * @return size of received email list
 	 */
-	public synchronized int getReceivedEmailSize() {
+	public int getReceivedEmailSize() {
 		return receivedMail.size();
 	}
 
@@ -289,19 +521,98 @@ public final class SafeCloseSmtpServer implements Runnable {
 	 *
 	 * @param port port number the server should listen to
 	 * @return a reference to the SMTP server
+	 * @throws UncheckedIOException If the server socket cannot be bound to the port
 	 */
 	public static SafeCloseSmtpServer start(int port) {
-		SafeCloseSmtpServer server = new SafeCloseSmtpServer(port);
-		Thread t = new Thread(server, "Mock SMTP Server Thread");
-		t.start();
+		return start(port, null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an instance of SimpleSmtpServer which stores large message bodies in files and starts it,
+	 * see {@link #startAsync(int, Path, int)}.
+	 *
+	 * @param port port number the server should listen to
+	 * @param spoolDirectory existing directory for the spool-files, null to keep all bodies in memory
+	 * @param spillThreshold number of bytes up to which a body is kept in memory
+	 * @return a reference to the SMTP server
+	 * @throws UncheckedIOException If the server socket cannot be bound to the port
+	 */
+	public static SafeCloseSmtpServer start(int port, Path spoolDirectory, int spillThreshold) {
+		return start(port, spoolDirectory, spillThreshold, MessageIndex.DEFAULT_HEADERS);
+	}
 
-		// Block until the server socket is created
+	/**
+	 * Creates an instance of SimpleSmtpServer which stores large message bodies in files and
+	 * indexes the given headers and starts it, see {@link #startAsync(int, Path, int, Collection)}.
+	 *
+	 * @param port port number the server should listen to
+	 * @param spoolDirectory existing directory for the spool-files, null to keep all bodies in memory
+	 * @param spillThreshold number of bytes up to which a body is kept in memory
+	 * @param indexedHeaders names of the headers which can be used in {@link #getReceivedEmailWithHeader(String, String)}
+	 * @return a reference to the SMTP server
+	 * @throws UncheckedIOException If the server socket cannot be bound to the port
+	 */
+	public static SafeCloseSmtpServer start(int port, Path spoolDirectory, int spillThreshold, Collection<String> indexedHeaders) {
 		try {
-			server.startupBarrier.await();
-		} catch (InterruptedException e) {
-			log.log(Level.WARNING, "Interrupted", e);
+			return startAsync(port, spoolDirectory, spillThreshold, indexedHeaders).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw new UncheckedIOException((IOException) e.getCause());
+			}
+			throw e;
 		}
+	}
+
+	/**
+	 * Creates an instance of SimpleSmtpServer and starts it without waiting for the server socket.
+	 *
+	 * @param port port number the server should listen to
+	 * @return A future which completes with the server as soon as it accepts connections, or
+	 * 		exceptionally if the server socket cannot be bound.
+	 */
+	public static CompletableFuture<SafeCloseSmtpServer> startAsync(int port) {
+		return startAsync(port, null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an instance of SimpleSmtpServer which stores large message bodies in files and starts it
+	 * without waiting for the server socket.
+	 *
+	 * Bodies with more than the given number of bytes are appended to a spool-file per session
+	 * in the given directory and only read back via a memory-mapped view when they are requested.
+	 *
+	 * @param port port number the server should listen to
+	 * @param spoolDirectory existing directory for the spool-files, null to keep all bodies in memory
+	 * @param spillThreshold number of bytes up to which a body is kept in memory
+	 * @return A future which completes with the server as soon as it accepts connections, or
+	 * 		exceptionally if the server socket cannot be bound.
+	 */
+	public static CompletableFuture<SafeCloseSmtpServer> startAsync(int port, Path spoolDirectory, int spillThreshold) {
+		return startAsync(port, spoolDirectory, spillThreshold, MessageIndex.DEFAULT_HEADERS);
+	}
+
+	/**
+	 * Creates an instance of SimpleSmtpServer which stores large message bodies in files and starts it
+	 * without waiting for the server socket, see {@link #startAsync(int, Path, int)}.
+	 *
+	 * Received messages are indexed by envelope sender, envelope recipients and the given headers
+	 * as they arrive, so they can be looked up without scanning all messages.
+	 *
+	 * @param port port number the server should listen to
+	 * @param spoolDirectory existing directory for the spool-files, null to keep all bodies in memory
+	 * @param spillThreshold number of bytes up to which a body is kept in memory
+	 * @param indexedHeaders names of the headers which can be used in {@link #getReceivedEmailWithHeader(String, String)},
+	 * 		by default "Subject" and "Message-ID"
+	 * @return A future which completes with the server as soon as it accepts connections, or
+	 * 		exceptionally if the server socket cannot be bound.
+	 */
+	public static CompletableFuture<SafeCloseSmtpServer> startAsync(int port, Path spoolDirectory, int spillThreshold, Collection<String> indexedHeaders) {
+		SafeCloseSmtpServer server = new SafeCloseSmtpServer(port, spoolDirectory, spillThreshold, indexedHeaders);
+
+		// isStopped() should already report the server as running when the future is returned
+		server.stopped = false;
+		Thread.ofPlatform().name("Mock SMTP Server Thread").start(server);
 
-		return server;
+		return server.started;
 	}
 }
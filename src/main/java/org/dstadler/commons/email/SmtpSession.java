@@ -0,0 +1,533 @@
+package org.dstadler.commons.email;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The server side of one SMTP connection.
+ *
+ * Supports the ESMTP extensions PIPELINING (RFC 2920) and CHUNKING (RFC 3030). Responses are
+ * collected in the output buffer and only flushed before the session would block waiting for
+ * more input, so a client which sends a batch of commands receives all responses in one write.
+ *
+ * The protocol is parsed directly on the bytes in the input buffer, which is re-used for the
+ * whole session. Responses are pre-encoded and message content is stored as bytes, strings
+ * are only created when a received message is inspected, see {@link StoredSmtpMessage}.
+ *
+ * Messages are parsed the same way as by dumbster: header lines are stored as headers, body
+ * lines are concatenated without line-separators and empty lines are stored as "\n".
+ */
+final class SmtpSession {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] GREETING = response("220 localhost Dumbster SMTP service ready");
+	private static final byte[] EHLO_RESPONSE = response("250-localhost\r\n250-PIPELINING\r\n250 CHUNKING");
+	private static final byte[] OK = response("250 OK");
+	private static final byte[] START_DATA = response("354 Start mail input; end with <CRLF>.<CRLF>");
+	private static final byte[] CLOSING = response("221 localhost Dumbster service closing transmission channel");
+	private static final byte[] BAD_SEQUENCE = response("503 Bad sequence of commands");
+	private static final byte[] BDAT_SYNTAX = response("501 Syntax: BDAT <size> [LAST]");
+	private static final byte[] NOT_SUPPORTED = response("252 Not supported");
+	private static final byte[] NO_HELP = response("211 No help available");
+	private static final byte[] UNKNOWN = response("500 Command not recognized");
+	private static final byte[] TOO_LARGE = response("552 Message size exceeds fixed maximum message size");
+	private static final byte[] CHUNK_RECEIVED = "250 ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OCTETS_RECEIVED = response(" octets received");
+
+	private static final ByteBuffer CR = ByteBuffer.wrap(new byte[] { '\r' }).asReadOnlyBuffer();
+
+	// the first four characters of the commands in upper-case
+	private static final int EHLO = 'E' << 24 | 'H' << 16 | 'L' << 8 | 'O';
+	private static final int HELO = 'H' << 24 | 'E' << 16 | 'L' << 8 | 'O';
+	private static final int MAIL = 'M' << 24 | 'A' << 16 | 'I' << 8 | 'L';
+	private static final int RCPT = 'R' << 24 | 'C' << 16 | 'P' << 8 | 'T';
+	private static final int DATA = 'D' << 24 | 'A' << 16 | 'T' << 8 | 'A';
+	private static final int BDAT = 'B' << 24 | 'D' << 16 | 'A' << 8 | 'T';
+	private static final int RSET = 'R' << 24 | 'S' << 16 | 'E' << 8 | 'T';
+	private static final int NOOP = 'N' << 24 | 'O' << 16 | 'O' << 8 | 'P';
+	private static final int VRFY = 'V' << 24 | 'R' << 16 | 'F' << 8 | 'Y';
+	private static final int EXPN = 'E' << 24 | 'X' << 16 | 'P' << 8 | 'N';
+	private static final int HELP = 'H' << 24 | 'E' << 16 | 'L' << 8 | 'P';
+	private static final int QUIT = 'Q' << 24 | 'U' << 16 | 'I' << 8 | 'T';
+	private static final int LAST = 'L' << 24 | 'A' << 16 | 'S' << 8 | 'T';
+
+	private enum State {
+		// waiting for HELO/EHLO
+		GREET,
+		// ready for a new transaction
+		MAIL,
+		// MAIL FROM was received, waiting for the first recipient
+		RCPT,
+		// at least one recipient was received
+		DATA,
+		// BDAT chunks are received
+		BDAT
+	}
+
+	private final ByteChannel channel;
+	private final MessageBodyBuffer bodies;
+	private final Consumer<StoredSmtpMessage> delivery;
+
+	// the unprocessed input is between position and limit
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private State state = State.GREET;
+
+	// the envelope of the current message
+	private String sender;
+	private final List<String> recipients = new ArrayList<>();
+
+	// parsing of the content of the current message, lines can span multiple reads or BDAT chunks
+	private boolean inHeaders = true;
+	private byte[] headers = new byte[1024];
+	private int headersLength;
+	private long lineLength;
+	private boolean pendingCR;
+
+	/**
+	 * @param channel The connection, in blocking mode
+	 * @param bodies Collects the bodies of the messages
+	 * @param delivery Called for each complete message, before it is acknowledged to the client
+	 */
+	SmtpSession(ByteChannel channel, MessageBodyBuffer bodies, Consumer<StoredSmtpMessage> delivery) {
+		this.channel = channel;
+		this.bodies = bodies;
+		this.delivery = delivery;
+	}
+
+	private static byte[] response(String response) {
+		return (response + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Handle all transactions until the client sends QUIT or closes the connection.
+	 */
+	void run() throws IOException {
+		try {
+			reply(GREETING);
+
+			int end;
+			while ((end = nextLine()) != -1) {
+				int start = in.position();
+				in.position(end + 1);
+				if (!handle(start, lineEnd(start, end))) {
+					break;
+				}
+			}
+		} finally {
+			flush();
+		}
+	}
+
+	/**
+	 * @param start The absolute start of the command in the input buffer
+	 * @param end The absolute end of the command, without line-terminator
+	 * @return false if the session ends.
+	 */
+	private boolean handle(int start, int end) throws IOException {
+		switch (verb(start, end)) {
+			case EHLO:
+				resetTransaction(State.MAIL);
+				reply(EHLO_RESPONSE);
+				break;
+			case HELO:
+				resetTransaction(State.MAIL);
+				reply(OK);
+				break;
+			case MAIL:
+				if (state != State.MAIL) {
+					reply(BAD_SEQUENCE);
+				} else {
+					state = State.RCPT;
+					sender = address(start + 4, end);
+					reply(OK);
+				}
+				break;
+			case RCPT:
+				if (state != State.RCPT && state != State.DATA) {
+					reply(BAD_SEQUENCE);
+				} else {
+					state = State.DATA;
+					recipients.add(address(start + 4, end));
+					reply(OK);
+				}
+				break;
+			case DATA:
+				if (state != State.DATA) {
+					reply(BAD_SEQUENCE);
+				} else {
+					reply(START_DATA);
+					return receiveData();
+				}
+				break;
+			case BDAT:
+				return receiveChunk(start + 4, end);
+			case RSET:
+				resetTransaction(state == State.GREET ? State.GREET : State.MAIL);
+				reply(OK);
+				break;
+			case NOOP:
+				reply(OK);
+				break;
+			case VRFY:
+			case EXPN:
+				reply(NOT_SUPPORTED);
+				break;
+			case HELP:
+				reply(NO_HELP);
+				break;
+			case QUIT:
+				reply(CLOSING);
+				return false;
+			default:
+				reply(UNKNOWN);
+				break;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The first four characters in upper-case, if they are followed by a space or the
+	 * 		end, 0 otherwise.
+	 */
+	private int verb(int start, int end) {
+		if (end - start < 4 || (end - start > 4 && in.get(start + 4) != ' ')) {
+			return 0;
+		}
+
+		int verb = 0;
+		for (int i = start; i < start + 4; i++) {
+			int b = in.get(i);
+			verb = verb << 8 | (b >= 'a' && b <= 'z' ? b - 'a' + 'A' : b);
+		}
+		return verb;
+	}
+
+	/**
+	 * @return The address of a "MAIL FROM:" or "RCPT TO:" command, without angle brackets and parameters
+	 */
+	private String address(int start, int end) {
+		int from = start;
+		while (from < end && in.get(from) != '<' && in.get(from) != ':') {
+			from++;
+		}
+		from = skipSpaces(Math.min(from + 1, end), end);
+		if (from < end && in.get(from) == '<') {
+			from++;
+		}
+
+		int to = from;
+		while (to < end && in.get(to) != '>' && in.get(to) != ' ') {
+			to++;
+		}
+
+		byte[] address = new byte[to - from];
+		in.get(from, address);
+		return new String(address, StandardCharsets.UTF_8);
+	}
+
+	private void resetTransaction(State newState) {
+		state = newState;
+		sender = null;
+		recipients.clear();
+		inHeaders = true;
+		headersLength = 0;
+		lineLength = 0;
+		pendingCR = false;
+		bodies.discard();
+	}
+
+	/**
+	 * Receive the content of a message which is terminated by a line with a single dot.
+	 *
+	 * @return false if the connection was closed before the content was complete.
+	 */
+	private boolean receiveData() throws IOException {
+		while (true) {
+			int end = nextLineOrFull();
+			if (end == -1) {
+				return false;
+			}
+
+			int start = in.position();
+			if (end == in.limit()) {
+				// a part of a line which is longer than the buffer
+				in.position(end);
+				content(in, start, end, false, true);
+			} else {
+				in.position(end + 1);
+				if (content(in, start, end, true, true)) {
+					deliver();
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receive one chunk of a message via "BDAT &lt;size&gt; [LAST]".
+	 *
+	 * @param start The absolute position after the command in the input buffer
+	 * @param end The absolute end of the command line
+	 * @return false if the connection was closed before the chunk was complete.
+	 */
+	private boolean receiveChunk(int start, int end) throws IOException {
+		int pos = skipSpaces(start, end);
+		int digits = pos;
+		long size = 0;
+		while (pos < end && pos - digits < 18 && in.get(pos) >= '0' && in.get(pos) <= '9') {
+			size = size * 10 + in.get(pos++) - '0';
+		}
+		boolean valid = pos > digits;
+		boolean last = false;
+		pos = skipSpaces(pos, end);
+		if (valid && pos < end) {
+			last = end - pos == 4 && verb(pos, end) == LAST;
+			valid = last;
+		}
+		if (!valid) {
+			reply(BDAT_SYNTAX);
+			return true;
+		}
+
+		// the chunk needs to be read in any case, as the client sends it without waiting for a response
+		boolean accepted = state == State.DATA || state == State.BDAT;
+		if (accepted) {
+			state = State.BDAT;
+		}
+		for (long remaining = size; remaining > 0; ) {
+			if (!in.hasRemaining() && !fill()) {
+				return false;
+			}
+
+			int from = in.position();
+			int to = (int) Math.min(in.limit(), from + remaining);
+			in.position(to);
+			remaining -= to - from;
+			if (accepted) {
+				for (int i = from; i < to; i++) {
+					if (in.get(i) == '\n') {
+						content(in, from, i, true, false);
+						from = i + 1;
+					}
+				}
+				content(in, from, to, false, false);
+			}
+		}
+
+		if (!accepted) {
+			reply(BAD_SEQUENCE);
+		} else if (last) {
+			// BDAT content is octet-exact, a final '\r' is content as no '\n' follows it
+			if (pendingCR) {
+				pendingCR = false;
+				store(CR, 0, 1, false);
+			}
+
+			// a last header line without line-terminator still needs to be stored as header,
+			// nothing is added to the body
+			if (inHeaders && lineLength > 0) {
+				store(in, 0, 0, true);
+			}
+			deliver();
+		} else {
+			reply(CHUNK_RECEIVED);
+			replyNumber(size);
+			reply(OCTETS_RECEIVED);
+		}
+		return true;
+	}
+
+	private int skipSpaces(int pos, int end) {
+		while (pos < end && in.get(pos) == ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Process a part of the content of a message.
+	 *
+	 * @param buffer The buffer which contains the part
+	 * @param from The absolute start of the part in the buffer
+	 * @param to The absolute end of the part, before the '\n' if the line ends
+	 * @param lineEnd If the part is followed by '\n'
+	 * @param dotStuffed If the content is terminated by a single dot and leading dots are doubled, i.e. for DATA
+	 * @return true if the terminating line was found.
+	 */
+	private boolean content(ByteBuffer buffer, int from, int to, boolean lineEnd, boolean dotStuffed) throws IOException {
+		// a '\r' at the end of a part is only content if it is not followed by '\n'
+		if (pendingCR) {
+			pendingCR = false;
+			if (!lineEnd || from != to) {
+				store(CR, 0, 1, false);
+			}
+		}
+		if (to > from && buffer.get(to - 1) == '\r') {
+			to--;
+			pendingCR = !lineEnd;
+		}
+
+		if (dotStuffed && lineLength == 0 && to > from && buffer.get(from) == '.') {
+			if (lineEnd && to - from == 1) {
+				return true;
+			}
+
+			// remove the dot which the client added to lines which start with a dot
+			from++;
+			lineLength++;
+		}
+
+		store(buffer, from, to, lineEnd);
+		return false;
+	}
+
+	private void store(ByteBuffer buffer, int from, int to, boolean lineEnd) throws IOException {
+		boolean emptyLine = lineEnd && lineLength == 0 && from == to;
+		lineLength = lineEnd ? 0 : lineLength + to - from;
+
+		if (inHeaders) {
+			if (emptyLine) {
+				inHeaders = false;
+				return;
+			}
+
+			if (headersLength + to - from + 1 > headers.length) {
+				headers = Arrays.copyOf(headers, Math.max(headers.length * 2, headersLength + to - from + 1));
+			}
+			buffer.get(from, headers, headersLength, to - from);
+			headersLength += to - from;
+			if (lineEnd) {
+				headers[headersLength++] = '\n';
+			}
+		} else if (emptyLine) {
+			bodies.append((byte) '\n');
+		} else {
+			bodies.append(buffer, from, to);
+		}
+	}
+
+	private void deliver() throws IOException {
+		if (bodies.isTooLarge()) {
+			// the content was received completely, but not stored
+			resetTransaction(State.MAIL);
+			reply(TOO_LARGE);
+			return;
+		}
+
+		StoredSmtpMessage message = new StoredSmtpMessage();
+		message.setEnvelope(sender, recipients);
+		message.setHeaders(Arrays.copyOf(headers, headersLength));
+		bodies.complete(message);
+
+		// store the message before it is acknowledged, so the client sees it as soon as sending returned
+		delivery.accept(message);
+		resetTransaction(State.MAIL);
+		reply(OK);
+	}
+
+	private void reply(byte[] response) throws IOException {
+		if (out.remaining() < response.length) {
+			flush();
+		}
+		out.put(response);
+	}
+
+	private void replyNumber(long number) throws IOException {
+		if (out.remaining() < 20) {
+			flush();
+		}
+
+		long divisor = 1;
+		while (divisor <= number / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			out.put((byte) ('0' + number / divisor % 10));
+		}
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Read more input, the pending responses are sent before blocking.
+	 *
+	 * @return false if the connection was closed
+	 */
+	private boolean fill() throws IOException {
+		flush();
+
+		in.compact();
+		try {
+			return channel.read(in) != -1;
+		} finally {
+			in.flip();
+		}
+	}
+
+	/**
+	 * @return The absolute position of the next '\n' in the input, -1 if the connection was closed before
+	 */
+	private int nextLine() throws IOException {
+		while (true) {
+			int end = indexOfLineFeed();
+			if (end != -1) {
+				return end;
+			}
+			if (in.position() == 0 && in.limit() == in.capacity()) {
+				throw new IOException("Command line exceeds " + BUFFER_SIZE + " bytes");
+			}
+			if (!fill()) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * @return The absolute position of the next '\n' in the input, the limit if the buffer is full
+	 * 		without '\n' or -1 if the connection was closed before
+	 */
+	private int nextLineOrFull() throws IOException {
+		while (true) {
+			int end = indexOfLineFeed();
+			if (end != -1) {
+				return end;
+			}
+			if (in.position() == 0 && in.limit() == in.capacity()) {
+				return in.limit();
+			}
+			if (!fill()) {
+				return -1;
+			}
+		}
+	}
+
+	private int indexOfLineFeed() {
+		for (int i = in.position(); i < in.limit(); i++) {
+			if (in.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The end of the line without a '\r' before the '\n' at the given position
+	 */
+	private int lineEnd(int start, int end) {
+		return end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+	}
+}
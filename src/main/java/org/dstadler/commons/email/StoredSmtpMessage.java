@@ -0,0 +1,256 @@
+package org.dstadler.commons.email;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.dumbster.smtp.SmtpMessage;
+import com.dumbster.smtp.SmtpResponse;
+import com.dumbster.smtp.SmtpState;
+
+/**
+ * A received message which keeps the bytes as they were received and only creates
+ * strings when the message is inspected.
+ *
+ * The header lines are parsed into the headers of {@link SmtpMessage} on first access. The
+ * body is either kept in memory or in a spool-file. If the body was spilled to disk, only the
+ * file and the region of the body are kept and the body is read through a memory-mapped
+ * view whenever it is requested, so large messages do not fill the heap.
+ */
+final class StoredSmtpMessage extends SmtpMessage {
+	// lets SmtpMessage parse a line as header, it only looks at the next state of the response
+	private static final SmtpResponse HEADER = new SmtpResponse(-1, "", SmtpState.DATA_HDR);
+
+	private static final byte[] EMPTY = new byte[0];
+
+	// UTF-8 encoded header lines, each terminated by '\n', null once they are parsed
+	private byte[] headers = EMPTY;
+
+	// the position in the list of received messages, orders the results of index lookups
+	private int sequence = -1;
+
+	private String envelopeSender;
+	private List<String> envelopeRecipients = List.of();
+
+	private byte[] body = EMPTY;
+	private Path file;
+	private long offset;
+	private long length;
+
+	/**
+	 * @param sender The address of MAIL FROM
+	 * @param recipients The addresses of all RCPT TO
+	 */
+	void setEnvelope(String sender, List<String> recipients) {
+		this.envelopeSender = sender;
+		this.envelopeRecipients = List.copyOf(recipients);
+	}
+
+	/**
+	 * @return The address of MAIL FROM, without angle brackets and parameters, null if not known.
+	 */
+	String getEnvelopeSender() {
+		return envelopeSender;
+	}
+
+	/**
+	 * @return The addresses of all RCPT TO, including recipients which are not listed in the headers, e.g. Bcc.
+	 */
+	List<String> getEnvelopeRecipients() {
+		return envelopeRecipients;
+	}
+
+	void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return The position in the list of received messages, -1 if it was not delivered yet.
+	 */
+	int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param headers The UTF-8 encoded header lines, each terminated by '\n', lines without colon are ignored
+	 */
+	void setHeaders(byte[] headers) {
+		this.headers = headers;
+	}
+
+	/**
+	 * @param body The UTF-8 encoded body
+	 */
+	void setBody(byte[] body) {
+		this.body = body;
+		this.file = null;
+	}
+
+	void setSpilledBody(Path file, long offset, long length) {
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Can only map bodies of up to 2GB, but had " + length + " bytes in " + file);
+		}
+		this.body = null;
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return true if the body is stored in a spool-file instead of in memory.
+	 */
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	private synchronized void parseHeaders() {
+		if (headers == null) {
+			return;
+		}
+
+		int start = 0;
+		for (int i = 0; i < headers.length; i++) {
+			if (headers[i] == '\n') {
+				store(HEADER, new String(headers, start, i - start, StandardCharsets.UTF_8));
+				start = i + 1;
+			}
+		}
+		headers = null;
+	}
+
+	/**
+	 * Pass the values of the headers with the given names to the consumer. As long as the headers
+	 * are not parsed, the raw header lines are scanned and only the values of the requested
+	 * headers are decoded, so indexing a message does not create strings for all its headers.
+	 *
+	 * Names and values are determined in the same way as when the headers are parsed.
+	 *
+	 * @param names The lower-case names of the headers
+	 * @param consumer Called with the lower-case name from the given array and the value of each matching header
+	 */
+	synchronized void forEachHeader(String[] names, BiConsumer<String, String> consumer) {
+		if (headers == null) {
+			for (Iterator<?> it = super.getHeaderNames(); it.hasNext(); ) {
+				String header = (String) it.next();
+				for (String name : names) {
+					if (name.equalsIgnoreCase(header)) {
+						for (String value : super.getHeaderValues(header)) {
+							consumer.accept(name, value);
+						}
+					}
+				}
+			}
+			return;
+		}
+
+		int start = 0;
+		for (int i = 0; i < headers.length; i++) {
+			if (headers[i] == '\n') {
+				header(start, i, names, consumer);
+				start = i + 1;
+			}
+		}
+	}
+
+	private void header(int start, int end, String[] names, BiConsumer<String, String> consumer) {
+		int colon = start;
+		while (colon < end && headers[colon] != ':') {
+			colon++;
+		}
+		if (colon == end) {
+			return;
+		}
+
+		// trimmed like String.trim() when the headers are parsed
+		int nameStart = skipWhitespace(start, colon);
+		int nameEnd = colon;
+		while (nameEnd > nameStart && (headers[nameEnd - 1] & 0xff) <= ' ') {
+			nameEnd--;
+		}
+
+		for (String name : names) {
+			if (matches(name, nameStart, nameEnd)) {
+				int valueStart = skipWhitespace(colon + 1, end);
+				int valueEnd = end;
+				while (valueEnd > valueStart && (headers[valueEnd - 1] & 0xff) <= ' ') {
+					valueEnd--;
+				}
+				consumer.accept(name, new String(headers, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private int skipWhitespace(int pos, int end) {
+		while (pos < end && (headers[pos] & 0xff) <= ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private boolean matches(String name, int start, int end) {
+		if (end - start != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			int b = headers[start + i];
+			if ((b >= 'A' && b <= 'Z' ? b - 'A' + 'a' : b) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The UTF-8 encoded body, a read-only memory-mapped view of the spool-file if the body was spilled.
+	 */
+	ByteBuffer getBodyBuffer() {
+		if (file == null) {
+			return ByteBuffer.wrap(body).asReadOnlyBuffer();
+		}
+
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read body of message from " + file, e);
+		}
+	}
+
+	@Override
+	public Iterator<?> getHeaderNames() {
+		parseHeaders();
+		return super.getHeaderNames();
+	}
+
+	@Override
+	public String[] getHeaderValues(String name) {
+		parseHeaders();
+		return super.getHeaderValues(name);
+	}
+
+	@Override
+	public String getHeaderValue(String name) {
+		parseHeaders();
+		return super.getHeaderValue(name);
+	}
+
+	@Override
+	public String getBody() {
+		return StandardCharsets.UTF_8.decode(getBodyBuffer()).toString();
+	}
+
+	@Override
+	public String toString() {
+		// the body of the base class is always empty, so its format can be re-used for headers
+		parseHeaders();
+		String formatted = super.toString();
+		return formatted.substring(0, formatted.length() - 1) + getBody() + "\n";
+	}
+}
@@ -0,0 +1,96 @@
+package org.dstadler.commons.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One range of bytes as requested via a HTTP "Range" header.
+ */
+final class ByteRange {
+	private static final String BYTES_UNIT = "bytes=";
+
+	private final long start;
+	private final long end;
+
+	ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return The position of the first byte of the range.
+	 */
+	long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return The position of the last byte of the range, inclusive.
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @param size The size of the complete content
+	 * @return The value for the "Content-Range" header of this range.
+	 */
+	String toContentRange(long size) {
+		return "bytes " + start + "-" + end + "/" + size;
+	}
+
+	/**
+	 * Parse the value of a "Range" header.
+	 *
+	 * @param header The value of the header, e.g. "bytes=0-499, -500"
+	 * @param size The size of the content that is requested
+	 * @return The satisfiable ranges, an empty list if none of the ranges can be satisfied
+	 * 		or null if the header is not valid and thus should be ignored.
+	 */
+	static List<ByteRange> parse(String header, long size) {
+		if (header == null || !header.toLowerCase(Locale.ROOT).startsWith(BYTES_UNIT)) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+			String trimmed = spec.trim();
+			int dash = trimmed.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+
+			try {
+				if (dash == 0) {
+					// suffix-range, i.e. the last n bytes
+					long suffix = Long.parseLong(trimmed.substring(1));
+					if (suffix < 0) {
+						return null;
+					}
+					if (suffix > 0 && size > 0) {
+						ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+					}
+				} else {
+					long first = Long.parseLong(trimmed.substring(0, dash));
+					String last = trimmed.substring(dash + 1);
+					long lastPos = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (first < 0 || lastPos < first) {
+						return null;
+					}
+					if (first < size) {
+						ranges.add(new ByteRange(first, Math.min(lastPos, size - 1)));
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return ranges;
+	}
+}
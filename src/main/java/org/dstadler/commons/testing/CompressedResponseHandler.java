@@ -0,0 +1,156 @@
+package org.dstadler.commons.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the same response for every request, with the body compressed in the
+ * content-coding that the client prefers according to its "Accept-Encoding" header.
+ *
+ * The body is compressed with gzip and deflate once when the handler is created and
+ * each variant is pre-encoded like in {@link StaticResponseHandler}, so answering a
+ * request only selects the variant and the server does not become the bottleneck when
+ * benchmarking decompression in the client.
+ */
+final class CompressedResponseHandler implements MockRESTServer.RequestHandler {
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	static final String IDENTITY = "identity";
+
+	private static final String VARY = "Vary: Accept-Encoding\r\n";
+
+	private final StaticResponseHandler gzip;
+	private final StaticResponseHandler deflate;
+	private final StaticResponseHandler identity;
+
+	CompressedResponseHandler(String status, String mimeType, byte[] body) {
+		gzip = new StaticResponseHandler(status, mimeType, "Content-Encoding: gzip\r\n" + VARY, gzip(body));
+		deflate = new StaticResponseHandler(status, mimeType, "Content-Encoding: deflate\r\n" + VARY, deflate(body));
+		identity = new StaticResponseHandler(status, mimeType, VARY, body);
+	}
+
+	private static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+			{
+				// compression is done only once, so use the best one
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gzip.write(body);
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] body) {
+		// "deflate" as content-coding is the zlib-format, i.e. with header and checksum
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+			deflate.write(body);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		switch (negotiate(request.getHeader("Accept-Encoding"))) {
+			case GZIP:
+				gzip.handle(request, connection);
+				break;
+			case DEFLATE:
+				deflate.handle(request, connection);
+				break;
+			default:
+				identity.handle(request, connection);
+				break;
+		}
+	}
+
+	/**
+	 * Select the content-coding for a response, see RFC 9110, section 12.5.3.
+	 *
+	 * A compressed coding is preferred over "identity" if the client accepts it with at
+	 * least the same quality, gzip is preferred over deflate on equal quality.
+	 *
+	 * @param acceptEncoding The "Accept-Encoding" header of the request, can be null
+	 * @return One of {@link #GZIP}, {@link #DEFLATE} or {@link #IDENTITY}
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return IDENTITY;
+		}
+
+		// -1 for codings which are not listed
+		double gzip = -1;
+		double deflate = -1;
+		double identity = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim().toLowerCase(Locale.ROOT);
+				if (parameter.startsWith("q=")) {
+					quality = parseQuality(parameter.substring(2));
+				}
+			}
+
+			switch (parts[0].trim().toLowerCase(Locale.ROOT)) {
+				case "gzip":
+				case "x-gzip":
+					gzip = quality;
+					break;
+				case DEFLATE:
+					deflate = quality;
+					break;
+				case IDENTITY:
+					identity = quality;
+					break;
+				case "*":
+					any = quality;
+					break;
+				default:
+					// not supported
+					break;
+			}
+		}
+
+		// codings which are not listed are only acceptable via "*"
+		if (gzip < 0) {
+			gzip = Math.max(any, 0);
+		}
+		if (deflate < 0) {
+			deflate = Math.max(any, 0);
+		}
+
+		double best = Math.max(gzip, deflate);
+		if (best > 0 && best >= identity) {
+			return gzip >= deflate ? GZIP : DEFLATE;
+		}
+
+		// also used if identity is not acceptable either, sending no content-coding is allowed then
+		return IDENTITY;
+	}
+
+	private static double parseQuality(String quality) {
+		try {
+			return Double.parseDouble(quality.trim());
+		} catch (NumberFormatException e) {
+			// invalid values make the coding unacceptable
+			return 0;
+		}
+	}
+}
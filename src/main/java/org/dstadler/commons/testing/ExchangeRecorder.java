@@ -0,0 +1,167 @@
+package org.dstadler.commons.testing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends the exchanges of a {@link MockRESTServer} to a binary file which can
+ * later be replayed via {@link ReplayResponseHandler}.
+ *
+ * The file starts with the magic number {@link #MAGIC}, followed by one record per exchange:
+ *
+ * <pre>
+ * int    length of the key
+ * byte[] key, i.e. method and request-target, e.g. "GET /api/users?id=1", in UTF-8
+ * byte   flags, {@link #FLAG_CLOSE} if the connection was closed after the response
+ * int    length of the response
+ * byte[] the response as it was sent, i.e. status-line, headers and body
+ * </pre>
+ *
+ * Records are only ever appended while holding the lock of the recorder, a record which
+ * cannot be written completely is removed again, so a file which was not closed properly
+ * contains at most one incomplete record at the end.
+ */
+final class ExchangeRecorder implements Closeable {
+	static final int MAGIC = 0x4D525231;	// "MRR1"
+	static final byte FLAG_CLOSE = 1;
+
+	private final FileChannel file;
+
+	ExchangeRecorder(File file) throws IOException {
+		this.file = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		try {
+			if (this.file.size() == 0) {
+				write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip());
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	static String key(String method, String uri) {
+		return method + " " + uri;
+	}
+
+	/**
+	 * Append one exchange.
+	 *
+	 * @param request The request which was answered
+	 * @param response The complete response as it was sent
+	 * @param closed If the connection was closed after the response
+	 * @throws IOException If writing to the file fails
+	 */
+	void record(MockRequest request, byte[] response, boolean closed) throws IOException {
+		Response parts = new Response();
+		parts.add(ByteBuffer.wrap(response));
+		record(request, parts, closed);
+	}
+
+	/**
+	 * Append one exchange, regions of files in the response are copied from file to file
+	 * without going through the Java heap.
+	 *
+	 * @param request The request which was answered
+	 * @param response The parts of the response as they were sent
+	 * @param closed If the connection was closed after the response
+	 * @throws IOException If writing to the file fails or a region of a file cannot be read anymore
+	 */
+	void record(MockRequest request, Response response, boolean closed) throws IOException {
+		byte[] key = key(request.getMethod(), request.getUri()).getBytes(StandardCharsets.UTF_8);
+		if (response.length > Integer.MAX_VALUE) {
+			throw new IOException("Can only record responses of up to 2GB, but had " + response.length + " bytes");
+		}
+
+		ByteBuffer head = ByteBuffer.allocate(Integer.BYTES + key.length + 1 + Integer.BYTES)
+				.putInt(key.length)
+				.put(key)
+				.put(closed ? FLAG_CLOSE : 0)
+				.putInt((int) response.length)
+				.flip();
+
+		// connections record in parallel, each record needs to be written in one go
+		synchronized (this) {
+			long start = file.size();
+			try {
+				write(head);
+				for (Object part : response.parts) {
+					if (part instanceof FileRegion region) {
+						transfer(region);
+					} else {
+						write(ByteBuffer.wrap((byte[]) part));
+					}
+				}
+			} catch (IOException e) {
+				// do not leave an incomplete record in front of the following ones
+				file.truncate(start);
+				throw e;
+			}
+		}
+	}
+
+	private void transfer(FileRegion region) throws IOException {
+		long position = region.position;
+		long end = region.position + region.count;
+		while (position < end) {
+			long transferred = region.file.transferTo(position, end - position, file);
+			if (transferred <= 0) {
+				throw new IOException("File was truncated, could only record " + (position - region.position) +
+						" of " + region.count + " bytes");
+			}
+			position += transferred;
+		}
+	}
+
+	private void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			file.write(data);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+
+	private record FileRegion(FileChannel file, long position, long count) {
+	}
+
+	/**
+	 * Collects the parts of one response while it is sent. Data from buffers is copied, regions
+	 * of files are only referenced and read when the exchange is recorded, so recording large
+	 * file-backed responses does not need memory for their content.
+	 */
+	static final class Response {
+		// byte[] or FileRegion
+		private final List<Object> parts = new ArrayList<>();
+		private long length;
+
+		/**
+		 * @param data The data to add, the position of the buffer is not changed
+		 */
+		void add(ByteBuffer data) {
+			byte[] bytes = new byte[data.remaining()];
+			data.get(data.position(), bytes);
+			parts.add(bytes);
+			length += bytes.length;
+		}
+
+		/**
+		 * @param file The file which is still open when the exchange is recorded
+		 * @param position The position of the first byte of the region
+		 * @param count The number of bytes of the region
+		 */
+		void add(FileChannel file, long position, long count) {
+			parts.add(new FileRegion(file, position, count));
+			length += count;
+		}
+	}
+}
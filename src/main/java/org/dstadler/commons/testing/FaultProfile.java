@@ -0,0 +1,203 @@
+package org.dstadler.commons.testing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Describes how the {@link MockRESTServer} should misbehave for the requests that a
+ * profile is applied to, i.e. it can simulate a slow or overloaded dependency.
+ *
+ * Supported faults are
+ * <ul>
+ *     <li>a delay before the request is handled</li>
+ *     <li>a delay after the response is prepared and before the first byte is sent (time-to-first-byte)</li>
+ *     <li>a throttled bandwidth when sending the response</li>
+ *     <li>connection resets instead of a response</li>
+ *     <li>bursts of "503 Service Unavailable" responses</li>
+ * </ul>
+ *
+ * All random decisions are drawn from a generator which is seeded via {@link Builder#seed(long)},
+ * so the sequence of faults is the same on every run.
+ *
+ * A profile keeps state, e.g. for the currently running burst of errors, so if the same
+ * instance is applied to multiple routes, they share this state.
+ *
+ * Use it as follows
+ *
+ * <code>
+ server.setFaultProfile("/slow/*", FaultProfile.builder()
+         .delay(LatencyDistribution.logNormal(Duration.ofMillis(20), 0.5))
+         .bandwidth(64 * 1024)
+         .errorBurst(0.01, 5)
+         .seed(42)
+         .build());
+ </code>
+ */
+public final class FaultProfile {
+	/**
+	 * A profile which does not inject any faults.
+	 */
+	public static final FaultProfile NONE = builder().build();
+
+	private final LatencyDistribution delay;
+	private final LatencyDistribution timeToFirstByte;
+	private final long bytesPerSecond;
+	private final double resetProbability;
+	private final double errorBurstProbability;
+	private final int errorBurstLength;
+
+	private final SeededRandom random;
+
+	// number of 503-responses that are still to be sent for the currently running burst
+	private final AtomicInteger remainingErrors = new AtomicInteger();
+
+	private FaultProfile(Builder builder) {
+		this.delay = builder.delay;
+		this.timeToFirstByte = builder.timeToFirstByte;
+		this.bytesPerSecond = builder.bytesPerSecond;
+		this.resetProbability = builder.resetProbability;
+		this.errorBurstProbability = builder.errorBurstProbability;
+		this.errorBurstLength = builder.errorBurstLength;
+		this.random = new SeededRandom(builder.seed);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return The number of nanoseconds to wait before the request is handled.
+	 */
+	long nextDelayNanos() {
+		return delay.nextNanos(random);
+	}
+
+	/**
+	 * @return The number of nanoseconds to wait before the first byte of the response is sent.
+	 */
+	long nextTimeToFirstByteNanos() {
+		return timeToFirstByte.nextNanos(random);
+	}
+
+	/**
+	 * @return The number of bytes per second which the response is limited to, zero for no limit.
+	 */
+	long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return true if the connection should be reset instead of sending a response.
+	 */
+	boolean nextReset() {
+		return resetProbability > 0 && random.nextDouble() < resetProbability;
+	}
+
+	/**
+	 * @return true if a "503 Service Unavailable" should be sent instead of the actual response.
+	 */
+	boolean nextError() {
+		if (errorBurstProbability <= 0) {
+			return false;
+		}
+
+		// continue a burst that is currently running
+		int remaining = remainingErrors.get();
+		while (remaining > 0) {
+			if (remainingErrors.compareAndSet(remaining, remaining - 1)) {
+				return true;
+			}
+			remaining = remainingErrors.get();
+		}
+
+		if (random.nextDouble() < errorBurstProbability) {
+			// this request is the first one of the burst
+			remainingErrors.addAndGet(errorBurstLength - 1);
+			return true;
+		}
+
+		return false;
+	}
+
+	public static final class Builder {
+		private LatencyDistribution delay = LatencyDistribution.NONE;
+		private LatencyDistribution timeToFirstByte = LatencyDistribution.NONE;
+		private long bytesPerSecond;
+		private double resetProbability;
+		private double errorBurstProbability;
+		private int errorBurstLength = 1;
+		private long seed;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param delay Latency which is added before the request is handled, i.e. before
+		 *              the handler of the server is invoked.
+		 * @return This builder
+		 */
+		public Builder delay(LatencyDistribution delay) {
+			this.delay = Validate.notNull(delay, "Delay cannot be null");
+			return this;
+		}
+
+		/**
+		 * @param timeToFirstByte Latency which is added after the response was prepared and
+		 *                        before the first byte of it is sent to the client.
+		 * @return This builder
+		 */
+		public Builder timeToFirstByte(LatencyDistribution timeToFirstByte) {
+			this.timeToFirstByte = Validate.notNull(timeToFirstByte, "Time-to-first-byte cannot be null");
+			return this;
+		}
+
+		/**
+		 * @param bytesPerSecond Limit the bandwidth which is used for sending responses, zero for no limit.
+		 * @return This builder
+		 */
+		public Builder bandwidth(long bytesPerSecond) {
+			Validate.isTrue(bytesPerSecond >= 0, "Bandwidth cannot be negative, but had: %s", bytesPerSecond);
+			this.bytesPerSecond = bytesPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param probability The probability between 0 and 1 that the connection is reset
+		 *                    (TCP RST) instead of sending a response.
+		 * @return This builder
+		 */
+		public Builder resetProbability(double probability) {
+			Validate.isTrue(probability >= 0 && probability <= 1, "Probability needs to be between 0 and 1, but had: %s", probability);
+			this.resetProbability = probability;
+			return this;
+		}
+
+		/**
+		 * @param probability The probability between 0 and 1 that a request starts a burst of
+		 *                    "503 Service Unavailable" responses.
+		 * @param length The number of consecutive requests which are answered with 503 once a burst started.
+		 * @return This builder
+		 */
+		public Builder errorBurst(double probability, int length) {
+			Validate.isTrue(probability >= 0 && probability <= 1, "Probability needs to be between 0 and 1, but had: %s", probability);
+			Validate.isTrue(length > 0, "Length of bursts needs to be positive, but had: %s", length);
+			this.errorBurstProbability = probability;
+			this.errorBurstLength = length;
+			return this;
+		}
+
+		/**
+		 * @param seed The seed for all random decisions of the profile.
+		 * @return This builder
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public FaultProfile build() {
+			return new FaultProfile(this);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package org.dstadler.commons.testing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32C;
+
+/**
+ * Serves the content of a file without copying it into the Java heap.
+ *
+ * The file is opened once when the route is registered. Either it is sent via
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+ * the operating system send the data directly from the page-cache, or it is mapped into
+ * memory and the mapped buffer is written to the socket. Fixed content from memory is kept
+ * in a direct buffer and sent the same way as a mapped file.
+ *
+ * The content is sent with "ETag" and "Last-Modified" headers. Conditional requests via
+ * "If-None-Match" or "If-Modified-Since" are answered with "304 Not Modified" if the content
+ * did not change. Byte-ranges are supported via the "Range" header, multiple ranges are sent as
+ * "multipart/byteranges" and "If-Range" is honored.
+ *
+ * The number of content bytes which were not sent because of conditional or range requests is
+ * reported to the connection, see {@link RouteMetrics#getBytesSaved()}.
+ */
+final class FileResponseHandler implements MockRESTServer.RequestHandler, Closeable {
+	static final String HTTP_PARTIAL_CONTENT = "206 Partial Content";
+	static final String HTTP_NOT_MODIFIED = "304 Not Modified";
+	static final String HTTP_RANGE_NOT_SATISFIABLE = "416 Range Not Satisfiable";
+
+	// more ranges are answered with the full content instead of a multipart body of many tiny parts
+	private static final int MAX_RANGES = 100;
+
+	private static final String BOUNDARY = "MockRESTServer_byteranges_boundary";
+	private static final byte[] LAST_BOUNDARY = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+	private final FileChannel file;
+	private final ByteBuffer mapped;
+	private final long size;
+	private final String mimeType;
+
+	// validators of the content
+	private final String etag;
+	private final Instant lastModified;
+	private final String lastModifiedHeader;
+
+	// status-line and headers of the full response and of "304 Not Modified", encoded once
+	private final byte[] head;
+	private final byte[] notModifiedHead;
+
+	FileResponseHandler(File file, String mimeType, boolean map) throws IOException {
+		this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			this.size = this.file.size();
+			if (map && size > Integer.MAX_VALUE) {
+				throw new IOException("Can only map files of up to 2GB into memory, but had " + size + " bytes for " + file);
+			}
+			this.mapped = map ? this.file.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+		} catch (IOException | RuntimeException e) {
+			this.file.close();
+			throw e;
+		}
+		this.mimeType = mimeType;
+
+		// like common web-servers, the ETag of a file is derived from its modification-time and size
+		this.lastModified = Instant.ofEpochMilli(file.lastModified()).truncatedTo(ChronoUnit.SECONDS);
+		this.etag = "\"" + Long.toHexString(lastModified.getEpochSecond()) + "-" + Long.toHexString(size) + "\"";
+		this.lastModifiedHeader = formatDate(lastModified);
+		this.head = encodeHead();
+		this.notModifiedHead = encodeNotModifiedHead();
+	}
+
+	/**
+	 * @param content The content to send, it is copied into a direct buffer
+	 * @param lastModified The time which is sent as "Last-Modified"
+	 */
+	FileResponseHandler(byte[] content, String mimeType, Instant lastModified) {
+		this.file = null;
+		this.mapped = ByteBuffer.allocateDirect(content.length).put(content).flip().asReadOnlyBuffer();
+		this.size = content.length;
+		this.mimeType = mimeType;
+
+		CRC32C checksum = new CRC32C();
+		checksum.update(content);
+		this.lastModified = lastModified.truncatedTo(ChronoUnit.SECONDS);
+		this.etag = "\"" + Long.toHexString(checksum.getValue()) + "-" + Long.toHexString(size) + "\"";
+		this.lastModifiedHeader = formatDate(this.lastModified);
+		this.head = encodeHead();
+		this.notModifiedHead = encodeNotModifiedHead();
+	}
+
+	private byte[] encodeHead() {
+		return ("HTTP/1.1 200 OK\r\n" +
+				"Content-Type: " + mimeType + "\r\n" +
+				"Content-Length: " + size + "\r\n" +
+				validatorHeaders() +
+				"Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private byte[] encodeNotModifiedHead() {
+		return ("HTTP/1.1 " + HTTP_NOT_MODIFIED + "\r\n" +
+				validatorHeaders()).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private String validatorHeaders() {
+		return "ETag: " + etag + "\r\n" +
+				"Last-Modified: " + lastModifiedHeader + "\r\n";
+	}
+
+	private static String formatDate(Instant instant) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(instant, ZoneOffset.UTC));
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		boolean get = "GET".equals(request.getMethod());
+		if ((get || request.isHead()) && isNotModified(request)) {
+			connection.writeHead(notModifiedHead);
+			connection.contentSaved(size);
+			return;
+		}
+
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader != null && get && isRangeCurrent(request.getHeader("If-Range"))) {
+			List<ByteRange> ranges = ByteRange.parse(rangeHeader, size);
+			if (ranges != null && ranges.isEmpty()) {
+				Properties headers = new Properties();
+				headers.setProperty("Content-Range", "bytes */" + size);
+				connection.sendResponse(request, HTTP_RANGE_NOT_SATISFIABLE, mimeType, headers, new byte[0]);
+				return;
+			}
+
+			if (ranges != null && ranges.size() == 1) {
+				ByteRange range = ranges.get(0);
+				connection.writeHead(("HTTP/1.1 " + HTTP_PARTIAL_CONTENT + "\r\n" +
+						"Content-Type: " + mimeType + "\r\n" +
+						"Content-Length: " + range.getLength() + "\r\n" +
+						"Content-Range: " + range.toContentRange(size) + "\r\n" +
+						validatorHeaders() +
+						"Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				sendBody(connection, range.getStart(), range.getLength());
+				connection.contentSaved(size - range.getLength());
+				return;
+			}
+
+			if (ranges != null && ranges.size() <= MAX_RANGES) {
+				sendMultipleRanges(connection, ranges);
+				return;
+			}
+		}
+
+		connection.writeHead(head);
+		if (!request.isHead()) {
+			sendBody(connection, 0, size);
+		}
+	}
+
+	/**
+	 * Evaluate the pre-conditions of a GET or HEAD request, "If-None-Match" takes precedence over
+	 * "If-Modified-Since" as defined in RFC 9110, section 13.2.2.
+	 */
+	private boolean isNotModified(MockRequest request) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				String trimmed = tag.trim();
+
+				// the weak comparison is used, so a weak tag matches as well
+				if ("*".equals(trimmed) || etag.equals(trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Instant since = parseDate(request.getHeader("If-Modified-Since"));
+		return since != null && !lastModified.isAfter(since);
+	}
+
+	/**
+	 * @return true if the ranges should be sent, i.e. if there is no "If-Range" header or if it
+	 * 		matches the current content.
+	 */
+	private boolean isRangeCurrent(String ifRange) {
+		if (ifRange == null) {
+			return true;
+		}
+
+		String trimmed = ifRange.trim();
+		if (trimmed.startsWith("\"") || trimmed.startsWith("W/")) {
+			// the strong comparison is required here
+			return etag.equals(trimmed);
+		}
+
+		Instant date = parseDate(trimmed);
+		return lastModified.equals(date);
+	}
+
+	/**
+	 * @return The parsed date or null if the value is missing or invalid, which means that the header is ignored.
+	 */
+	private static Instant parseDate(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Send the ranges as parts of a "multipart/byteranges" body, see RFC 9110, section 14.6.
+	 */
+	private void sendMultipleRanges(HttpConnection connection, List<ByteRange> ranges) throws IOException {
+		byte[][] partHeads = new byte[ranges.size()][];
+		long length = LAST_BOUNDARY.length;
+		long sent = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			partHeads[i] = ((i == 0 ? "" : "\r\n") + "--" + BOUNDARY + "\r\n" +
+					"Content-Type: " + mimeType + "\r\n" +
+					"Content-Range: " + range.toContentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			length += partHeads[i].length + range.getLength();
+			sent += range.getLength();
+		}
+
+		connection.writeHead(("HTTP/1.1 " + HTTP_PARTIAL_CONTENT + "\r\n" +
+				"Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n" +
+				"Content-Length: " + length + "\r\n" +
+				validatorHeaders() +
+				"Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			connection.write(ByteBuffer.wrap(partHeads[i]));
+			sendBody(connection, range.getStart(), range.getLength());
+		}
+		connection.write(ByteBuffer.wrap(LAST_BOUNDARY));
+
+		// overlapping ranges can send more than the full content
+		connection.contentSaved(Math.max(0, size - sent));
+	}
+
+	private void sendBody(HttpConnection connection, long position, long count) throws IOException {
+		if (mapped == null) {
+			connection.transferFrom(file, position, count);
+		} else {
+			connection.write(mapped.slice((int) position, (int) count));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package org.dstadler.commons.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Header compression of HTTP/2 as defined in RFC 7541.
+ *
+ * Only what the {@link MockRESTServer} needs is implemented: the decoder supports the full
+ * format including the dynamic table and Huffman-coded strings, the encoder only produces
+ * literals without indexing and without Huffman-coding, which every decoder has to accept.
+ */
+final class Hpack {
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" },
+			{ ":method", "GET" },
+			{ ":method", "POST" },
+			{ ":path", "/" },
+			{ ":path", "/index.html" },
+			{ ":scheme", "http" },
+			{ ":scheme", "https" },
+			{ ":status", "200" },
+			{ ":status", "204" },
+			{ ":status", "206" },
+			{ ":status", "304" },
+			{ ":status", "400" },
+			{ ":status", "404" },
+			{ ":status", "500" },
+			{ "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" },
+			{ "accept-language", "" },
+			{ "accept-ranges", "" },
+			{ "accept", "" },
+			{ "access-control-allow-origin", "" },
+			{ "age", "" },
+			{ "allow", "" },
+			{ "authorization", "" },
+			{ "cache-control", "" },
+			{ "content-disposition", "" },
+			{ "content-encoding", "" },
+			{ "content-language", "" },
+			{ "content-length", "" },
+			{ "content-location", "" },
+			{ "content-range", "" },
+			{ "content-type", "" },
+			{ "cookie", "" },
+			{ "date", "" },
+			{ "etag", "" },
+			{ "expect", "" },
+			{ "expires", "" },
+			{ "from", "" },
+			{ "host", "" },
+			{ "if-match", "" },
+			{ "if-modified-since", "" },
+			{ "if-none-match", "" },
+			{ "if-range", "" },
+			{ "if-unmodified-since", "" },
+			{ "last-modified", "" },
+			{ "link", "" },
+			{ "location", "" },
+			{ "max-forwards", "" },
+			{ "proxy-authenticate", "" },
+			{ "proxy-authorization", "" },
+			{ "range", "" },
+			{ "referer", "" },
+			{ "refresh", "" },
+			{ "retry-after", "" },
+			{ "server", "" },
+			{ "set-cookie", "" },
+			{ "strict-transport-security", "" },
+			{ "transfer-encoding", "" },
+			{ "user-agent", "" },
+			{ "vary", "" },
+			{ "via", "" },
+			{ "www-authenticate", "" },
+	};
+
+	// index of ":status" in the static table
+	private static final int STATUS_INDEX = 8;
+
+	// length of the Huffman code of each symbol, the last one is EOS, see RFC 7541, Appendix B.
+	// The codes are canonical, i.e. they can be computed from the lengths.
+	private static final byte[] HUFFMAN_CODE_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30,
+	};
+	private static final int EOS = 256;
+
+	// binary tree for decoding, each node has two entries for the children, positive values are
+	// the index of the next node, negative values a decoded symbol as -(symbol + 1)
+	private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+	private Hpack() {
+	}
+
+	private static int[] buildHuffmanTree() {
+		// sort the symbols by length of their code, symbols with the same length keep their order
+		List<Integer> symbols = new ArrayList<>();
+		for (int length = 1; length <= 30; length++) {
+			for (int symbol = 0; symbol < HUFFMAN_CODE_LENGTHS.length; symbol++) {
+				if (HUFFMAN_CODE_LENGTHS[symbol] == length) {
+					symbols.add(symbol);
+				}
+			}
+		}
+
+		int[] tree = new int[2 * 2 * HUFFMAN_CODE_LENGTHS.length];
+		int nodes = 1;
+		int code = 0;
+		int previousLength = HUFFMAN_CODE_LENGTHS[symbols.get(0)];
+		for (int i = 0; i < symbols.size(); i++) {
+			int symbol = symbols.get(i);
+			int length = HUFFMAN_CODE_LENGTHS[symbol];
+			if (i > 0) {
+				code = (code + 1) << (length - previousLength);
+			}
+			previousLength = length;
+
+			// walk the bits of the code from the most significant one, creating missing nodes
+			int node = 0;
+			for (int bit = length - 1; bit > 0; bit--) {
+				int slot = node * 2 + ((code >>> bit) & 1);
+				if (tree[slot] == 0) {
+					tree[slot] = nodes++;
+				}
+				node = tree[slot];
+			}
+			tree[node * 2 + (code & 1)] = -(symbol + 1);
+		}
+
+		return tree;
+	}
+
+	static String decodeHuffman(byte[] data, int offset, int length) throws IOException {
+		StringBuilder result = new StringBuilder(length * 2);
+		int node = 0;
+		int bitsInNode = 0;
+		boolean allOnes = true;
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int value = (b >>> bit) & 1;
+				allOnes &= value == 1;
+				bitsInNode++;
+
+				int next = HUFFMAN_TREE[node * 2 + value];
+				if (next < 0) {
+					int symbol = -next - 1;
+					if (symbol == EOS) {
+						throw new IOException("Huffman-coded string contains EOS");
+					}
+					result.append((char) symbol);
+					node = 0;
+					bitsInNode = 0;
+					allOnes = true;
+				} else if (next == 0) {
+					throw new IOException("Invalid Huffman-code in string");
+				} else {
+					node = next;
+				}
+			}
+		}
+
+		// the padding needs to be a prefix of EOS, i.e. all ones and shorter than a byte
+		if (bitsInNode > 7 || !allOnes) {
+			throw new IOException("Invalid padding of Huffman-coded string");
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Encode the given header as literal without indexing.
+	 */
+	static void encodeHeader(ByteArrayOutputStream out, String name, String value) {
+		out.write(0);
+		encodeString(out, name);
+		encodeString(out, value);
+	}
+
+	/**
+	 * Encode the ":status" pseudo-header, using the name from the static table.
+	 */
+	static void encodeStatus(ByteArrayOutputStream out, int status) {
+		// literal without indexing, indexed name
+		encodeInteger(out, 0, 4, STATUS_INDEX);
+		encodeString(out, Integer.toString(status));
+	}
+
+	private static void encodeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+		encodeInteger(out, 0, 7, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	static void encodeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+
+		out.write(flags | max);
+		int remaining = value - max;
+		while (remaining >= 0x80) {
+			out.write((remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		out.write(remaining);
+	}
+
+	/**
+	 * Decodes header blocks of one connection, keeping the dynamic table between them.
+	 */
+	static final class Decoder {
+		// newest entry first
+		private final Deque<String[]> dynamicTable = new ArrayDeque<>();
+		private final int maxTableSize;
+		private int tableSizeLimit;
+		private int tableSize;
+
+		private byte[] data;
+		private int position;
+		private int end;
+
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.tableSizeLimit = maxTableSize;
+		}
+
+		/**
+		 * @param block A complete header block
+		 * @return The headers as pairs of name and value, in the order of the block
+		 * @throws IOException If the block is not valid
+		 */
+		List<String[]> decode(byte[] block) throws IOException {
+			data = block;
+			position = 0;
+			end = block.length;
+
+			List<String[]> headers = new ArrayList<>();
+			while (position < end) {
+				int b = data[position] & 0xff;
+				if ((b & 0x80) != 0) {
+					// indexed header field
+					String[] entry = entry(decodeInteger(7));
+					headers.add(new String[] { entry[0], entry[1] });
+				} else if ((b & 0x40) != 0) {
+					// literal with incremental indexing
+					String[] header = decodeLiteral(6);
+					add(header);
+					headers.add(header);
+				} else if ((b & 0x20) != 0) {
+					// dynamic table size update
+					int size = decodeInteger(5);
+					if (size > maxTableSize) {
+						throw new IOException("Dynamic table size update to " + size + " exceeds the maximum of " + maxTableSize);
+					}
+					tableSizeLimit = size;
+					evict();
+				} else {
+					// literal without indexing or never indexed
+					headers.add(decodeLiteral(4));
+				}
+			}
+
+			return headers;
+		}
+
+		private String[] decodeLiteral(int prefixBits) throws IOException {
+			int index = decodeInteger(prefixBits);
+			String name = index == 0 ? decodeString() : entry(index)[0];
+			return new String[] { name, decodeString() };
+		}
+
+		private String[] entry(int index) throws IOException {
+			if (index <= 0) {
+				throw new IOException("Invalid index " + index + " in header block");
+			}
+			if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+
+			int dynamicIndex = index - STATIC_TABLE.length - 1;
+			if (dynamicIndex >= dynamicTable.size()) {
+				throw new IOException("Invalid index " + index + " in header block, dynamic table has " + dynamicTable.size() + " entries");
+			}
+			Iterator<String[]> it = dynamicTable.iterator();
+			for (int i = 0; i < dynamicIndex; i++) {
+				it.next();
+			}
+			return it.next();
+		}
+
+		private void add(String[] header) {
+			dynamicTable.addFirst(header);
+			tableSize += size(header);
+			evict();
+		}
+
+		private void evict() {
+			while (tableSize > tableSizeLimit && !dynamicTable.isEmpty()) {
+				tableSize -= size(dynamicTable.removeLast());
+			}
+		}
+
+		private static int size(String[] header) {
+			return header[0].length() + header[1].length() + 32;
+		}
+
+		private int decodeInteger(int prefixBits) throws IOException {
+			int max = (1 << prefixBits) - 1;
+			int value = data[position++] & max;
+			if (value < max) {
+				return value;
+			}
+
+			int shift = 0;
+			while (true) {
+				if (position >= end) {
+					throw new IOException("Header block ends inside of an integer");
+				}
+				int b = data[position++] & 0xff;
+				value += (b & 0x7f) << shift;
+				if (value < 0 || shift > 28) {
+					throw new IOException("Integer in header block is too large");
+				}
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+				shift += 7;
+			}
+		}
+
+		private String decodeString() throws IOException {
+			if (position >= end) {
+				throw new IOException("Header block ends before a string");
+			}
+			boolean huffman = (data[position] & 0x80) != 0;
+			int length = decodeInteger(7);
+			if (length > end - position) {
+				throw new IOException("String of length " + length + " exceeds the header block");
+			}
+
+			String value = huffman
+					? decodeHuffman(data, position, length)
+					: new String(data, position, length, StandardCharsets.ISO_8859_1);
+			position += length;
+			return value;
+		}
+	}
+}
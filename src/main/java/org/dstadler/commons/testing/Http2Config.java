@@ -0,0 +1,120 @@
+package org.dstadler.commons.testing;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Settings for HTTP/2 connections of the {@link MockRESTServer}, see
+ * {@link MockRESTServer#enableHttp2(Http2Config)}.
+ *
+ * Small windows or a low number of concurrent streams allow to test how clients
+ * behave when they are limited by flow-control of the server.
+ *
+ * <code>
+ server.enableHttp2(Http2Config.builder()
+         .maxConcurrentStreams(10)
+         .initialWindowSize(16 * 1024)
+         .build());
+ </code>
+ */
+public final class Http2Config {
+	// the initial window of a connection cannot be changed via SETTINGS, only increased via WINDOW_UPDATE
+	static final int DEFAULT_WINDOW_SIZE = 65_535;
+	static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+	private static final int MAX_MAX_FRAME_SIZE = 16_777_215;
+
+	/**
+	 * The default settings of HTTP/2, except for allowing 100 concurrent streams.
+	 */
+	public static final Http2Config DEFAULT = builder().build();
+
+	private final int maxConcurrentStreams;
+	private final int initialWindowSize;
+	private final int connectionWindowSize;
+	private final int maxFrameSize;
+
+	private Http2Config(Builder builder) {
+		this.maxConcurrentStreams = builder.maxConcurrentStreams;
+		this.initialWindowSize = builder.initialWindowSize;
+		this.connectionWindowSize = builder.connectionWindowSize;
+		this.maxFrameSize = builder.maxFrameSize;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	int getMaxConcurrentStreams() {
+		return maxConcurrentStreams;
+	}
+
+	int getInitialWindowSize() {
+		return initialWindowSize;
+	}
+
+	int getConnectionWindowSize() {
+		return connectionWindowSize;
+	}
+
+	int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public static final class Builder {
+		private int maxConcurrentStreams = 100;
+		private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+		private int connectionWindowSize = DEFAULT_WINDOW_SIZE;
+		private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param maxConcurrentStreams The number of streams that a client may open in parallel on one
+		 *                             connection, additional streams are refused.
+		 * @return This builder
+		 */
+		public Builder maxConcurrentStreams(int maxConcurrentStreams) {
+			Validate.isTrue(maxConcurrentStreams >= 0, "Maximum of concurrent streams cannot be negative, but had: %s", maxConcurrentStreams);
+			this.maxConcurrentStreams = maxConcurrentStreams;
+			return this;
+		}
+
+		/**
+		 * @param initialWindowSize The number of bytes of a request body which a client may send on a
+		 *                          stream before the server consumed them.
+		 * @return This builder
+		 */
+		public Builder initialWindowSize(int initialWindowSize) {
+			Validate.isTrue(initialWindowSize >= 0, "Window size cannot be negative, but had: %s", initialWindowSize);
+			this.initialWindowSize = initialWindowSize;
+			return this;
+		}
+
+		/**
+		 * @param connectionWindowSize The number of bytes which a client may send on all streams of one
+		 *                             connection before the server consumed them, at least 65535.
+		 * @return This builder
+		 */
+		public Builder connectionWindowSize(int connectionWindowSize) {
+			Validate.isTrue(connectionWindowSize >= DEFAULT_WINDOW_SIZE, "Connection window size needs to be at least %s, but had: %s",
+					DEFAULT_WINDOW_SIZE, connectionWindowSize);
+			this.connectionWindowSize = connectionWindowSize;
+			return this;
+		}
+
+		/**
+		 * @param maxFrameSize The largest frame which the client may send, between 16384 and 16777215.
+		 * @return This builder
+		 */
+		public Builder maxFrameSize(int maxFrameSize) {
+			Validate.isTrue(maxFrameSize >= DEFAULT_MAX_FRAME_SIZE && maxFrameSize <= MAX_MAX_FRAME_SIZE,
+					"Maximum frame size needs to be between %s and %s, but had: %s", DEFAULT_MAX_FRAME_SIZE, MAX_MAX_FRAME_SIZE, maxFrameSize);
+			this.maxFrameSize = maxFrameSize;
+			return this;
+		}
+
+		public Http2Config build() {
+			return new Http2Config(this);
+		}
+	}
+}
@@ -0,0 +1,611 @@
+package org.dstadler.commons.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A HTTP/2 connection without TLS ("h2c"), either started with prior knowledge or
+ * via an upgrade from HTTP/1.1, see RFC 9113.
+ *
+ * Frames are read on the thread of the {@link HttpConnection}, each stream is handled on its
+ * own virtual thread by the same handlers as HTTP/1.1 requests. The responses which the handlers
+ * write are converted to HEADERS and DATA frames by {@link Http2Stream}.
+ *
+ * Flow-control is applied in both directions: data of responses is only sent as far as the
+ * windows of the client allow, request bodies are acknowledged when the handler reads them.
+ */
+final class Http2Connection {
+	private static final Logger log = Logger.getLogger(Http2Connection.class.getName());
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	// the part of the preface after the request-line and the empty line, which are read as HTTP/1.1 request
+	private static final int PREFACE_REMAINDER = 6;
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	static final int TYPE_DATA = 0;
+	static final int TYPE_HEADERS = 1;
+	static final int TYPE_PRIORITY = 2;
+	static final int TYPE_RST_STREAM = 3;
+	static final int TYPE_SETTINGS = 4;
+	static final int TYPE_PUSH_PROMISE = 5;
+	static final int TYPE_PING = 6;
+	static final int TYPE_GOAWAY = 7;
+	static final int TYPE_WINDOW_UPDATE = 8;
+	static final int TYPE_CONTINUATION = 9;
+
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	// how long closing the connection waits for streams which are still running
+	private static final long STREAM_SHUTDOWN_TIMEOUT_MS = 10_000;
+
+	private final MockRESTServer server;
+	private final HttpConnection connection;
+	private final SocketChannel channel;
+	private final InputStream input;
+	private final Http2Config config;
+
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+	private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+	private int lastStreamId;
+	private boolean goingAway;
+
+	// frames of different streams must not be interleaved
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// windows for sending, changed by WINDOW_UPDATE and SETTINGS of the client
+	private final ReentrantLock flowLock = new ReentrantLock();
+	private final Condition windowUpdated = flowLock.newCondition();
+	private long sendWindow = Http2Config.DEFAULT_WINDOW_SIZE;
+	private int peerInitialWindowSize = Http2Config.DEFAULT_WINDOW_SIZE;
+	private volatile int peerMaxFrameSize = Http2Config.DEFAULT_MAX_FRAME_SIZE;
+	private volatile boolean closed;
+
+	// bytes of DATA frames which were received, but not yet acknowledged via WINDOW_UPDATE
+	private long unacknowledged;
+
+	Http2Connection(MockRESTServer server, HttpConnection connection, SocketChannel channel, InputStream input, Http2Config config) {
+		this.server = server;
+		this.connection = connection;
+		this.channel = channel;
+		this.input = input;
+		this.config = config;
+	}
+
+	/**
+	 * Handle the connection until the client closes it or the server is shut down.
+	 *
+	 * @param upgradeRequest The HTTP/1.1 request which upgraded the connection or null if the
+	 *                       client started with HTTP/2 directly.
+	 * @throws IOException If reading or writing fails
+	 */
+	void run(MockRequest upgradeRequest) throws IOException {
+		try {
+			writeSettings();
+			if (config.getConnectionWindowSize() > Http2Config.DEFAULT_WINDOW_SIZE) {
+				writeWindowUpdate(0, config.getConnectionWindowSize() - Http2Config.DEFAULT_WINDOW_SIZE);
+			}
+
+			if (upgradeRequest == null) {
+				readPreface(PREFACE.length - PREFACE_REMAINDER);
+			} else {
+				applySettings(Base64.getUrlDecoder().decode(upgradeRequest.getHeader("HTTP2-Settings").trim()));
+
+				// the request of the upgrade is answered on stream 1, its body was empty
+				lastStreamId = 1;
+				Http2Stream stream = new Http2Stream(this, 1, initialSendWindow(), config.getInitialWindowSize());
+				stream.endOfRequest();
+				start(stream, upgradeRequest);
+
+				readPreface(0);
+			}
+
+			readFrames();
+		} catch (ConnectionError e) {
+			log.log(Level.FINE, "Closing HTTP/2 connection because of a protocol error", e);
+			writeGoAway(e.errorCode, e.getMessage());
+		} finally {
+			closed = true;
+			stopStreams();
+		}
+	}
+
+	private void readPreface(int offset) throws IOException {
+		byte[] preface = new byte[PREFACE.length - offset];
+		if (!readFully(preface)) {
+			throw new EOFException("Connection closed before the HTTP/2 preface was received");
+		}
+		if (!Arrays.equals(preface, 0, preface.length, PREFACE, offset, PREFACE.length)) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid HTTP/2 connection preface");
+		}
+	}
+
+	private void readFrames() throws IOException {
+		byte[] header = new byte[FRAME_HEADER_LENGTH];
+		while (readFully(header)) {
+			int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			int type = header[3] & 0xff;
+			int flags = header[4] & 0xff;
+			int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff;
+
+			if (length > config.getMaxFrameSize()) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the maximum frame size");
+			}
+			byte[] payload = new byte[length];
+			if (!readFully(payload)) {
+				throw new EOFException("Connection closed inside of a frame");
+			}
+
+			switch (type) {
+				case TYPE_DATA:
+					onData(streamId, flags, payload);
+					break;
+				case TYPE_HEADERS:
+					onHeaders(streamId, flags, payload);
+					break;
+				case TYPE_RST_STREAM:
+					Http2Stream stream = streams.get(streamId);
+					if (stream != null) {
+						stream.cancel("Stream was reset by the client", false);
+					}
+					break;
+				case TYPE_SETTINGS:
+					if ((flags & FLAG_ACK) == 0) {
+						applySettings(payload);
+						writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+					}
+					break;
+				case TYPE_PING:
+					if ((flags & FLAG_ACK) == 0) {
+						writeFrame(TYPE_PING, FLAG_ACK, 0, ByteBuffer.wrap(payload));
+					}
+					break;
+				case TYPE_GOAWAY:
+					// let running streams finish, but do not accept new ones
+					goingAway = true;
+					break;
+				case TYPE_WINDOW_UPDATE:
+					onWindowUpdate(streamId, payload);
+					break;
+				case TYPE_PUSH_PROMISE:
+				case TYPE_CONTINUATION:
+					throw new ConnectionError(PROTOCOL_ERROR, "Unexpected frame of type " + type);
+				default:
+					// PRIORITY and unknown frames are ignored
+					break;
+			}
+		}
+	}
+
+	private void onData(int streamId, int flags, byte[] payload) throws IOException {
+		int padding = padding(flags, payload);
+
+		// the window of the connection is released immediately, so a stream whose handler
+		// does not read the body cannot block the other streams
+		if (payload.length > 0) {
+			unacknowledged += payload.length;
+			if (unacknowledged >= config.getConnectionWindowSize() / 2) {
+				writeWindowUpdate(0, (int) unacknowledged);
+				unacknowledged = 0;
+			}
+		}
+
+		Http2Stream stream = streams.get(streamId);
+		if (stream == null) {
+			// the stream was refused or is finished already
+			return;
+		}
+
+		stream.received(payload, padding > 0 ? 1 : 0, payload.length - padding - (padding > 0 ? 1 : 0));
+		if ((flags & FLAG_END_STREAM) != 0) {
+			stream.endOfRequest();
+		}
+	}
+
+	private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+		int padding = padding(flags, payload);
+		int offset = (padding > 0 ? 1 : 0) + ((flags & FLAG_PRIORITY) != 0 ? 5 : 0);
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		block.write(payload, offset, payload.length - offset - padding);
+
+		// a header block can be continued in CONTINUATION frames which follow directly
+		int headerFlags = flags;
+		byte[] header = new byte[FRAME_HEADER_LENGTH];
+		while ((headerFlags & FLAG_END_HEADERS) == 0) {
+			if (!readFully(header)) {
+				throw new EOFException("Connection closed inside of a header block");
+			}
+			int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			if (header[3] != TYPE_CONTINUATION || (ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff) != streamId) {
+				throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION frame for stream " + streamId);
+			}
+			if (length > config.getMaxFrameSize()) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the maximum frame size");
+			}
+
+			byte[] continuation = new byte[length];
+			if (!readFully(continuation)) {
+				throw new EOFException("Connection closed inside of a header block");
+			}
+			block.write(continuation, 0, continuation.length);
+			headerFlags = header[4];
+		}
+
+		// the block always needs to be decoded to keep the dynamic table in sync with the client
+		final List<String[]> headers;
+		try {
+			headers = decoder.decode(block.toByteArray());
+		} catch (IOException e) {
+			throw new ConnectionError(COMPRESSION_ERROR, "Could not decode header block: " + e.getMessage());
+		}
+
+		Http2Stream existing = streams.get(streamId);
+		if (existing != null) {
+			// trailers of the request body
+			if ((flags & FLAG_END_STREAM) != 0) {
+				existing.endOfRequest();
+			}
+			return;
+		}
+		if (streamId % 2 == 0 || streamId <= lastStreamId) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid id " + streamId + " for a new stream, last one was " + lastStreamId);
+		}
+		lastStreamId = streamId;
+
+		if (goingAway || streams.size() >= config.getMaxConcurrentStreams()) {
+			writeRstStream(streamId, REFUSED_STREAM);
+			return;
+		}
+
+		Http2Stream stream = new Http2Stream(this, streamId, initialSendWindow(), config.getInitialWindowSize());
+		stream.received(block.size());
+		if ((flags & FLAG_END_STREAM) != 0) {
+			stream.endOfRequest();
+		}
+		start(stream, toRequest(headers, stream));
+	}
+
+	private static MockRequest toRequest(List<String[]> headers, Http2Stream stream) throws ConnectionError {
+		String method = null;
+		String path = null;
+		String authority = null;
+		Map<String, String> fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (String[] header : headers) {
+			switch (header[0]) {
+				case ":method":
+					method = header[1];
+					break;
+				case ":path":
+					path = header[1];
+					break;
+				case ":authority":
+					authority = header[1];
+					break;
+				case ":scheme":
+					break;
+				case "cookie":
+					fields.merge(header[0], header[1], (existing, added) -> existing + "; " + added);
+					break;
+				default:
+					fields.merge(header[0], header[1], (existing, added) -> existing + ", " + added);
+					break;
+			}
+		}
+
+		if (method == null || path == null) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Request without :method or :path on stream " + stream.getId());
+		}
+		if (authority != null) {
+			fields.putIfAbsent("Host", authority);
+		}
+
+		return new MockRequest(method, path, "HTTP/2.0", fields, stream.getRequestBody());
+	}
+
+	private void start(Http2Stream stream, MockRequest request) {
+		connection.http2RequestReceived();
+		streams.put(stream.getId(), stream);
+
+		stream.start(Thread.ofVirtual().name("MockRESTServer-" + server.getPort() + "-h2-stream-" + stream.getId()), () -> {
+			try {
+				stream.setRequest(request);
+				new HttpConnection(server, stream).exchange(request, 0);
+				stream.finish();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Failed to handle stream " + stream.getId(), e);
+				resetQuietly(stream);
+			} finally {
+				streams.remove(stream.getId());
+			}
+		});
+	}
+
+	private static void resetQuietly(Http2Stream stream) {
+		try {
+			stream.reset(INTERNAL_ERROR);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not reset stream " + stream.getId(), e);
+		}
+	}
+
+	private void stopStreams() {
+		for (Http2Stream stream : streams.values()) {
+			stream.cancel("Connection was closed", true);
+		}
+
+		try {
+			for (Http2Stream stream : new ArrayList<>(streams.values())) {
+				stream.join(STREAM_SHUTDOWN_TIMEOUT_MS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int padding(int flags, byte[] payload) throws ConnectionError {
+		if ((flags & FLAG_PADDED) == 0) {
+			return 0;
+		}
+		if (payload.length == 0 || (payload[0] & 0xff) >= payload.length) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+		}
+		return payload[0] & 0xff;
+	}
+
+	private void applySettings(byte[] payload) throws IOException {
+		if (payload.length % 6 != 0) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid length of SETTINGS frame: " + payload.length);
+		}
+
+		ByteBuffer settings = ByteBuffer.wrap(payload);
+		while (settings.hasRemaining()) {
+			int id = settings.getShort() & 0xffff;
+			int value = settings.getInt();
+			if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+				if (value < 0) {
+					throw new ConnectionError(PROTOCOL_ERROR, "Invalid initial window size " + (value & 0xffffffffL));
+				}
+
+				// the difference applies to the windows of all open streams
+				flowLock.lock();
+				try {
+					int delta = value - peerInitialWindowSize;
+					peerInitialWindowSize = value;
+					for (Http2Stream stream : streams.values()) {
+						stream.sendWindow += delta;
+					}
+					windowUpdated.signalAll();
+				} finally {
+					flowLock.unlock();
+				}
+			} else if (id == SETTINGS_MAX_FRAME_SIZE) {
+				peerMaxFrameSize = value;
+			}
+		}
+	}
+
+	private int initialSendWindow() {
+		flowLock.lock();
+		try {
+			return peerInitialWindowSize;
+		} finally {
+			flowLock.unlock();
+		}
+	}
+
+	private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+		if (payload.length != 4) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid length of WINDOW_UPDATE frame: " + payload.length);
+		}
+		int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+
+		flowLock.lock();
+		try {
+			if (streamId == 0) {
+				sendWindow += increment;
+			} else {
+				Http2Stream stream = streams.get(streamId);
+				if (stream != null) {
+					stream.sendWindow += increment;
+				}
+			}
+			windowUpdated.signalAll();
+		} finally {
+			flowLock.unlock();
+		}
+	}
+
+	void signalWindowUpdate() {
+		flowLock.lock();
+		try {
+			windowUpdated.signalAll();
+		} finally {
+			flowLock.unlock();
+		}
+	}
+
+	/**
+	 * Send data of a response, waiting until the windows of the connection and the stream allow it.
+	 */
+	void writeData(Http2Stream stream, ByteBuffer data, boolean endStream) throws IOException {
+		if (!data.hasRemaining()) {
+			if (endStream) {
+				writeFrame(TYPE_DATA, FLAG_END_STREAM, stream.getId(), data);
+			}
+			return;
+		}
+
+		while (data.hasRemaining()) {
+			int length;
+			flowLock.lock();
+			try {
+				while (!stream.isCancelled() && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+					windowUpdated.await();
+				}
+				if (stream.isCancelled()) {
+					throw new IOException("Stream " + stream.getId() + " was reset: " + stream.getCancelReason());
+				}
+
+				length = (int) Math.min(Math.min(data.remaining(), peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+				sendWindow -= length;
+				stream.sendWindow -= length;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the flow-control window of stream " + stream.getId());
+			} finally {
+				flowLock.unlock();
+			}
+
+			ByteBuffer frame = data.slice(data.position(), length);
+			data.position(data.position() + length);
+			writeFrame(TYPE_DATA, endStream && !data.hasRemaining() ? FLAG_END_STREAM : 0, stream.getId(), frame);
+		}
+	}
+
+	/**
+	 * Send a header block, split into HEADERS and CONTINUATION frames if it is larger than a frame.
+	 */
+	void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+		int maxFrameSize = peerMaxFrameSize;
+		writeLock.lock();
+		try {
+			int offset = 0;
+			int type = TYPE_HEADERS;
+			int flags = endStream ? FLAG_END_STREAM : 0;
+			do {
+				int length = Math.min(block.length - offset, maxFrameSize);
+				boolean last = offset + length == block.length;
+				writeFrame(type, flags | (last ? FLAG_END_HEADERS : 0), streamId, ByteBuffer.wrap(block, offset, length));
+
+				offset += length;
+				type = TYPE_CONTINUATION;
+				flags = 0;
+			} while (offset < block.length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	void writeWindowUpdate(int streamId, int increment) throws IOException {
+		writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(0, increment));
+	}
+
+	void writeRstStream(int streamId, int errorCode) throws IOException {
+		writeFrame(TYPE_RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(0, errorCode));
+	}
+
+	private void writeSettings() throws IOException {
+		ByteBuffer settings = ByteBuffer.allocate(18)
+				.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(config.getMaxConcurrentStreams())
+				.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(config.getInitialWindowSize())
+				.putShort((short) SETTINGS_MAX_FRAME_SIZE).putInt(config.getMaxFrameSize())
+				.flip();
+		writeFrame(TYPE_SETTINGS, 0, 0, settings);
+	}
+
+	private void writeGoAway(int errorCode, String message) {
+		byte[] debug = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+		try {
+			writeFrame(TYPE_GOAWAY, 0, 0, ByteBuffer.allocate(8 + debug.length)
+					.putInt(lastStreamId).putInt(errorCode).put(debug).flip());
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not send GOAWAY", e);
+		}
+	}
+
+	private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH)
+				.put((byte) (payload.remaining() >>> 16))
+				.put((byte) (payload.remaining() >>> 8))
+				.put((byte) payload.remaining())
+				.put((byte) type)
+				.put((byte) flags)
+				.putInt(streamId)
+				.flip();
+
+		writeLock.lock();
+		try {
+			long remaining = header.remaining() + payload.remaining();
+			ByteBuffer[] buffers = { header, payload };
+			while (remaining > 0) {
+				remaining -= channel.write(buffers);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private boolean readFully(byte[] bytes) throws IOException {
+		int read = 0;
+		while (read < bytes.length) {
+			int count = input.read(bytes, read, bytes.length - read);
+			if (count == -1) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("Connection closed inside of a frame");
+			}
+			read += count;
+		}
+		return true;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * An error which requires closing the whole connection with GOAWAY.
+	 */
+	private static final class ConnectionError extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int errorCode;
+
+		private ConnectionError(int errorCode, String message) {
+			super(message);
+			this.errorCode = errorCode;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HTTP/2 connection on port " + server.getPort() + " with " + streams.size() + " active streams, " +
+				"last stream " + lastStreamId + (closed ? ", closed" : "");
+	}
+}
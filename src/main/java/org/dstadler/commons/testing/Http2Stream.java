@@ -0,0 +1,465 @@
+package org.dstadler.commons.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One stream of a {@link Http2Connection}.
+ *
+ * The handlers of the {@link MockRESTServer} write HTTP/1.1 responses, the stream acts as the
+ * channel which they are written to and converts the status-line and headers to a HEADERS frame
+ * and the body to DATA frames. Chunked bodies are unwrapped, so they arrive at the client unchanged.
+ *
+ * The request body is provided as {@link InputStream}, which is filled by the thread that reads
+ * the frames of the connection.
+ */
+final class Http2Stream implements GatheringByteChannel {
+	// headers which are specific to a HTTP/1.1 connection and not allowed in HTTP/2
+	private static final Set<String> CONNECTION_HEADERS = Set.of(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+	private static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+	private enum State {
+		HEAD, FIXED, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_END, DONE
+	}
+
+	private final Http2Connection connection;
+	private final int id;
+	private final int receiveWindow;
+	private final RequestBody requestBody = new RequestBody();
+
+	// window for sending DATA, guarded by the flow-control lock of the connection
+	long sendWindow;
+
+	private volatile Thread thread;
+	private volatile String cancelReason;
+	private volatile long bytesReceived;
+
+	// state of the conversion of the response, only used by the thread of the stream
+	private boolean headRequest;
+	private State state = State.HEAD;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private long remaining;
+
+	Http2Stream(Http2Connection connection, int id, int sendWindow, int receiveWindow) {
+		this.connection = connection;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		this.receiveWindow = receiveWindow;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	void start(Thread.Builder threadBuilder, Runnable runnable) {
+		thread = threadBuilder.start(runnable);
+	}
+
+	void join(long timeoutMillis) throws InterruptedException {
+		Thread t = thread;
+		if (t != null) {
+			t.join(timeoutMillis);
+		}
+	}
+
+	void setRequest(MockRequest request) {
+		this.headRequest = request.isHead();
+	}
+
+	InputStream getRequestBody() {
+		return requestBody;
+	}
+
+	/**
+	 * @return The number of bytes of headers and body which were received for this stream.
+	 */
+	long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Count the bytes of the header block of the request.
+	 */
+	void received(int headerBytes) {
+		bytesReceived += headerBytes;
+	}
+
+	/**
+	 * Add data of the request body, only called by the thread which reads the frames.
+	 */
+	void received(byte[] data, int offset, int length) {
+		bytesReceived += length;
+		requestBody.add(data, offset, length);
+	}
+
+	/**
+	 * The client sent END_STREAM, the request body is complete.
+	 */
+	void endOfRequest() {
+		requestBody.complete(null);
+	}
+
+	boolean isCancelled() {
+		return cancelReason != null;
+	}
+
+	String getCancelReason() {
+		return cancelReason;
+	}
+
+	/**
+	 * Stop handling of the stream because the client reset it or the connection is closed.
+	 *
+	 * @param reason Why the stream is stopped, reported when the handler writes or reads afterwards
+	 * @param interrupt If the thread of the stream should be interrupted. This must only be done when
+	 *                  the connection is closed anyway, as interrupting a thread which writes to the
+	 *                  socket closes it.
+	 */
+	void cancel(String reason, boolean interrupt) {
+		cancelReason = reason;
+		requestBody.complete(reason);
+
+		Thread t = thread;
+		if (interrupt && t != null) {
+			t.interrupt();
+		}
+		connection.signalWindowUpdate();
+	}
+
+	/**
+	 * Abort the stream with RST_STREAM, e.g. if the handler simulates a connection reset.
+	 *
+	 * @param errorCode The error code to send
+	 * @throws IOException If sending fails
+	 */
+	void reset(int errorCode) throws IOException {
+		if (isCancelled() || state == State.DONE) {
+			return;
+		}
+		state = State.DONE;
+		cancelReason = "Stream was reset by the server";
+		connection.writeRstStream(id, errorCode);
+	}
+
+	/**
+	 * Called after the handler returned, ends the response if this is still necessary.
+	 *
+	 * @throws IOException If sending fails
+	 */
+	void finish() throws IOException {
+		if (isCancelled()) {
+			return;
+		}
+
+		if (state == State.UNTIL_END) {
+			state = State.DONE;
+			connection.writeData(this, ByteBuffer.allocate(0), true);
+		} else if (state != State.DONE) {
+			// the handler did not write a complete response
+			reset(Http2Connection.INTERNAL_ERROR);
+			return;
+		}
+
+		// the response is complete, the client does not need to send the rest of the request body
+		if (!requestBody.isComplete()) {
+			cancelReason = "Response was sent before the request was complete";
+			connection.writeRstStream(id, Http2Connection.NO_ERROR);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int count = src.remaining();
+		while (src.hasRemaining()) {
+			convert(src);
+		}
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			count += write(srcs[i]);
+		}
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Process the next part of the HTTP/1.1 response.
+	 */
+	private void convert(ByteBuffer src) throws IOException {
+		if (isCancelled()) {
+			throw new IOException("Stream " + id + " was reset: " + cancelReason);
+		}
+
+		switch (state) {
+			case HEAD:
+				if (readLine(src)) {
+					if (line.size() > MAX_HEAD_LENGTH) {
+						throw new IOException("Head of response on stream " + id + " is too long");
+					}
+					// the head ends with an empty line
+					byte[] head = line.toByteArray();
+					if (head.length >= 4 && head[head.length - 3] == '\n') {
+						line.reset();
+						sendHead(new String(head, StandardCharsets.ISO_8859_1));
+					}
+				}
+				break;
+			case FIXED:
+				sendData(src, true);
+				break;
+			case CHUNK_SIZE:
+				if (readLine(src)) {
+					String size = line.toString(StandardCharsets.ISO_8859_1).trim();
+					int semicolon = size.indexOf(';');
+					line.reset();
+					try {
+						remaining = Long.parseLong(semicolon == -1 ? size : size.substring(0, semicolon).trim(), 16);
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid chunk-size in response on stream " + id + ": " + size, e);
+					}
+					state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+				}
+				break;
+			case CHUNK_DATA:
+				sendData(src, false);
+				break;
+			case CHUNK_END:
+				if (readLine(src)) {
+					line.reset();
+					state = State.CHUNK_SIZE;
+				}
+				break;
+			case TRAILERS:
+				if (readLine(src)) {
+					// trailers are not forwarded, only the empty line which ends them is of interest
+					boolean empty = line.size() <= 2;
+					line.reset();
+					if (empty) {
+						state = State.DONE;
+						connection.writeData(this, ByteBuffer.allocate(0), true);
+					}
+				}
+				break;
+			case UNTIL_END:
+				connection.writeData(this, src, false);
+				break;
+			default:
+				// anything after the end of the response is ignored
+				src.position(src.limit());
+				break;
+		}
+	}
+
+	/**
+	 * Collect bytes up to and including the next LF.
+	 *
+	 * @return true if a line-terminator was reached.
+	 */
+	private boolean readLine(ByteBuffer src) {
+		while (src.hasRemaining()) {
+			byte b = src.get();
+			line.write(b);
+			if (b == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void sendData(ByteBuffer src, boolean endOfResponse) throws IOException {
+		int length = (int) Math.min(src.remaining(), remaining);
+		ByteBuffer data = src.slice(src.position(), length);
+		src.position(src.position() + length);
+		remaining -= length;
+
+		boolean end = remaining == 0;
+		if (end) {
+			state = endOfResponse ? State.DONE : State.CHUNK_END;
+		}
+		connection.writeData(this, data, end && endOfResponse);
+	}
+
+	private void sendHead(String head) throws IOException {
+		String[] lines = head.split("\r?\n");
+		String[] statusLine = lines[0].split(" ", 3);
+		final int status;
+		try {
+			status = Integer.parseInt(statusLine[1]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Invalid status-line in response on stream " + id + ": " + lines[0], e);
+		}
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		Hpack.encodeStatus(block, status);
+
+		boolean chunked = false;
+		long contentLength = -1;
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+
+			String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = lines[i].substring(colon + 1).trim();
+			if ("transfer-encoding".equals(name)) {
+				chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+			} else if ("content-length".equals(name)) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length in response on stream " + id + ": " + value, e);
+				}
+			}
+
+			if (!CONNECTION_HEADERS.contains(name)) {
+				Hpack.encodeHeader(block, name, value);
+			}
+		}
+
+		// informational responses are followed by the actual response
+		if (status < 200) {
+			connection.writeHeaders(id, block.toByteArray(), false);
+			return;
+		}
+
+		if (headRequest || status == 204 || status == 304 || contentLength == 0) {
+			state = State.DONE;
+		} else if (chunked) {
+			state = State.CHUNK_SIZE;
+		} else if (contentLength > 0) {
+			state = State.FIXED;
+			remaining = contentLength;
+		} else {
+			state = State.UNTIL_END;
+		}
+		connection.writeHeaders(id, block.toByteArray(), state == State.DONE);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !isCancelled() && !connection.isClosed();
+	}
+
+	@Override
+	public void close() {
+		// the stream is ended via finish() or reset()
+	}
+
+	/**
+	 * The body of the request, flow-control credit is given back to the client
+	 * when the handler reads it.
+	 */
+	private final class RequestBody extends InputStream {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition available = lock.newCondition();
+		private final Queue<ByteBuffer> data = new ArrayDeque<>();
+		private boolean complete;
+		private String failure;
+		private int consumed;
+
+		private void add(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return;
+			}
+
+			lock.lock();
+			try {
+				data.add(ByteBuffer.wrap(bytes, offset, length));
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void complete(String failure) {
+			lock.lock();
+			try {
+				if (!complete) {
+					complete = true;
+					this.failure = failure;
+				}
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean isComplete() {
+			lock.lock();
+			try {
+				return complete && failure == null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			final int count;
+			lock.lock();
+			try {
+				while (data.isEmpty() && !complete) {
+					available.await();
+				}
+				if (data.isEmpty()) {
+					if (failure != null) {
+						throw new IOException("Request body of stream " + id + " is incomplete: " + failure);
+					}
+					return -1;
+				}
+
+				ByteBuffer next = data.peek();
+				count = Math.min(len, next.remaining());
+				next.get(b, off, count);
+				if (!next.hasRemaining()) {
+					data.remove();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading the request body of stream " + id);
+			} finally {
+				lock.unlock();
+			}
+
+			// give back the window when half of it was consumed
+			consumed += count;
+			if (consumed >= receiveWindow / 2 && !isComplete()) {
+				connection.writeWindowUpdate(id, consumed);
+				consumed = 0;
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,996 @@
+package org.dstadler.commons.testing;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * One client connection of the {@link MockRESTServer}.
+ *
+ * Requests are read and answered one after the other as long as the client
+ * keeps the connection alive. Each connection runs on its own virtual thread, so
+ * blocking I/O and artificial delays only park the virtual thread and do not hold
+ * on to any platform thread.
+ */
+final class HttpConnection implements Runnable {
+	private static final Logger log = Logger.getLogger(HttpConnection.class.getName());
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_LINE_LENGTH = 16 * 1024;
+	private static final int MAX_HEADER_COUNT = 200;
+
+	// number of slices per second in which throttled responses are sent
+	private static final int THROTTLE_SLICES_PER_SECOND = 100;
+
+	static final String HTTP_VERSION_NOT_SUPPORTED = "505 HTTP Version Not Supported";
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final byte[] END_OF_HEAD = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] CLOSE_AND_END_OF_HEAD = "Connection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private static final byte[] SWITCHING_TO_H2C = ("HTTP/1.1 101 Switching Protocols\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+	private final MockRESTServer server;
+
+	// the socket of the connection, null for a stream of a HTTP/2 connection
+	private final SocketChannel channel;
+	private final Http2Stream stream;
+
+	// where responses are written to, either the socket or the stream
+	private final GatheringByteChannel output;
+
+	private final byte[] buffer;
+	private final ByteBuffer readBuffer;
+	private final InputStream input;
+	private int position;
+	private int limit;
+
+	private volatile Thread thread;
+
+	// state of the exchange that is currently handled
+	private boolean keepAlive;
+	private boolean requestedKeepAlive;
+	private long pendingFirstByteNanos;
+	private long bytesPerSecond;
+	private long throttleStartNanos;
+	private long throttledBytes;
+
+	// accounting of the current exchange for the metrics of the server
+	private long bytesRead;
+	private long bytesWritten;
+	private int responseStatus;
+	private long contentBytesSaved;
+
+	// number of requests that were read on this connection
+	private volatile int requestCount;
+
+	// parts of the response of the current exchange while the server is recording
+	private ExchangeRecorder.Response recording;
+
+	// re-used for responses which are rendered per request, see TemplateResponseHandler
+	private ByteBuffer responseBuffer;
+
+	HttpConnection(MockRESTServer server, SocketChannel channel) {
+		this.server = server;
+		this.channel = channel;
+		this.stream = null;
+		this.output = channel;
+		this.buffer = new byte[BUFFER_SIZE];
+		this.readBuffer = ByteBuffer.wrap(buffer);
+		this.input = new ConnectionInputStream();
+	}
+
+	/**
+	 * Create a connection which is used to send the response for one stream of a HTTP/2 connection,
+	 * the response is converted to HTTP/2 frames by the stream.
+	 */
+	HttpConnection(MockRESTServer server, Http2Stream stream) {
+		this.server = server;
+		this.channel = null;
+		this.stream = stream;
+		this.output = stream;
+		this.buffer = null;
+		this.readBuffer = null;
+		this.input = null;
+	}
+
+	void start(Thread.Builder threadBuilder) {
+		thread = threadBuilder.start(this);
+	}
+
+	@Override
+	public void run() {
+		try {
+			// responses are often written in multiple parts, do not wait for ACKs in between
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+			while (channel.isOpen()) {
+				long consumedBefore = consumed();
+				MockRequest request = readRequest();
+				if (request == null) {
+					break;
+				}
+
+				// HTTP/2 with prior knowledge, the request-line and the empty line of the preface were read already
+				if ("PRI".equals(request.getMethod()) && "HTTP/2.0".equals(request.getVersion())) {
+					startHttp2(null);
+					break;
+				}
+
+				// the request of an upgrade is counted as the first one of the HTTP/2 connection
+				if (isUpgradeToHttp2(request)) {
+					ByteBuffer switching = ByteBuffer.wrap(SWITCHING_TO_H2C);
+					while (switching.hasRemaining()) {
+						channel.write(switching);
+					}
+					startHttp2(request);
+					break;
+				}
+
+				requestCount++;
+
+				if (!exchange(request, consumedBefore)) {
+					break;
+				}
+			}
+		} catch (ClosedChannelException | InterruptedIOException e) {
+			// the server is shutting down or the connection was reset
+		} catch (IOException e) {
+			log.log(Level.FINE, "Connection failed", e);
+		} finally {
+			close();
+			server.connectionClosed(this);
+		}
+	}
+
+	/**
+	 * Handle one request and send the response.
+	 *
+	 * @param request The request to handle
+	 * @param consumedBefore The number of bytes which were read before the request, for the metrics
+	 * @return true if the next request can be read from the connection.
+	 * @throws IOException If sending the response fails
+	 */
+	boolean exchange(MockRequest request, long consumedBefore) throws IOException {
+		requestedKeepAlive = request.isKeepAlive();
+
+		// if the handler answers without reading the body which the client holds back, the client
+		// may or may not send it afterwards, so the connection can only be re-used if the body was requested
+		keepAlive = requestedKeepAlive && !(request.getBody() instanceof ContinueInputStream);
+		pendingFirstByteNanos = 0;
+		bytesPerSecond = 0;
+		bytesWritten = 0;
+		responseStatus = 0;
+		contentBytesSaved = 0;
+
+		ExchangeRecorder recorder = server.getRecorder();
+		recording = recorder == null ? null : new ExchangeRecorder.Response();
+
+		MockRESTServer.Route route = server.route(request);
+		long start = System.nanoTime();
+		long end = 0;
+		try {
+			server.handle(request, route, this);
+			end = System.nanoTime();
+
+			if (recording != null && responseStatus > 0) {
+				record(recorder, request);
+			}
+
+			// skip any part of the request body that the handler did not read,
+			// not necessary for HTTP/2 where each request has its own stream
+			if (stream != null || !channel.isOpen() || !keepAlive) {
+				return false;
+			}
+
+			// if the client closed the connection before the body was complete, reading the next request ends the connection
+			request.getBody().skip(Long.MAX_VALUE);
+			return true;
+		} finally {
+			// also if the handler failed or did not respond, otherwise later writes, e.g. of an error response, would be recorded
+			recording = null;
+
+			// the skipped body counts for the received bytes, but not for the handling-time
+			route.metrics.record(responseStatus, consumed() - consumedBefore, bytesWritten, contentBytesSaved,
+					(end == 0 ? System.nanoTime() : end) - start);
+		}
+	}
+
+	private boolean isUpgradeToHttp2(MockRequest request) {
+		String upgrade = request.getHeader("Upgrade");
+		if (server.getHttp2Config() == null || upgrade == null || request.getHeader("HTTP2-Settings") == null ||
+				!Arrays.asList(upgrade.toLowerCase(Locale.ROOT).split("\\s*,\\s*")).contains("h2c")) {
+			return false;
+		}
+
+		// requests with a body are answered via HTTP/1.1, the upgrade is optional for the server
+		String contentLength = request.getHeader("Content-Length");
+		return request.getHeader("Transfer-Encoding") == null &&
+				(contentLength == null || "0".equals(contentLength.trim()));
+	}
+
+	private void startHttp2(MockRequest upgradeRequest) throws IOException {
+		Http2Config config = server.getHttp2Config();
+		if (config == null) {
+			keepAlive = false;
+			sendResponse(null, HTTP_VERSION_NOT_SUPPORTED, NanoHTTPD.MIME_PLAINTEXT, null,
+					"HTTP/2 is not enabled for this server".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		new Http2Connection(server, this, channel, input, config).run(upgradeRequest);
+	}
+
+	/**
+	 * Count a request which was received on a stream of the HTTP/2 connection.
+	 */
+	void http2RequestReceived() {
+		requestCount++;
+	}
+
+	private void record(ExchangeRecorder recorder, MockRequest request) {
+		try {
+			recorder.record(request, recording, !keepAlive);
+		} catch (IOException e) {
+			// e.g. recording was stopped concurrently, this should not break the connection
+			log.log(Level.WARNING, "Could not record response for request " + request, e);
+		}
+	}
+
+	/**
+	 * Read the request-line and the headers of the next request.
+	 *
+	 * @return The request or null if the client closed the connection.
+	 * @throws IOException If reading fails or the request is malformed
+	 */
+	private MockRequest readRequest() throws IOException {
+		String requestLine = readLine();
+
+		// ignore empty lines in front of the request-line
+		while (requestLine != null && requestLine.isEmpty()) {
+			requestLine = readLine();
+		}
+		if (requestLine == null) {
+			return null;
+		}
+
+		String[] parts = requestLine.split(" ");
+		if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+			keepAlive = false;
+			sendResponse(null, NanoHTTPD.HTTP_BADREQUEST, NanoHTTPD.MIME_PLAINTEXT, null,
+					("Invalid request-line: " + requestLine).getBytes(StandardCharsets.UTF_8));
+			return null;
+		}
+
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String line = readLine();
+		while (line != null && !line.isEmpty()) {
+			if (headers.size() > MAX_HEADER_COUNT) {
+				throw new IOException("Too many headers in request " + requestLine);
+			}
+
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				headers.merge(name, value, (existing, added) -> existing + ", " + added);
+			}
+
+			line = readLine();
+		}
+		if (line == null) {
+			return null;
+		}
+
+		InputStream body = createBodyStream(headers);
+		if ("HTTP/1.1".equals(parts[2]) && "100-continue".equalsIgnoreCase(headers.get("Expect")) &&
+				(body instanceof FixedLengthInputStream || body instanceof ChunkedInputStream)) {
+			body = new ContinueInputStream(body);
+		}
+		return new MockRequest(parts[0], parts[1], parts[2], headers, body);
+	}
+
+	private InputStream createBodyStream(Map<String, String> headers) throws IOException {
+		String transferEncoding = headers.get("Transfer-Encoding");
+		if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+			return new ChunkedInputStream();
+		}
+
+		String contentLength = headers.get("Content-Length");
+		if (contentLength == null) {
+			return InputStream.nullInputStream();
+		}
+
+		try {
+			return new FixedLengthInputStream(Long.parseLong(contentLength.trim()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid Content-Length: " + contentLength, e);
+		}
+	}
+
+	/**
+	 * Read one line which is terminated by CRLF or a single LF.
+	 *
+	 * @return The line without line-terminator or null if the end of the stream was reached.
+	 * @throws IOException If reading fails or the line is too long
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = null;
+		while (true) {
+			if (position == limit && fill() == -1) {
+				return line == null ? null : line.toString();
+			}
+
+			int start = position;
+			while (position < limit) {
+				if (buffer[position++] == '\n') {
+					int end = position - 1;
+					if (end > start && buffer[end - 1] == '\r') {
+						end--;
+					}
+
+					String str = new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+					if (line == null) {
+						return str;
+					}
+
+					// a CR at the end of the previous buffer belongs to the line-terminator
+					if (end == start && !line.isEmpty() && line.charAt(line.length() - 1) == '\r') {
+						line.setLength(line.length() - 1);
+					}
+					return line.append(str).toString();
+				}
+			}
+
+			if (line == null) {
+				line = new StringBuilder();
+			}
+			line.append(new String(buffer, start, limit - start, StandardCharsets.ISO_8859_1));
+			if (line.length() > MAX_LINE_LENGTH) {
+				throw new IOException("Line of request is too long, had more than " + MAX_LINE_LENGTH + " characters");
+			}
+		}
+	}
+
+	/**
+	 * Read more data from the socket into the buffer, only called if the buffer is empty.
+	 *
+	 * @return The number of bytes that were read or -1 if the end of the stream was reached.
+	 */
+	private int fill() throws IOException {
+		readBuffer.clear();
+		int read = channel.read(readBuffer);
+		position = 0;
+		limit = Math.max(read, 0);
+		bytesRead += limit;
+		return read;
+	}
+
+	/**
+	 * @return The number of bytes which were read from the socket and processed.
+	 */
+	private long consumed() {
+		if (stream != null) {
+			return stream.getBytesReceived();
+		}
+		return bytesRead - (limit - position);
+	}
+
+	/**
+	 * Let the next writes of the current exchange misbehave as defined in a {@link FaultProfile}.
+	 *
+	 * @param firstByteNanos The nanoseconds to wait before the first byte is written
+	 * @param bytesPerSecond The bandwidth to use for sending, zero for no limit
+	 */
+	void throttle(long firstByteNanos, long bytesPerSecond) {
+		this.pendingFirstByteNanos = firstByteNanos;
+		this.bytesPerSecond = bytesPerSecond;
+		this.throttledBytes = 0;
+	}
+
+	/**
+	 * Send the given response, which is created by the handlers of the {@link MockRESTServer}.
+	 *
+	 * @param request The request that is answered, null if the request could not be parsed
+	 * @param response The response to send
+	 * @throws IOException If sending fails
+	 */
+	void sendResponse(MockRequest request, NanoHTTPD.Response response) throws IOException {
+		byte[] body;
+		if (response.data == null) {
+			body = EMPTY;
+		} else {
+			try (InputStream data = response.data) {
+				body = data.readAllBytes();
+			}
+		}
+
+		sendResponse(request, response.status, response.mimeType, response.header, body);
+	}
+
+	/**
+	 * Send a response with the given status, headers and body.
+	 *
+	 * @param request The request that is answered, null if the request could not be parsed
+	 * @param status The HTTP status including the reason-phrase, e.g. "200 OK"
+	 * @param mimeType The Content-Type of the response, can be null
+	 * @param headers Additional headers, can be null
+	 * @param body The body to send
+	 * @throws IOException If sending fails
+	 */
+	void sendResponse(MockRequest request, String status, String mimeType, Properties headers, byte[] body) throws IOException {
+		StringBuilder head = new StringBuilder(256)
+				.append("HTTP/1.1 ").append(status).append("\r\n")
+				.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC))).append("\r\n");
+		if (mimeType != null) {
+			head.append("Content-Type: ").append(mimeType).append("\r\n");
+		}
+		if (headers != null) {
+			for (String name : headers.stringPropertyNames()) {
+				if (!"Content-Length".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name)) {
+					head.append(name).append(": ").append(headers.getProperty(name)).append("\r\n");
+				}
+			}
+		}
+		head.append("Content-Length: ").append(body.length).append("\r\n");
+		if (!keepAlive) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+
+		ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (request == null || !request.isHead()) {
+			write(headBuffer, ByteBuffer.wrap(body));
+		} else {
+			write(headBuffer);
+		}
+	}
+
+	/**
+	 * Write a pre-encoded status-line and headers. The empty line which terminates the
+	 * headers is added here, preceded by a "Connection: close" header if the connection
+	 * is closed after the response.
+	 *
+	 * @param head The status-line and headers, each terminated by CRLF
+	 * @throws IOException If writing fails
+	 */
+	void writeHead(byte[] head) throws IOException {
+		write(ByteBuffer.wrap(head), ByteBuffer.wrap(keepAlive ? END_OF_HEAD : CLOSE_AND_END_OF_HEAD));
+	}
+
+	/**
+	 * Report bytes of content which did not need to be sent for the current response,
+	 * e.g. because of a conditional or range request.
+	 *
+	 * @param bytes The number of bytes which were saved
+	 */
+	void contentSaved(long bytes) {
+		contentBytesSaved += bytes;
+	}
+
+	/**
+	 * Provide a direct buffer for rendering a response, which is re-used for all responses
+	 * of this connection, so rendering does not allocate per request.
+	 *
+	 * @param minCapacity The number of bytes which are needed
+	 * @return The cleared buffer, only valid until the next call
+	 */
+	ByteBuffer responseBuffer(int minCapacity) {
+		if (responseBuffer == null || responseBuffer.capacity() < minCapacity) {
+			int capacity = responseBuffer == null ? 4 * 1024 : responseBuffer.capacity();
+			while (capacity < minCapacity) {
+				capacity *= 2;
+			}
+			responseBuffer = ByteBuffer.allocateDirect(capacity);
+		}
+		return responseBuffer.clear();
+	}
+
+	/**
+	 * Write the given data to the client, applying time-to-first-byte and bandwidth
+	 * limits as requested via {@link #throttle(long, long)}.
+	 *
+	 * Multiple buffers are written with a single gathering write if possible.
+	 *
+	 * @param data The data to write
+	 * @throws IOException If writing fails
+	 */
+	void write(ByteBuffer... data) throws IOException {
+		awaitFirstByte();
+		if (responseStatus == 0 && data.length > 0) {
+			responseStatus = parseStatus(data[0]);
+		}
+		if (recording != null) {
+			for (ByteBuffer buffer : data) {
+				recording.add(buffer);
+			}
+		}
+
+		if (bytesPerSecond <= 0) {
+			long remaining = 0;
+			for (ByteBuffer buffer : data) {
+				remaining += buffer.remaining();
+			}
+			while (remaining > 0) {
+				long written = output.write(data);
+				remaining -= written;
+				bytesWritten += written;
+			}
+			return;
+		}
+
+		// send slices of the data and wait until the time at which the
+		// bytes sent so far are "due" according to the bandwidth
+		for (ByteBuffer buffer : data) {
+			int originalLimit = buffer.limit();
+			while (buffer.hasRemaining()) {
+				buffer.limit(Math.min(originalLimit, buffer.position() + throttleSliceSize()));
+				int written = 0;
+				while (buffer.hasRemaining()) {
+					written += output.write(buffer);
+				}
+				buffer.limit(originalLimit);
+				bytesWritten += written;
+
+				throttled(written);
+			}
+		}
+	}
+
+	/**
+	 * Write one chunk of a response with "Transfer-Encoding: chunked".
+	 *
+	 * @param data The content of the chunk, nothing is written if it is empty as an empty
+	 *             chunk would end the body
+	 * @throws IOException If writing fails
+	 */
+	void writeChunk(ByteBuffer data) throws IOException {
+		if (!data.hasRemaining()) {
+			return;
+		}
+
+		byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		write(ByteBuffer.wrap(size), data, ByteBuffer.wrap(END_OF_HEAD));
+	}
+
+	/**
+	 * Write the last, empty chunk which ends a response with "Transfer-Encoding: chunked".
+	 *
+	 * @throws IOException If writing fails
+	 */
+	void writeLastChunk() throws IOException {
+		write(ByteBuffer.wrap(LAST_CHUNK));
+	}
+
+	/**
+	 * Send a region of a file to the client without copying it through the Java heap.
+	 *
+	 * @param file The file to read from
+	 * @param position The position of the first byte to send
+	 * @param count The number of bytes to send
+	 * @throws IOException If reading or writing fails
+	 */
+	void transferFrom(FileChannel file, long position, long count) throws IOException {
+		awaitFirstByte();
+		if (recording != null) {
+			// only the region is kept, it is copied from file to file when the exchange is recorded
+			recording.add(file, position, count);
+		}
+
+		long current = position;
+		long end = position + count;
+		while (current < end) {
+			long chunk = bytesPerSecond <= 0 ? end - current : Math.min(end - current, throttleSliceSize());
+			long transferred = file.transferTo(current, chunk, output);
+			if (transferred <= 0 && current >= file.size()) {
+				throw new IOException("File was truncated while sending it, could only send " + (current - position) + " of " + count + " bytes");
+			}
+			current += transferred;
+			bytesWritten += transferred;
+
+			if (bytesPerSecond > 0) {
+				throttled(transferred);
+			}
+		}
+	}
+
+	/**
+	 * @return The status code of a response which starts with the given data, zero if it is not a status-line.
+	 */
+	private static int parseStatus(ByteBuffer head) {
+		// "HTTP/1.1 200 ..."
+		int start = head.position() + 9;
+		if (head.limit() < start + 3) {
+			return 0;
+		}
+
+		int status = 0;
+		for (int i = start; i < start + 3; i++) {
+			int digit = head.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return 0;
+			}
+			status = status * 10 + digit;
+		}
+		return status;
+	}
+
+	private void awaitFirstByte() throws InterruptedIOException {
+		if (pendingFirstByteNanos > 0) {
+			long delay = pendingFirstByteNanos;
+			pendingFirstByteNanos = 0;
+			pause(delay);
+		}
+	}
+
+	private int throttleSliceSize() {
+		return (int) Math.max(1, Math.min(BUFFER_SIZE, bytesPerSecond / THROTTLE_SLICES_PER_SECOND));
+	}
+
+	/**
+	 * Wait until the bytes which were written for the current exchange are "due" according to the bandwidth.
+	 */
+	private void throttled(long written) throws InterruptedIOException {
+		if (throttledBytes == 0) {
+			throttleStartNanos = System.nanoTime();
+		}
+		throttledBytes += written;
+
+		long dueNanos = throttleStartNanos + TimeUnit.SECONDS.toNanos(1) * throttledBytes / bytesPerSecond;
+		pause(dueNanos - System.nanoTime());
+	}
+
+	/**
+	 * Wait for the given time, this only parks the virtual thread of the connection.
+	 *
+	 * @param nanos The time to wait, nothing is done if this is zero or negative
+	 * @throws InterruptedIOException If the server is closed while waiting
+	 */
+	static void pause(long nanos) throws InterruptedIOException {
+		if (nanos <= 0) {
+			return;
+		}
+
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while delaying the response");
+		}
+	}
+
+	/**
+	 * The input of the connection after the protocol was switched via "101 Switching Protocols",
+	 * including data that the client sent right after the request and which was buffered already.
+	 *
+	 * @return The input or null for a stream of a HTTP/2 connection, where protocols cannot be switched.
+	 */
+	InputStream upgradedInput() {
+		return input;
+	}
+
+	/**
+	 * @return The number of requests which were received on this connection so far.
+	 */
+	int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * @return true if the connection is kept open after the current response.
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Make sure the connection is closed after the current response.
+	 */
+	void closeAfterResponse() {
+		keepAlive = false;
+	}
+
+	/**
+	 * Abort the connection with a TCP RST instead of a normal close.
+	 *
+	 * @throws IOException If closing the connection fails
+	 */
+	void reset() throws IOException {
+		keepAlive = false;
+		if (stream != null) {
+			stream.reset(Http2Connection.CANCEL);
+			return;
+		}
+		channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+		channel.close();
+	}
+
+	void close() {
+		if (channel == null) {
+			return;
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "Failed to close connection", e);
+		}
+	}
+
+	/**
+	 * Close the connection and stop any handling which is currently running for it.
+	 */
+	void abort() {
+		close();
+
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	void join(long timeoutMillis) throws InterruptedException {
+		Thread t = thread;
+		if (t != null) {
+			t.join(timeoutMillis);
+		}
+	}
+
+	/**
+	 * Reads from the buffer of the connection, refilling it from the socket when necessary.
+	 */
+	private final class ConnectionInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			if (position == limit && fill() == -1) {
+				return -1;
+			}
+			return buffer[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == limit) {
+				// read large blocks directly into the target to avoid copying
+				if (len >= BUFFER_SIZE) {
+					int read = channel.read(ByteBuffer.wrap(b, off, len));
+					bytesRead += Math.max(read, 0);
+					return read;
+				}
+				if (fill() == -1) {
+					return -1;
+				}
+			}
+
+			int count = Math.min(len, limit - position);
+			System.arraycopy(buffer, position, b, off, count);
+			position += count;
+			return count;
+		}
+	}
+
+	/**
+	 * Body of a request with "Expect: 100-continue", the client is asked to send the body
+	 * when the handler starts reading it.
+	 */
+	private final class ContinueInputStream extends FilterInputStream {
+		private boolean continued;
+
+		private ContinueInputStream(InputStream body) {
+			super(body);
+		}
+
+		@Override
+		public int read() throws IOException {
+			sendContinue();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			sendContinue();
+			return in.read(b, off, len);
+		}
+
+		private void sendContinue() throws IOException {
+			if (continued) {
+				return;
+			}
+			continued = true;
+
+			// too late if the response was started already, the client sends the body after a timeout then
+			if (responseStatus == 0) {
+				ByteBuffer response = ByteBuffer.wrap(CONTINUE);
+				while (response.hasRemaining()) {
+					bytesWritten += channel.write(response);
+				}
+
+				// the body is read now, so the connection can be re-used
+				keepAlive = requestedKeepAlive;
+			}
+		}
+	}
+
+	/**
+	 * Body of a request with a Content-Length header.
+	 */
+	private final class FixedLengthInputStream extends InputStream {
+		private long remaining;
+
+		private FixedLengthInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+
+			int b = input.read();
+			if (b == -1) {
+				throw new IOException("Connection closed before the request body was complete, missing " + remaining + " bytes");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+
+			int read = input.read(b, off, (int) Math.min(len, remaining));
+			if (read == -1) {
+				throw new IOException("Connection closed before the request body was complete, missing " + remaining + " bytes");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && remaining > 0) {
+				if (position == limit && fill() == -1) {
+					break;
+				}
+
+				int count = (int) Math.min(Math.min(n - skipped, remaining), limit - position);
+				position += count;
+				remaining -= count;
+				skipped += count;
+			}
+			return skipped;
+		}
+	}
+
+	/**
+	 * Body of a request with "Transfer-Encoding: chunked".
+	 */
+	private final class ChunkedInputStream extends InputStream {
+		private long remainingInChunk;
+		private boolean done;
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) {
+				return -1;
+			}
+
+			int b = input.read();
+			if (b == -1) {
+				throw new IOException("Connection closed inside a chunk of the request body");
+			}
+			remainingInChunk--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+
+			int read = input.read(b, off, (int) Math.min(len, remainingInChunk));
+			if (read == -1) {
+				throw new IOException("Connection closed inside a chunk of the request body");
+			}
+			remainingInChunk -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (done) {
+				return 0;
+			}
+
+			long skipped = 0;
+			byte[] skipBuffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+			while (skipped < n) {
+				int read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+				if (read == -1) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		/**
+		 * @return true if there is data available in the current or the next chunk.
+		 */
+		private boolean nextChunk() throws IOException {
+			if (done) {
+				return false;
+			}
+			if (remainingInChunk > 0) {
+				return true;
+			}
+
+			String line = readLine();
+
+			// the CRLF at the end of the previous chunk
+			if (line != null && line.isEmpty()) {
+				line = readLine();
+			}
+			if (line == null) {
+				throw new IOException("Connection closed before the last chunk of the request body");
+			}
+
+			// ignore chunk-extensions
+			int semicolon = line.indexOf(';');
+			String size = semicolon == -1 ? line.trim() : line.substring(0, semicolon).trim();
+			try {
+				remainingInChunk = Long.parseLong(size, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk-size in request body: " + line, e);
+			}
+
+			if (remainingInChunk == 0) {
+				// skip trailers up to the empty line
+				String trailer = readLine();
+				while (trailer != null && !trailer.isEmpty()) {
+					trailer = readLine();
+				}
+				done = true;
+				return false;
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.dstadler.commons.testing;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A source of artificial latencies, used by {@link FaultProfile} to delay responses
+ * of the {@link MockRESTServer}.
+ *
+ * Use one of the static factory methods to create instances, e.g.
+ *
+ * <code>
+ LatencyDistribution.logNormal(Duration.ofMillis(20), 0.8)
+ </code>
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+	/**
+	 * A distribution which never delays.
+	 */
+	LatencyDistribution NONE = random -> 0;
+
+	/**
+	 * Draw the next latency.
+	 *
+	 * @param random The source of randomness to use, this is seeded by the {@link FaultProfile}.
+	 * @return The latency in nanoseconds, never negative.
+	 */
+	long nextNanos(RandomGenerator random);
+
+	/**
+	 * Always return the same latency.
+	 *
+	 * @param latency The latency to return.
+	 * @return A new distribution.
+	 */
+	static LatencyDistribution fixed(Duration latency) {
+		long nanos = latency.toNanos();
+		Validate.isTrue(nanos >= 0, "Latency cannot be negative, but had: %s", latency);
+
+		return random -> nanos;
+	}
+
+	/**
+	 * Return latencies which are uniformly distributed between min (inclusive) and max (exclusive).
+	 *
+	 * @param min The lowest latency to return.
+	 * @param max The upper bound of the returned latencies.
+	 * @return A new distribution.
+	 */
+	static LatencyDistribution uniform(Duration min, Duration max) {
+		long minNanos = min.toNanos();
+		long maxNanos = max.toNanos();
+		Validate.isTrue(minNanos >= 0 && minNanos < maxNanos, "Invalid range of latencies: %s - %s", min, max);
+
+		return random -> random.nextLong(minNanos, maxNanos);
+	}
+
+	/**
+	 * Return latencies which follow a log-normal distribution, this is what
+	 * service latencies typically look like: most requests are close to the
+	 * median, but there is a long tail of slow ones.
+	 *
+	 * @param median The median latency.
+	 * @param sigma The standard deviation of the underlying normal distribution, larger
+	 *              values produce a longer tail, e.g. 0.25 is narrow, 1.0 is very wide.
+	 * @return A new distribution.
+	 */
+	static LatencyDistribution logNormal(Duration median, double sigma) {
+		Validate.isTrue(!median.isNegative() && !median.isZero(), "Median needs to be positive, but had: %s", median);
+		Validate.isTrue(sigma >= 0, "Sigma cannot be negative, but had: %s", sigma);
+		double mu = Math.log(median.toNanos());
+
+		return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+	}
+
+	/**
+	 * Replay a recorded set of latencies, e.g. taken from the access-log of a
+	 * production system. Each call randomly picks one of the given samples, so
+	 * the resulting latencies follow the recorded distribution.
+	 *
+	 * @param samples The recorded latencies.
+	 * @return A new distribution.
+	 */
+	static LatencyDistribution replay(Duration... samples) {
+		Validate.isTrue(samples.length > 0, "Need at least one sample to replay");
+		long[] nanos = Arrays.stream(samples).mapToLong(Duration::toNanos).toArray();
+		Validate.isTrue(Arrays.stream(nanos).allMatch(value -> value >= 0), "Latencies cannot be negative, but had: %s", Arrays.toString(samples));
+
+		return random -> nanos[random.nextInt(nanos.length)];
+	}
+}
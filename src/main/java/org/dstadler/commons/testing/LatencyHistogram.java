@@ -0,0 +1,168 @@
+package org.dstadler.commons.testing;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A histogram of latencies which can be recorded concurrently without locks and without
+ * allocating any memory after construction.
+ *
+ * Values are stored in log-linear buckets: each power-of-two range is split into 128
+ * equally sized buckets, so values are kept with a relative error of less than 1%
+ * across the whole range of long-values. Values smaller than 256 are stored exactly.
+ *
+ * <code>
+ LatencyHistogram histogram = new LatencyHistogram();
+
+ long start = System.nanoTime();
+ ... do the work ...
+ histogram.record(System.nanoTime() - start);
+
+ long p99 = histogram.getValueAtPercentile(99.0);
+ </code>
+ */
+public final class LatencyHistogram {
+	// number of bits of a value that are kept, i.e. 2^7 = 128 buckets per power of two
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+
+	// largest shift is used for Long.MAX_VALUE, whose highest bit is bit 62
+	private static final int BUCKET_COUNT = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one value.
+	 *
+	 * @param value The value, usually a latency in nanoseconds, negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		long nonNegative = Math.max(0, value);
+
+		counts.incrementAndGet(indexOf(nonNegative));
+		totalCount.incrementAndGet();
+		sum.addAndGet(nonNegative);
+		min.accumulateAndGet(nonNegative, Math::min);
+		max.accumulateAndGet(nonNegative, Math::max);
+	}
+
+	/**
+	 * @return The number of values that were recorded.
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return The smallest recorded value, zero if nothing was recorded.
+	 */
+	public long getMin() {
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	/**
+	 * @return The largest recorded value, zero if nothing was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The arithmetic mean of the recorded values, zero if nothing was recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * Compute the value at the given percentile, e.g. 50.0 for the median or 99.9 for
+	 * the value which is only exceeded by one in a thousand recorded values.
+	 *
+	 * The result is the highest value which is stored in the same bucket, i.e. it is
+	 * never lower than the actual value at this percentile.
+	 *
+	 * @param percentile The percentile between 0 and 100
+	 * @return The value at this percentile, zero if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		Validate.isTrue(percentile >= 0 && percentile <= 100, "Percentile needs to be between 0 and 100, but had: %s", percentile);
+
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+
+		long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= countAtPercentile) {
+				return Math.min(highestValueOf(i), getMax());
+			}
+		}
+
+		// values were recorded concurrently
+		return getMax();
+	}
+
+	/**
+	 * Remove all recorded values.
+	 *
+	 * Values which are recorded concurrently to the reset may be partially lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	/**
+	 * Format the main percentiles of the recorded latencies.
+	 *
+	 * @return A string like "count=100, p50=1.234ms, p99=5.678ms, p999=9.876ms, max=10.001ms"
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "count=%d, p50=%.3fms, p99=%.3fms, p999=%.3fms, max=%.3fms",
+				getCount(), toMillis(getValueAtPercentile(50.0)), toMillis(getValueAtPercentile(99.0)),
+				toMillis(getValueAtPercentile(99.9)), toMillis(getMax()));
+	}
+
+	static double toMillis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		// keep the highest bits of the value, the shift defines the power-of-two range
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+	}
+
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,399 @@
+package org.dstadler.commons.testing;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Simple load-generator which can be used to benchmark HTTP clients or client-code
+ * against a {@link MockRESTServer} without any external tools.
+ *
+ * Two modes are supported:
+ * <ul>
+ *     <li>closed-loop: a fixed number of workers send requests back-to-back, i.e. the
+ *     next request is only sent when the previous one is finished</li>
+ *     <li>open-loop: requests are sent at a fixed rate, independent of how fast the
+ *     server answers</li>
+ * </ul>
+ *
+ * In open-loop mode latencies are measured from the time at which a request was
+ * scheduled to be sent, not from the time at which it was actually sent. So if the
+ * server or the client stalls, the waiting time of all requests that should have been
+ * sent during the stall is included, i.e. the results are corrected for
+ * "coordinated omission".
+ *
+ * Use it as follows
+ *
+ * <code>
+ try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+     LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost:" + server.getPort() + "/"))
+             .openLoop(1000)
+             .duration(Duration.ofSeconds(10))
+             .build()
+             .run();
+
+     result.print(System.out);
+ }
+ </code>
+ */
+public final class LoadGenerator {
+	private static final Logger log = Logger.getLogger(LoadGenerator.class.getName());
+
+	/**
+	 * Time that an open-loop run waits for outstanding responses at the end.
+	 */
+	private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+	private final HttpClient client;
+	private final HttpRequest request;
+	private final int concurrency;
+	private final double requestsPerSecond;
+	private final int maxOutstanding;
+	private final Duration warmup;
+	private final Duration duration;
+
+	private LoadGenerator(Builder builder) {
+		this.client = builder.client;
+		this.request = builder.request;
+		this.concurrency = builder.concurrency;
+		this.requestsPerSecond = builder.requestsPerSecond;
+		this.maxOutstanding = builder.maxOutstanding;
+		this.warmup = builder.warmup;
+		this.duration = builder.duration;
+	}
+
+	/**
+	 * Create a builder for a load-generator which sends GET requests to the given URI.
+	 *
+	 * @param uri The URI to send requests to
+	 * @return A new builder, by default in closed-loop mode with one worker
+	 */
+	public static Builder builder(URI uri) {
+		return builder(HttpRequest.newBuilder(uri).build());
+	}
+
+	/**
+	 * Create a builder for a load-generator which sends the given request.
+	 *
+	 * @param request The request to send repeatedly
+	 * @return A new builder, by default in closed-loop mode with one worker
+	 */
+	public static Builder builder(HttpRequest request) {
+		return new Builder(request);
+	}
+
+	/**
+	 * Run the warmup and the actual measurement.
+	 *
+	 * @return The latencies and counts of the measurement, the warmup is not included
+	 * @throws InterruptedException If the calling thread is interrupted while waiting for the run to finish
+	 */
+	public Result run() throws InterruptedException {
+		// a client that we create ourselves is closed again at the end
+		HttpClient runClient = client == null ? HttpClient.newHttpClient() : client;
+		try {
+			if (!warmup.isZero()) {
+				execute(runClient, warmup, new Result());
+			}
+
+			Result result = new Result();
+			execute(runClient, duration, result);
+			return result;
+		} finally {
+			if (client == null) {
+				runClient.close();
+			}
+		}
+	}
+
+	private void execute(HttpClient runClient, Duration runDuration, Result result) throws InterruptedException {
+		long start = System.nanoTime();
+		long end = start + runDuration.toNanos();
+
+		if (requestsPerSecond > 0) {
+			runOpenLoop(runClient, start, end, result);
+		} else {
+			runClosedLoop(runClient, end, result);
+		}
+
+		result.elapsedNanos = System.nanoTime() - start;
+	}
+
+	private void runClosedLoop(HttpClient runClient, long end, Result result) throws InterruptedException {
+		List<Thread> workers = new ArrayList<>(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			workers.add(Thread.ofVirtual().name("LoadGenerator-worker-" + i).start(() -> {
+				while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+					long sent = System.nanoTime();
+					try {
+						HttpResponse<Void> response = runClient.send(request, HttpResponse.BodyHandlers.discarding());
+						result.completed(sent, response.statusCode());
+					} catch (IOException e) {
+						result.failed(sent);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} finally {
+			workers.forEach(Thread::interrupt);
+		}
+	}
+
+	private void runOpenLoop(HttpClient runClient, long start, long end, Result result) throws InterruptedException {
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+		Semaphore outstanding = new Semaphore(maxOutstanding);
+
+		try {
+			for (long i = 0; ; i++) {
+				long intended = start + (long) (i * intervalNanos);
+				if (intended >= end) {
+					break;
+				}
+
+				// wait until the request is due, if we are late it is sent immediately
+				long wait = intended - System.nanoTime();
+				while (wait > 0) {
+					LockSupport.parkNanos(wait);
+					if (Thread.interrupted()) {
+						throw new InterruptedException("Interrupted while generating load");
+					}
+					wait = intended - System.nanoTime();
+				}
+
+				// when too many requests are pending, this blocks, but the time
+				// is still measured from the intended start of each request
+				outstanding.acquire();
+				try {
+					runClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+							.whenComplete((response, error) -> {
+								if (error == null) {
+									result.completed(intended, response.statusCode());
+								} else {
+									result.failed(intended);
+								}
+								outstanding.release();
+							});
+				} catch (RuntimeException e) {
+					// the request could not even be sent, e.g. because the client was closed
+					log.log(Level.FINE, "Could not send request", e);
+					result.failed(intended);
+					outstanding.release();
+				}
+			}
+		} finally {
+			// also when interrupted, so no response is recorded after the run returned
+			awaitOutstanding(outstanding);
+		}
+	}
+
+	private void awaitOutstanding(Semaphore outstanding) {
+		long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (true) {
+				try {
+					if (outstanding.tryAcquire(maxOutstanding, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						outstanding.release(maxOutstanding);
+					} else {
+						log.warning("Did not receive responses for " + (maxOutstanding - outstanding.availablePermits()) +
+								" requests within " + DRAIN_TIMEOUT + ", the result may not include them");
+					}
+					return;
+				} catch (@SuppressWarnings("unused") InterruptedException e) {
+					// keep waiting until the deadline, the interrupt is restored afterwards
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The outcome of one run of the load-generator.
+	 */
+	public static final class Result {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final AtomicLong errors = new AtomicLong();
+		private volatile long elapsedNanos;
+
+		private Result() {
+		}
+
+		private void completed(long startNanos, int statusCode) {
+			histogram.record(System.nanoTime() - startNanos);
+			if (statusCode >= 400) {
+				errors.incrementAndGet();
+			}
+		}
+
+		private void failed(long startNanos) {
+			histogram.record(System.nanoTime() - startNanos);
+			errors.incrementAndGet();
+		}
+
+		/**
+		 * @return The latencies of all requests in nanoseconds, including failed ones.
+		 */
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		/**
+		 * @return The number of requests that were sent.
+		 */
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		/**
+		 * @return The number of requests which failed or returned a HTTP status code of 400 or higher.
+		 */
+		public long getErrors() {
+			return errors.get();
+		}
+
+		/**
+		 * @return The time that the run took, including waiting for outstanding responses.
+		 */
+		public Duration getElapsed() {
+			return Duration.ofNanos(elapsedNanos);
+		}
+
+		/**
+		 * @return The number of finished requests per second.
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : (double) getCount() * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		}
+
+		/**
+		 * Print a short report of the results.
+		 *
+		 * @param out The stream to print to, e.g. System.out
+		 */
+		public void print(PrintStream out) {
+			out.println(this);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "requests=%d, errors=%d, throughput=%.1f req/s, p50=%.3fms, p99=%.3fms, p999=%.3fms, max=%.3fms",
+					getCount(), getErrors(), getThroughput(),
+					LatencyHistogram.toMillis(histogram.getValueAtPercentile(50.0)),
+					LatencyHistogram.toMillis(histogram.getValueAtPercentile(99.0)),
+					LatencyHistogram.toMillis(histogram.getValueAtPercentile(99.9)),
+					LatencyHistogram.toMillis(histogram.getMax()));
+		}
+	}
+
+	public static final class Builder {
+		private final HttpRequest request;
+		private HttpClient client;
+		private int concurrency = 1;
+		private double requestsPerSecond;
+		private int maxOutstanding = 10_000;
+		private Duration warmup = Duration.ZERO;
+		private Duration duration = Duration.ofSeconds(10);
+
+		private Builder(HttpRequest request) {
+			this.request = Validate.notNull(request, "Request cannot be null");
+		}
+
+		/**
+		 * @param client The client to use for sending requests, e.g. one that is configured
+		 *               like the client under test. By default a new client with default
+		 *               settings is created for each run.
+		 * @return This builder
+		 */
+		public Builder client(HttpClient client) {
+			this.client = Validate.notNull(client, "Client cannot be null");
+			return this;
+		}
+
+		/**
+		 * Use closed-loop mode, i.e. send requests back-to-back from a fixed number of workers.
+		 *
+		 * @param concurrency The number of workers
+		 * @return This builder
+		 */
+		public Builder closedLoop(int concurrency) {
+			Validate.isTrue(concurrency > 0, "Concurrency needs to be positive, but had: %s", concurrency);
+			this.concurrency = concurrency;
+			this.requestsPerSecond = 0;
+			return this;
+		}
+
+		/**
+		 * Use open-loop mode, i.e. send requests at a fixed rate.
+		 *
+		 * @param requestsPerSecond The rate at which requests are sent
+		 * @return This builder
+		 */
+		public Builder openLoop(double requestsPerSecond) {
+			Validate.isTrue(requestsPerSecond > 0, "Rate needs to be positive, but had: %s", requestsPerSecond);
+			this.requestsPerSecond = requestsPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param maxOutstanding The maximum number of requests which are waiting for a response
+		 *                       in open-loop mode, when reached, sending is paused.
+		 * @return This builder
+		 */
+		public Builder maxOutstanding(int maxOutstanding) {
+			Validate.isTrue(maxOutstanding > 0, "Maximum of outstanding requests needs to be positive, but had: %s", maxOutstanding);
+			this.maxOutstanding = maxOutstanding;
+			return this;
+		}
+
+		/**
+		 * @param warmup The time to send requests before the measurement starts, e.g. to
+		 *               let the JIT compile the code, by default no warmup is done.
+		 * @return This builder
+		 */
+		public Builder warmup(Duration warmup) {
+			Validate.isTrue(!warmup.isNegative(), "Warmup cannot be negative, but had: %s", warmup);
+			this.warmup = warmup;
+			return this;
+		}
+
+		/**
+		 * @param duration The time to send requests during the measurement, 10 seconds by default.
+		 * @return This builder
+		 */
+		public Builder duration(Duration duration) {
+			Validate.isTrue(!duration.isNegative() && !duration.isZero(), "Duration needs to be positive, but had: %s", duration);
+			this.duration = duration;
+			return this;
+		}
+
+		public LoadGenerator build() {
+			return new LoadGenerator(this);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package org.dstadler.commons.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang3.Validate;
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * A group of {@link MockRESTServer} nodes which are started together, e.g. for testing
+ * client-side load-balancing, failover or hedging of requests.
+ *
+ * Each node is a separate server on its own port, so latency, errors and limits can be
+ * configured per node via {@link #getNode(int)}, and the requests that each node received
+ * are available via {@link #getMetrics(int)}.
+ *
+ * A node can be killed during a test, it then releases its port, so new connections are
+ * refused, and open connections are closed. A revived node binds the same port again.
+ *
+ * <code>
+ try (MockRESTCluster cluster = new MockRESTCluster(3, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+     // a slow node and a node that fails 10% of the requests
+     cluster.getNode(1).setFaultProfile(FaultProfile.builder()
+             .delay(LatencyDistribution.logNormal(Duration.ofMillis(200), 0.5))
+             .build());
+     cluster.getNode(2).setFaultProfile(FaultProfile.builder()
+             .errorBurst(0.1, 1)
+             .build());
+
+     // run the client against all nodes
+     List<String> urls = cluster.getUrls();
+     ...
+     cluster.kill(0);
+     ...
+     cluster.revive(0);
+
+     cluster.getMetrics(1).getRequests();
+ }
+ </code>
+ *
+ * As the servers use a small range of ports, only a few nodes can be started at once. While a
+ * node is killed, its port may be taken by any other server that is started in the meantime.
+ */
+public final class MockRESTCluster implements Closeable {
+	private final List<MockRESTServer> nodes;
+
+	/**
+	 * Start nodes which all respond with the given HTTP Status Code, see
+	 * {@link MockRESTServer#MockRESTServer(String, String, String)}.
+	 *
+	 * @param size The number of nodes
+	 * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+	 * @param mime The mime-type to set for the response, see NanoHTTPD.MIME_...
+	 * @param msg The actual message to return when a node is called.
+	 * @throws IOException If not all nodes could be started, nodes which were already started are closed then
+	 */
+	public MockRESTCluster(int size, String status, String mime, String msg) throws IOException {
+		this(size, MockRESTServer.staticResponse(status, mime, msg));
+	}
+
+	/**
+	 * Start nodes which all respond via the given Callable, see
+	 * {@link MockRESTServer#MockRESTServer(Callable)}.
+	 *
+	 * @param size The number of nodes
+	 * @param response A {@link Callable} which is called whenever one of the nodes is called,
+	 *                 it is called concurrently by all nodes.
+	 * @throws IOException If not all nodes could be started, nodes which were already started are closed then
+	 */
+	public MockRESTCluster(int size, Callable<NanoHTTPD.Response> response) throws IOException {
+		this(size, MockRESTServer.respondVia(response));
+	}
+
+	private MockRESTCluster(int size, MockRESTServer.RequestHandler handler) throws IOException {
+		Validate.isTrue(size > 0, "A cluster needs at least one node, but had: %s", size);
+
+		List<MockRESTServer> started = new ArrayList<>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				started.add(new MockRESTServer(handler));
+			}
+		} catch (IOException e) {
+			started.forEach(MockRESTServer::close);
+			throw new IOException("Could only start " + started.size() + " of " + size + " nodes", e);
+		}
+
+		this.nodes = Collections.unmodifiableList(started);
+	}
+
+	/**
+	 * @return The number of nodes, including nodes which are currently killed.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @param index The index of the node, starting at 0
+	 * @return The server of the node, e.g. for setting a {@link FaultProfile} or routes
+	 */
+	public MockRESTServer getNode(int index) {
+		return nodes.get(index);
+	}
+
+	/**
+	 * @return The servers of all nodes, in the order of their index.
+	 */
+	public List<MockRESTServer> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return The base-URLs of all nodes, e.g. "http://localhost:15100", in the order of their index.
+	 */
+	public List<String> getUrls() {
+		List<String> urls = new ArrayList<>(nodes.size());
+		for (MockRESTServer node : nodes) {
+			urls.add("http://localhost:" + node.getPort());
+		}
+		return urls;
+	}
+
+	/**
+	 * Simulate a crash of the node: connections are refused and open connections are closed,
+	 * including requests which are currently handled. Killing a node twice has no effect.
+	 *
+	 * @param index The index of the node, starting at 0
+	 */
+	public void kill(int index) {
+		nodes.get(index).stopListening();
+	}
+
+	/**
+	 * Start a killed node again on the same port. Configuration and metrics of the node are kept.
+	 *
+	 * @param index The index of the node, starting at 0
+	 * @throws IOException If the port of the node was taken in the meantime, the node is closed then
+	 */
+	public void revive(int index) throws IOException {
+		nodes.get(index).startListening();
+	}
+
+	/**
+	 * @param index The index of the node, starting at 0
+	 * @return true if the node accepts connections, false if it was killed or closed
+	 */
+	public boolean isUp(int index) {
+		return nodes.get(index).isListening();
+	}
+
+	/**
+	 * @param index The index of the node, starting at 0
+	 * @return The counters of the node, they keep counting across kill and revive
+	 */
+	public ServerMetrics getMetrics(int index) {
+		return nodes.get(index).getMetrics();
+	}
+
+	/**
+	 * @return The number of requests that each node received, in the order of their index.
+	 */
+	public long[] getRequestsPerNode() {
+		long[] requests = new long[nodes.size()];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = nodes.get(i).getMetrics().getRequests();
+		}
+		return requests;
+	}
+
+	/**
+	 * Stop all nodes.
+	 */
+	@Override
+	public void close() {
+		nodes.forEach(MockRESTServer::close);
+	}
+}
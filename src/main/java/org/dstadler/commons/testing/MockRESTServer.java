@@ -1,14 +1,41 @@
 package org.dstadler.commons.testing;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.Validate;
 import org.dstadler.commons.http.NanoHTTPD;
+import org.junit.jupiter.api.Assertions;
 
 
 /**
@@ -28,6 +55,46 @@ import org.dstadler.commons.http.NanoHTTPD;
      ..
  }
  </code>
+ *
+ * The server supports HTTP/1.1 with persistent connections. Each connection is handled
+ * on a virtual thread, so many slow clients or delayed responses do not exhaust
+ * any thread-pool.
+ *
+ * Via {@link #setFaultProfile(String, FaultProfile)} the server can simulate a slow or
+ * overloaded dependency, e.g. by adding latency, throttling bandwidth or
+ * resetting connections.
+ *
+ * Large payloads can be served from files via {@link #addFileRoute(String, File, String)}
+ * without reading them into memory, endless or very large bodies can be streamed via
+ * {@link #addStreamingRoute(String, String, Supplier)}.
+ *
+ * Responses which depend on the path or query of the request can be rendered from
+ * templates via {@link #addTemplateRoute(String, String, String, String)}.
+ *
+ * Push feeds with a configurable rate can be served as Server-Sent Events via
+ * {@link #addSseRoute(String, PushFeed)} or via WebSocket via {@link #addWebSocketRoute(String, PushFeed)}.
+ *
+ * Request counts, status codes, bytes and handling-times per route are available via
+ * {@link #getMetrics()} and via JMX.
+ *
+ * Exchanges can be recorded to a file via {@link #startRecording(File)} and later be
+ * replayed via {@link #addReplayRoute(String, File)}.
+ *
+ * Via {@link #assertRequestsPerConnectionAtLeast(double)} and {@link #assertMaxConnections(int)}
+ * tests can verify that a client re-uses connections instead of opening a new one per request.
+ *
+ * Overload can be simulated via {@link #setRateLimit(String, RateLimit)},
+ * {@link #setMaxConcurrentRequests(int)} and {@link #setConnectionLimit(int, int)}, the number of
+ * rejected requests is available via {@link ServerMetrics#getShedRequests()}.
+ *
+ * Cleartext HTTP/2 can be enabled via {@link #enableHttp2(Http2Config)}.
+ *
+ * Test-suites with many tests can lease running servers from the {@link MockRESTServerPool}
+ * instead of creating a new server for each test, such servers are returned by closing
+ * the {@link MockRESTServerPool.Lease}.
+ *
+ * Multiple servers with different behavior, which can be killed and revived during a test,
+ * are available via {@link MockRESTCluster}.
  */
 public class MockRESTServer implements Closeable {
     private static final Logger log = Logger.getLogger(MockRESTServer.class.getName());
@@ -36,12 +103,60 @@ public class MockRESTServer implements Closeable {
     private static final int PORT_RANGE_START = 15100;
     private static final int PORT_RANGE_END = 15110;
 
-    private final NanoHTTPD httpd;
+    // allow many clients to connect at the same time, e.g. when testing with many parallel delayed requests
+    private static final int DEFAULT_ACCEPT_BACKLOG = 1024;
+
+    // how long close() waits for threads of the server to stop
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    static final String HTTP_SERVICE_UNAVAILABLE = "503 Service Unavailable";
+    static final String HTTP_TOO_MANY_REQUESTS = "429 Too Many Requests";
+
+    // replaced when the backlog is changed via setConnectionLimit()
+    private volatile ServerSocketChannel serverChannel;
+    private volatile int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+
+    // false while the port is released via stopListening()
+    private volatile boolean listening = true;
+
     private final int port;
+    private volatile Route defaultRoute;
+
+    private final Thread acceptThread;
+    private final Thread.Builder connectionThreads;
+    private final Set<HttpConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    // servers of the MockRESTServerPool are returned to the pool instead of being closed
+    private volatile boolean pooled;
+
+    // incremented when the server is leased and when it is returned, so only the current lease can return it
+    private final AtomicLong leaseGeneration = new AtomicLong();
+
+    private final RouteTable<FaultProfile> faultProfiles = new RouteTable<>();
+    private final RouteTable<RateLimit> rateLimits = new RouteTable<>();
+
+    // limits for overload-tests, zero if not limited
+    private volatile int maxConcurrentRequests;
+    private volatile int maxConnections;
+    private final RouteTable<Route> routes = new RouteTable<>();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private volatile ExchangeRecorder recorder;
+    private final ObjectName mbeanName;
+
+    // settings for HTTP/2 connections, null if only HTTP/1.1 is supported
+    private volatile Http2Config http2Config;
+
+    // files and other resources used by routes, closed together with the server
+    private final List<Closeable> resources = new CopyOnWriteArrayList<>();
 
     /**
      * Create a mock server that responds to REST requests with the given HTTP Status Code.
      *
+     * The response is encoded only once and then sent unchanged for every request, so the
+     * server adds almost no overhead when it is used in benchmarks of client-code.
+     *
      * The server tries ports in the range listed above to find one that can be used. If none is usable, a IOException
      * is thrown.
      *
@@ -52,10 +167,7 @@ public class MockRESTServer implements Closeable {
      *             If instantiating the Server failed.
      */
     public MockRESTServer(final String status, final String mime, final String msg) throws IOException {
-        // first try to get the next free port
-        port = getNextFreePort();
-
-        httpd = startServer(() -> new NanoHTTPD.Response(status, mime, msg), port);
+        this(staticResponse(status, mime, msg));
     }
 
     /**
@@ -71,13 +183,7 @@ public class MockRESTServer implements Closeable {
      * @throws IOException If instantiating the Server failed.
      */
     public MockRESTServer(final Runnable response, final String status, final String mime, final String msg) throws IOException {
-        // first try to get the next free port
-        port = getNextFreePort();
-
-		httpd = startServer(() -> {
-				response.run();
-				return new NanoHTTPD.Response(status, mime, msg);
-			}, port);
+        this(runAndRespond(response, status, mime, msg));
     }
 
     /**
@@ -92,51 +198,69 @@ public class MockRESTServer implements Closeable {
      * @throws IOException If instantiating the Server failed.
      */
     public MockRESTServer(final Callable<NanoHTTPD.Response> response) throws IOException {
+        this(respondVia(response));
+    }
+
+    MockRESTServer(RequestHandler handler) throws IOException {
+        this.defaultRoute = new Route(handler, metrics.forRoute("*"));
+
         // first try to get the next free port
-        port = getNextFreePort();
-
-		httpd = startServer(() -> {
-				try {
-					return response.call();
-				} catch (Exception e) {
-					throw new IllegalStateException(e);
-				}
-			}, port);
-    }
-
-	private static NanoHTTPD startServer(Supplier<NanoHTTPD.Response> response, final int port) throws IOException {
-		try {
-			return new NanoHTTPD(port) {
-
-				/**
-				 * Internal method to provide the response that is set.
-				 */
-				@Override
-				public Response serve(String uri, String method, Properties header, Properties params) {
-					return response.get();
-				}
-			};
-		} catch (IOException e) {
-			throw new IOException("Failed to start up NanoHTTPD with port " + port, e);
-		}
-	}
-
-    /**
-     * Method that is used to find the next available port. It uses the two constants PORT_RANGE_START and
+        serverChannel = bindToNextFreePort(DEFAULT_ACCEPT_BACKLOG);
+        port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+
+        connectionThreads = Thread.ofVirtual().name("MockRESTServer-" + port + "-connection-", 0);
+        acceptThread = new Thread(this::acceptConnections, "MockRESTServer-" + port);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        mbeanName = registerMBean();
+    }
+
+    static RequestHandler staticResponse(String status, String mime, String msg) {
+        return new StaticResponseHandler(status, mime, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static RequestHandler runAndRespond(Runnable response, String status, String mime, String msg) {
+        StaticResponseHandler staticResponse = new StaticResponseHandler(status, mime, msg.getBytes(StandardCharsets.UTF_8));
+        return (request, connection) -> {
+            response.run();
+            staticResponse.handle(request, connection);
+        };
+    }
+
+    static RequestHandler respondVia(Callable<NanoHTTPD.Response> response) {
+        return (request, connection) -> connection.sendResponse(request, response.call());
+    }
+
+    private ObjectName registerMBean() {
+        try {
+            ObjectName name = new ObjectName("org.dstadler.commons.testing:type=MockRESTServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not register metrics of server on port " + port + " via JMX", e);
+            return null;
+        }
+    }
+
+    /**
+     * Method that is used to bind to the next available port. It uses the two constants PORT_RANGE_START and
      * PORT_RANGE_END defined above to limit the range of ports that are tried.
      *
-     * @return A port number that can be used.
+     * @return A server-channel which is bound to a port in the range.
      * @throws IOException
      *             If no available port is found.
      */
-    private static int getNextFreePort() throws IOException {
+    private static ServerSocketChannel bindToNextFreePort(int backlog) throws IOException {
         for (int port = PORT_RANGE_START; port < PORT_RANGE_END; port++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
             try {
-                ServerSocket sock = new ServerSocket(port);
-                sock.close();
-                //
-                return port;
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(port), backlog);
+                return channel;
             } catch (IOException e) {
+                channel.close();
+
                 // seems to be taken, try next one
                 log.warning("Port " + port + " seems to be used already, trying next one: " + e);
             }
@@ -145,12 +269,831 @@ public class MockRESTServer implements Closeable {
         throw new IOException("No free port found in the range of [" + PORT_RANGE_START + " - " + PORT_RANGE_END + "]");
     }
 
+    private void acceptConnections() {
+        while (!closed) {
+            // while the limit is reached, new clients wait in the backlog of the server-socket
+            int limit = maxConnections;
+            if (limit > 0 && connections.size() >= limit) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            ServerSocketChannel current = serverChannel;
+            final SocketChannel channel;
+            try {
+                channel = current.accept();
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    // the server was closed
+                    break;
+                }
+
+                // the socket is bound again with a different backlog or listening was stopped for a while
+                while (serverChannel == current && !closed) {
+                    LockSupport.park(this);
+                }
+                continue;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to accept connection on port " + port, e);
+                continue;
+            }
+
+            HttpConnection connection = new HttpConnection(this, channel);
+            connections.add(connection);
+            metrics.connectionOpened();
+            connection.start(connectionThreads);
+
+            // stopListening() may have collected the open connections before this one was added
+            if (!current.isOpen()) {
+                connection.abort();
+            }
+        }
+    }
+
+    /**
+     * @return The route which should answer the given request.
+     */
+    Route route(MockRequest request) {
+        Route route = routes.match(request.getMethod(), request.getPath());
+        return route == null ? defaultRoute : route;
+    }
+
+    /**
+     * Handle one request, called by the connection which received it.
+     */
+    void handle(MockRequest request, Route route, HttpConnection connection) throws IOException {
+        RateLimit rateLimit = rateLimits.match(request.getMethod(), request.getPath());
+        if (rateLimit != null) {
+            long waitNanos = rateLimit.tryAcquire();
+            if (waitNanos > 0) {
+                metrics.rateLimited();
+                shed(request, connection, HTTP_TOO_MANY_REQUESTS, waitNanos, "Rate limit exceeded");
+                return;
+            }
+        }
+
+        int inFlight = metrics.requestStarted();
+        try {
+            int limit = maxConcurrentRequests;
+            if (limit > 0 && inFlight > limit) {
+                metrics.concurrencyLimited();
+                shed(request, connection, HTTP_SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(1),
+                        "Too many concurrent requests, only " + limit + " are allowed");
+                return;
+            }
+
+            handleWithFaults(request, route, connection);
+        } finally {
+            metrics.requestFinished();
+        }
+    }
+
+    private static void shed(MockRequest request, HttpConnection connection, String status, long retryAfterNanos, String message) throws IOException {
+        // Retry-After is given in whole seconds, round up so clients do not retry too early
+        Properties headers = new Properties();
+        headers.setProperty("Retry-After", Long.toString(Math.max(1, (retryAfterNanos + 999_999_999) / 1_000_000_000)));
+        connection.sendResponse(request, status, NanoHTTPD.MIME_PLAINTEXT, headers, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleWithFaults(MockRequest request, Route route, HttpConnection connection) throws IOException {
+        FaultProfile faults = faultProfiles.match(request.getMethod(), request.getPath());
+        if (faults != null) {
+            HttpConnection.pause(faults.nextDelayNanos());
+
+            if (faults.nextReset()) {
+                connection.reset();
+                return;
+            }
+
+            connection.throttle(faults.nextTimeToFirstByteNanos(), faults.getBytesPerSecond());
+
+            if (faults.nextError()) {
+                connection.sendResponse(request, HTTP_SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, null,
+                        "Service unavailable because of injected fault".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+
+        try {
+            route.handler.handle(request, connection);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Handler failed for request " + request, e);
+
+            connection.closeAfterResponse();
+            connection.sendResponse(request, NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, null,
+                    ("SERVER INTERNAL ERROR: " + e).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    void connectionClosed(HttpConnection connection) {
+        if (connections.remove(connection)) {
+            metrics.connectionClosed(connection.getRequestCount());
+
+            // accepting may be paused because of the limit of connections
+            LockSupport.unpark(acceptThread);
+        }
+    }
+
+    /**
+     * Inject faults into all requests, unless a more specific profile is set for the path of the request.
+     *
+     * @param profile The faults to inject, use {@link FaultProfile#NONE} to switch off fault-injection.
+     */
+    public void setFaultProfile(FaultProfile profile) {
+        setFaultProfile("*", profile);
+    }
+
+    /**
+     * Inject faults into requests which match the given pattern.
+     *
+     * A pattern is either an exact path like "/api/users" or a prefix like
+     * "/api/*". It can be preceded by a HTTP method, e.g. "POST /api/*". If
+     * multiple patterns match, the most specific one is used.
+     *
+     * @param pattern The pattern of the requests to inject faults into
+     * @param profile The faults to inject, use {@link FaultProfile#NONE} to switch off fault-injection.
+     */
+    public void setFaultProfile(String pattern, FaultProfile profile) {
+        faultProfiles.put(pattern, profile);
+    }
+
+    /**
+     * Limit the rate of requests which match the given pattern, additional requests are answered
+     * with "429 Too Many Requests" and a "Retry-After" header which tells when the next request
+     * would be admitted. Rejected requests are counted in {@link ServerMetrics#getRateLimitedRequests()}.
+     *
+     * The limit is checked before any fault-profile is applied.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param limit The rate limit, use {@link #removeRateLimit(String)} to remove it again
+     */
+    public void setRateLimit(String pattern, RateLimit limit) {
+        rateLimits.put(pattern, limit);
+    }
+
+    /**
+     * Remove a rate limit which was set via {@link #setRateLimit(String, RateLimit)}.
+     *
+     * @param pattern The pattern which was used for setting the limit
+     */
+    public void removeRateLimit(String pattern) {
+        rateLimits.remove(pattern);
+    }
+
+    /**
+     * Limit the number of requests which are handled at the same time, e.g. while they are delayed
+     * via a {@link FaultProfile}. Additional requests are answered immediately with
+     * "503 Service Unavailable" and are counted in {@link ServerMetrics#getConcurrencyLimitedRequests()}.
+     *
+     * @param max The maximum number of concurrent requests, zero for no limit
+     */
+    public void setMaxConcurrentRequests(int max) {
+        Validate.isTrue(max >= 0, "Maximum of concurrent requests cannot be negative, but had: %s", max);
+        maxConcurrentRequests = max;
+    }
+
+    /**
+     * Limit the number of open connections. When the limit is reached, the server stops accepting
+     * connections, so further clients wait in the accept-backlog of the server-socket. When the
+     * backlog is full, the operating system rejects or ignores further connection attempts, which
+     * allows to test connect-timeouts and retries of clients.
+     *
+     * The server-socket is bound again if the backlog changes, which closes the currently
+     * waiting connection attempts. Note that the operating system may round the backlog up or
+     * limit it to a system-wide maximum.
+     *
+     * @param maxConnections The maximum number of open connections, zero for no limit
+     * @param backlog The number of connection attempts that can wait until they are accepted
+     * @throws IOException If the server-socket cannot be bound again, the server is closed then
+     */
+    public synchronized void setConnectionLimit(int maxConnections, int backlog) throws IOException {
+        Validate.isTrue(maxConnections >= 0, "Maximum of connections cannot be negative, but had: %s", maxConnections);
+        Validate.isTrue(backlog > 0, "Backlog needs to be positive, but had: %s", backlog);
+
+        if (backlog != acceptBacklog) {
+            if (listening) {
+                rebind(backlog);
+            } else {
+                // used when listening is started again
+                acceptBacklog = backlog;
+            }
+        }
+
+        this.maxConnections = maxConnections;
+        LockSupport.unpark(acceptThread);
+    }
+
+    private void rebind(int backlog) throws IOException {
+        if (closed) {
+            throw new IOException("Server on port " + port + " is already closed");
+        }
+        serverChannel.close();
+        bindAgain(backlog);
+    }
+
+    private void bindAgain(int backlog) throws IOException {
+        // the port is released only when the accept-thread noticed that the channel was closed
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT_MS);
+        while (true) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(port), backlog);
+
+                acceptBacklog = backlog;
+                serverChannel = channel;
+                LockSupport.unpark(acceptThread);
+                return;
+            } catch (BindException e) {
+                channel.close();
+                if (System.nanoTime() - deadline > 0) {
+                    shutdown();
+                    throw new IOException("Could not bind port " + port + " again with a backlog of " + backlog, e);
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            } catch (IOException e) {
+                channel.close();
+                shutdown();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Simulate a crashed server: the port is released, so clients are refused when they connect,
+     * and all open connections are closed. Used by {@link MockRESTCluster#kill(int)}.
+     */
+    synchronized void stopListening() {
+        if (!listening || closed) {
+            return;
+        }
+
+        listening = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to close server on port " + port, e);
+        }
+        stopConnections();
+    }
+
+    /**
+     * Bind the same port again after {@link #stopListening()}.
+     *
+     * @throws IOException If the port cannot be bound, e.g. because it was taken by another
+     *          process in the meantime, the server is closed then
+     */
+    synchronized void startListening() throws IOException {
+        if (closed) {
+            throw new IOException("Server on port " + port + " is already closed");
+        }
+        if (listening) {
+            return;
+        }
+
+        bindAgain(acceptBacklog);
+        listening = true;
+    }
+
+    boolean isListening() {
+        return listening && !closed;
+    }
+
+    /**
+     * Answer requests which match the given pattern with the content of the given file.
+     *
+     * The file is sent via {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so the content is neither read into memory nor copied for each request, which allows
+     * to serve large files to many parallel clients. Requests for one or more ranges
+     * of bytes via the "Range" header are answered with "206 Partial Content", conditional
+     * requests via the "ETag" and "Last-Modified" of the file with "304 Not Modified".
+     *
+     * The file is kept open until the server is closed, it should not be modified while
+     * the server is running.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param file The file to send
+     * @param mimeType The mime-type to set for the response
+     * @throws IOException If the file cannot be opened
+     */
+    public void addFileRoute(String pattern, File file, String mimeType) throws IOException {
+        addRoute(pattern, new FileResponseHandler(file, mimeType, false));
+    }
+
+    /**
+     * Answer requests which match the given pattern with the content of the given file, which
+     * is mapped into memory once.
+     *
+     * Compared to {@link #addFileRoute(String, File, String)} this avoids a system-call
+     * per request for reading the file, but it is limited to files of up to 2GB.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param file The file to send
+     * @param mimeType The mime-type to set for the response
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public void addMappedFileRoute(String pattern, File file, String mimeType) throws IOException {
+        addRoute(pattern, new FileResponseHandler(file, mimeType, true));
+    }
+
+    /**
+     * Answer requests which match the given pattern with the given content, which supports
+     * conditional and range requests like a file route does.
+     *
+     * The response contains an "ETag", which is derived from the content, and the given "Last-Modified".
+     * Requests with a matching "If-None-Match" or "If-Modified-Since" are answered with "304 Not Modified",
+     * requests with a "Range" header with "206 Partial Content". The number of each kind of response and
+     * the bytes which were saved by them are reported via {@link RouteMetrics}, so tests can measure how
+     * much a caching client actually saves.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param mimeType The mime-type to set for the response
+     * @param content The content to send
+     * @param lastModified The time which is sent as "Last-Modified", with a precision of seconds
+     */
+    public void addCacheableRoute(String pattern, String mimeType, byte[] content, Instant lastModified) {
+        Validate.notNull(content, "Content cannot be null");
+        Validate.notNull(lastModified, "Last-Modified cannot be null");
+        addRoute(pattern, new FileResponseHandler(content, mimeType, lastModified));
+    }
+
+    /**
+     * Answer requests which match the given pattern always with the same response.
+     *
+     * The complete response is encoded once when the route is added and sent unchanged
+     * for each request.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+     * @param mimeType The mime-type to set for the response, see NanoHTTPD.MIME_...
+     * @param body The body of the response
+     */
+    public void addStaticRoute(String pattern, String status, String mimeType, byte[] body) {
+        addRoute(pattern, new StaticResponseHandler(status, mimeType, body));
+    }
+
+    /**
+     * Answer requests which match the given pattern always with the same body, compressed with
+     * gzip or deflate if the client accepts it via "Accept-Encoding".
+     *
+     * The body is compressed once when the route is added and the response for each content-coding
+     * is cached, so the server does not spend any CPU on compression while answering requests.
+     * The bytes which were actually sent are reported via {@link #getMetrics()}.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+     * @param mimeType The mime-type to set for the response, see NanoHTTPD.MIME_...
+     * @param body The uncompressed body of the response
+     */
+    public void addCompressedRoute(String pattern, String status, String mimeType, byte[] body) {
+        addRoute(pattern, new CompressedResponseHandler(status, mimeType, body));
+    }
+
+    /**
+     * Answer requests which match the given pattern by passing the request body to the given sink
+     * while it is received, e.g. to test large uploads without holding them in memory, see
+     * {@link RequestBodySink#discard()}, {@link RequestBodySink#hash(String)} and
+     * {@link RequestBodySink#spillToFile()}.
+     *
+     * If the client sends "Expect: 100-continue", it is asked to send the body when the sink
+     * starts reading it.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param sink Consumes the body of each request and provides the text of the "200 OK" response
+     */
+    public void addUploadRoute(String pattern, RequestBodySink sink) {
+        addRoute(pattern, (request, connection) -> {
+            String result = sink.consume(request.getBody());
+            connection.sendResponse(request, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, null,
+                    result.getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    /**
+     * Answer requests which match the given pattern with a body that is produced while
+     * it is sent, e.g. to simulate endless feeds or very large exports.
+     *
+     * For each request a new generator is obtained from the given supplier. Each element is
+     * sent as one chunk with "Transfer-Encoding: chunked" and the next element is only requested
+     * when the previous one was written, so the generator is slowed down by slow clients and
+     * memory usage does not depend on the size of the stream. The body ends when the generator
+     * has no more elements, if it throws an exception the connection is closed.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param mimeType The mime-type to set for the response
+     * @param generator Creates the chunks of the body for one request
+     */
+    public void addStreamingRoute(String pattern, String mimeType, Supplier<? extends Iterator<ByteBuffer>> generator) {
+        addRoute(pattern, StreamingResponseHandler.fromGenerator(mimeType, generator));
+    }
+
+    /**
+     * Answer requests which match the given pattern with a body that is published while
+     * it is sent.
+     *
+     * For each request the supplier is called and the returned publisher is subscribed to. Items
+     * are requested one at a time as they are written to the client, so the publisher receives
+     * back-pressure from slow clients. The body ends when the publisher completes, if it signals
+     * an error the connection is closed.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param mimeType The mime-type to set for the response
+     * @param publisher Creates the publisher of the chunks of the body for one request
+     */
+    public void addPublisherRoute(String pattern, String mimeType, Supplier<? extends Flow.Publisher<ByteBuffer>> publisher) {
+        addRoute(pattern, StreamingResponseHandler.fromPublisher(mimeType, publisher));
+    }
+
+    /**
+     * Answer requests with a body which is rendered from a template for each request.
+     *
+     * The path of the route can contain variables which span a complete segment, e.g.
+     * "GET /users/{id}/orders/{order}". The body can contain the following placeholders:
+     * <ul>
+     *     <li>${path.name}: the value of the variable "name" of the path</li>
+     *     <li>${query.name}: the value of the query-parameter "name" as sent by the client, empty if it is missing</li>
+     *     <li>${counter}: the number of requests answered by this template, starting at 1</li>
+     *     <li>${timestamp}: the current time in milliseconds since the epoch</li>
+     * </ul>
+     *
+     * The template is compiled when the route is added and rendered directly into a re-used
+     * buffer of the connection, so it can be used for load-tests without the overhead of
+     * a handler which builds the body as string. Requests below the path which do not
+     * match the variables of the template are answered with "404 Not Found".
+     *
+     * Templates which are equal up to the first variable, e.g. "/users/{id}" and
+     * "/users/{id}/orders/{order}", can be combined: a request is answered by the first added
+     * template which matches its path. They share one route and thus one {@link RouteMetrics}.
+     *
+     * @param pathTemplate The path with variables, optionally preceded by a HTTP method
+     * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+     * @param mimeType The mime-type to set for the response
+     * @param bodyTemplate The body with placeholders
+     * @throws IllegalArgumentException If a template is invalid or the body uses an unknown placeholder
+     */
+    public void addTemplateRoute(String pathTemplate, String status, String mimeType, String bodyTemplate) {
+        TemplateResponseHandler handler = new TemplateResponseHandler(pathTemplate, status, mimeType, bodyTemplate);
+
+        // templates with the same path up to the first variable share one route
+        synchronized (routes) {
+            Route existing = routes.get(handler.getRoutePattern());
+            if (existing != null && existing.handler instanceof TemplateResponseHandler.Group) {
+                ((TemplateResponseHandler.Group) existing.handler).add(handler);
+            } else {
+                TemplateResponseHandler.Group group = new TemplateResponseHandler.Group();
+                group.add(handler);
+                addRoute(handler.getRoutePattern(), group);
+            }
+        }
+    }
+
+    /**
+     * Push the messages of the given feed to clients as Server-Sent Events ("text/event-stream").
+     *
+     * Each message is sent as one event with the sequence number of the message as "id", so
+     * clients can detect dropped messages by gaps in the ids. Messages which are due at the same
+     * time are written together as one chunk. The stream ends when the feed has no more messages.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param feed The messages to send, it also reports lag and dropped messages per client
+     */
+    public void addSseRoute(String pattern, PushFeed feed) {
+        addRoute(pattern, PushResponseHandler.serverSentEvents(feed));
+    }
+
+    /**
+     * Push the messages of the given feed to clients as text-frames of a WebSocket.
+     *
+     * Requests without WebSocket handshake are answered with "426 Upgrade Required". Pings of the
+     * client are answered and the stream ends when the client sends a close-frame or when the
+     * feed has no more messages. Other frames of the client are ignored. WebSockets are only
+     * supported on HTTP/1.1 connections.
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param feed The messages to send, it also reports lag and dropped messages per client
+     */
+    public void addWebSocketRoute(String pattern, PushFeed feed) {
+        addRoute(pattern, PushResponseHandler.webSocket(feed));
+    }
+
+    /**
+     * Answer requests which match the given pattern with responses which were recorded
+     * via {@link #startRecording(File)}.
+     *
+     * The recording is mapped into memory and indexed by method and request-target when the
+     * route is added, requests are answered by sending the recorded bytes unchanged. If a
+     * request was recorded multiple times, the recorded responses are sent in turn. Requests
+     * without recorded response are answered with "404 Not Found".
+     *
+     * @param pattern The pattern of the requests, see {@link #setFaultProfile(String, FaultProfile)}
+     * @param recording The file with the recorded exchanges
+     * @throws IOException If the file cannot be read or is not a valid recording
+     */
+    public void addReplayRoute(String pattern, File recording) throws IOException {
+        addRoute(pattern, new ReplayResponseHandler(recording));
+    }
+
+    /**
+     * Append all following exchanges, i.e. the request-line and the complete response,
+     * to the given file in a compact binary format. If the file exists already, the
+     * exchanges are added at the end.
+     *
+     * This allows to capture the responses of a real service, e.g. via a {@link Callable}
+     * that forwards requests, and replay them later via {@link #addReplayRoute(String, File)}.
+     *
+     * @param file The file to record to
+     * @throws IOException If the file cannot be opened
+     */
+    public synchronized void startRecording(File file) throws IOException {
+        stopRecording();
+        recorder = new ExchangeRecorder(file);
+    }
+
+    /**
+     * Stop recording exchanges which was started via {@link #startRecording(File)}.
+     *
+     * @throws IOException If closing the file fails
+     */
+    public synchronized void stopRecording() throws IOException {
+        ExchangeRecorder current = recorder;
+        recorder = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    ExchangeRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Accept HTTP/2 without TLS ("h2c") in addition to HTTP/1.1, either when the client
+     * starts the connection with the HTTP/2 preface ("prior knowledge") or when it asks
+     * to upgrade a HTTP/1.1 connection via "Upgrade: h2c".
+     *
+     * All routes, fault profiles and metrics apply to HTTP/2 streams in the same way as to
+     * HTTP/1.1 requests, each stream is handled on its own virtual thread.
+     *
+     * This is not enabled by default as e.g. the HttpClient of the JDK tries to upgrade
+     * connections, which would change the behavior of existing tests.
+     *
+     * @param config The settings which are announced to clients, e.g. {@link Http2Config#DEFAULT}
+     */
+    public void enableHttp2(Http2Config config) {
+        this.http2Config = config;
+    }
+
+    Http2Config getHttp2Config() {
+        return http2Config;
+    }
+
+    void addRoute(String pattern, RequestHandler route) {
+        if (route instanceof Closeable) {
+            resources.add((Closeable) route);
+        }
+
+        // metrics are kept per normalized pattern, so equivalent patterns share one entry
+        // and a replaced route does not keep counting for the new one
+        String normalized = RouteTable.normalize(pattern);
+        Route replaced;
+        synchronized (routes) {
+            replaced = routes.get(normalized);
+            if (replaced != null) {
+                metrics.removeRoute(normalized);
+            }
+            routes.put(normalized, new Route(route, metrics.forRoute(normalized)));
+        }
+
+        // release the files of a replaced route now instead of when the server is closed,
+        // requests which are still answered by it fail then
+        if (replaced != null && replaced.handler != route && replaced.handler instanceof Closeable) {
+            Closeable resource = (Closeable) replaced.handler;
+            resources.remove(resource);
+            try {
+                resource.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close resource " + resource, e);
+            }
+        }
+    }
+
+    /**
+     * @return Counters and handling-times of the requests which were answered by this server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The number of connections, which were accepted since the server was started or the
+     *      metrics were reset, by the number of requests that were received on them, e.g. {1=10} if
+     *      a client opened a new connection for each of 10 requests, or {10=1} if it used the same
+     *      connection for all of them. Connections which are currently open are included.
+     */
+    public Map<Integer, Long> getRequestsPerConnection() {
+        Map<Integer, Long> counts = metrics.getClosedConnectionsByRequests();
+        for (HttpConnection connection : connections) {
+            counts.merge(connection.getRequestCount(), 1L, Long::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Verify that clients sent at least the given number of requests per connection on average,
+     * i.e. that they use persistent connections instead of opening a new connection per request.
+     *
+     * @param requests The minimum average number of requests per accepted connection
+     */
+    public void assertRequestsPerConnectionAtLeast(double requests) {
+        Map<Integer, Long> perConnection = getRequestsPerConnection();
+        long connectionCount = perConnection.values().stream().mapToLong(Long::longValue).sum();
+        long requestCount = perConnection.entrySet().stream().mapToLong(entry -> entry.getKey() * entry.getValue()).sum();
+
+        Assertions.assertTrue(connectionCount > 0, "No connection was accepted by the server");
+        Assertions.assertTrue((double) requestCount / connectionCount >= requests,
+                "Expected at least " + requests + " requests per connection on average, but had " + requestCount +
+                " requests on " + connectionCount + " connections, connections by number of requests: " + perConnection);
+    }
+
+    /**
+     * Verify that clients did not open more than the given number of connections.
+     *
+     * @param connections The maximum number of connections which may have been accepted
+     */
+    public void assertMaxConnections(int connections) {
+        Map<Integer, Long> perConnection = getRequestsPerConnection();
+        long connectionCount = perConnection.values().stream().mapToLong(Long::longValue).sum();
+
+        Assertions.assertTrue(connectionCount <= connections,
+                "Expected at most " + connections + " connections, but had " + connectionCount +
+                ", connections by number of requests: " + perConnection);
+    }
+
     public int getPort() {
         return port;
     }
 
+    /**
+     * Bring the server back into the state after construction, but answering requests via the given
+     * handler: open connections are closed, routes, fault profiles, limits and metrics are removed,
+     * recording is stopped and HTTP/2 is disabled. Used by the {@link MockRESTServerPool} to re-use servers.
+     */
+    void reset(RequestHandler handler) {
+        stopConnections();
+
+        routes.clear();
+        faultProfiles.clear();
+        rateLimits.clear();
+        maxConcurrentRequests = 0;
+        http2Config = null;
+
+        try {
+            startListening();
+            setConnectionLimit(0, DEFAULT_ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to restore listening with the default backlog on port " + port, e);
+        }
+
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to stop recording", e);
+        }
+        closeResources();
+
+        metrics.clear();
+        defaultRoute = new Route(handler, metrics.forRoute("*"));
+    }
+
+    /**
+     * Mark the server as taken from the pool, {@link #close()} does not shut it down anymore.
+     *
+     * @return The generation of this lease, needed to return the server via {@link #release(long)}.
+     */
+    long leased() {
+        pooled = true;
+        return leaseGeneration.incrementAndGet();
+    }
+
+    /**
+     * Return the server to the pool, if the given lease is still the current one.
+     *
+     * @param generation The generation which was returned by {@link #leased()}
+     */
+    void release(long generation) {
+        // a lease which was returned already must not affect a later lease of the same server
+        if (leaseGeneration.compareAndSet(generation, generation + 1)) {
+            MockRESTServerPool.release(this);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop the server.
+     *
+     * Servers of the {@link MockRESTServerPool} are not affected, they are returned to the pool
+     * by closing their {@link MockRESTServerPool.Lease}.
+     */
     @Override
     public void close() {
-        httpd.stop();
+        if (pooled) {
+            // the server may already be used by another lease, so only the lease can return it
+            log.fine("Ignoring close() of server on port " + port + " from the pool, close the lease instead");
+            return;
+        }
+
+        shutdown();
+    }
+
+    /**
+     * Stop accepting connections, close all open connections and release all resources.
+     */
+    void shutdown() {
+        closed = true;
+
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                log.log(Level.WARNING, "Could not unregister metrics of server on port " + port + " from JMX", e);
+            }
+        }
+
+        synchronized (this) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close server on port " + port, e);
+            }
+        }
+
+        // the thread may be paused because of the limit of connections
+        LockSupport.unpark(acceptThread);
+        try {
+            acceptThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopConnections();
+
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to stop recording", e);
+        }
+        closeResources();
+    }
+
+    /**
+     * Stop any connection that is still open, this also stops pending delays.
+     */
+    private void stopConnections() {
+        List<HttpConnection> open = new ArrayList<>(connections);
+        open.forEach(HttpConnection::abort);
+
+        try {
+            for (HttpConnection connection : open) {
+                connection.join(SHUTDOWN_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeResources() {
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close resource " + resource, e);
+            }
+        }
+        resources.clear();
+    }
+
+    /**
+     * A handler together with the metrics of the route it was added for.
+     */
+    static final class Route {
+        final RequestHandler handler;
+        final RouteMetrics metrics;
+
+        Route(RequestHandler handler, RouteMetrics metrics) {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Internal interface for the different ways that the server can answer requests.
+     */
+    @FunctionalInterface
+    interface RequestHandler {
+        void handle(MockRequest request, HttpConnection connection) throws Exception;
     }
 }
@@ -0,0 +1,155 @@
+package org.dstadler.commons.testing;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * JVM-wide pool of running {@link MockRESTServer} instances.
+ *
+ * Creating a server binds a port and starts a thread, closing it stops both again. With the
+ * pool this is done only once, tests lease a server which is already running and only the
+ * handler is exchanged. Closing the {@link Lease} returns the server to the pool.
+ *
+ * <code>
+ try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+     MockRESTServer server = lease.getServer();
+     ...
+ }
+ </code>
+ *
+ * Each lease has its own handle, so closing a lease a second time, e.g. from a late cleanup,
+ * does nothing even if the server was leased again in the meantime. {@link MockRESTServer#close()}
+ * does not affect servers of the pool.
+ *
+ * A leased server behaves like a newly created one: routes, fault profiles, metrics and
+ * recording of the previous lease are removed and connections of previous clients are closed.
+ *
+ * As the servers keep running, tests which check for left-over threads should call
+ * {@link #closeIdleServers()} first.
+ */
+public final class MockRESTServerPool {
+	// servers which are running, but not leased, the most recently used one first
+	private static final Deque<MockRESTServer> IDLE = new ConcurrentLinkedDeque<>();
+
+	private static final MockRESTServer.RequestHandler NOT_LEASED = MockRESTServer.staticResponse(
+			MockRESTServer.HTTP_SERVICE_UNAVAILABLE, NanoHTTPD.MIME_PLAINTEXT, "Server is currently not leased from the pool");
+
+	private MockRESTServerPool() {
+	}
+
+	/**
+	 * Lease a server that responds with the given HTTP Status Code, see
+	 * {@link MockRESTServer#MockRESTServer(String, String, String)}.
+	 *
+	 * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+	 * @param mime The mime-type to set for the response, see NanoHTTPD.MIME_...
+	 * @param msg The actual message to return when the HTTP server is called.
+	 * @return The lease of a running server, close it to return the server to the pool
+	 * @throws IOException If no server was idle and creating a new one failed
+	 */
+	public static Lease lease(String status, String mime, String msg) throws IOException {
+		return lease(MockRESTServer.staticResponse(status, mime, msg));
+	}
+
+	/**
+	 * Lease a server that runs the given Runnable and responds with the given HTTP Status Code, see
+	 * {@link MockRESTServer#MockRESTServer(Runnable, String, String, String)}.
+	 *
+	 * @param response A {@link Runnable} which is called whenever the HTTP server is called.
+	 * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+	 * @param mime The mime-type to set for the response, see NanoHTTPD.MIME_...
+	 * @param msg The actual message to return when the HTTP server is called.
+	 * @return The lease of a running server, close it to return the server to the pool
+	 * @throws IOException If no server was idle and creating a new one failed
+	 */
+	public static Lease lease(Runnable response, String status, String mime, String msg) throws IOException {
+		return lease(MockRESTServer.runAndRespond(response, status, mime, msg));
+	}
+
+	/**
+	 * Lease a server that responds via the given Callable, see
+	 * {@link MockRESTServer#MockRESTServer(Callable)}.
+	 *
+	 * @param response A {@link Callable} which is called whenever the HTTP server is called.
+	 * @return The lease of a running server, close it to return the server to the pool
+	 * @throws IOException If no server was idle and creating a new one failed
+	 */
+	public static Lease lease(Callable<NanoHTTPD.Response> response) throws IOException {
+		return lease(MockRESTServer.respondVia(response));
+	}
+
+	private static Lease lease(MockRESTServer.RequestHandler handler) throws IOException {
+		MockRESTServer server = IDLE.pollFirst();
+		while (server != null && server.isClosed()) {
+			server = IDLE.pollFirst();
+		}
+
+		if (server == null) {
+			server = new MockRESTServer(handler);
+		} else {
+			server.reset(handler);
+		}
+
+		return new Lease(server, server.leased());
+	}
+
+	/**
+	 * Called via {@link Lease#close()} of the current lease of the server.
+	 */
+	static void release(MockRESTServer server) {
+		// release files and recordings of the test right away, not only with the next lease
+		server.reset(NOT_LEASED);
+		IDLE.offerFirst(server);
+	}
+
+	/**
+	 * A server which was taken from the pool, closing the lease returns the server.
+	 */
+	public static final class Lease implements AutoCloseable {
+		private final MockRESTServer server;
+		private final long generation;
+
+		private Lease(MockRESTServer server, long generation) {
+			this.server = server;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return The leased server, it should not be used anymore after the lease was closed.
+		 */
+		public MockRESTServer getServer() {
+			return server;
+		}
+
+		/**
+		 * Return the server to the pool, closing the lease again does nothing.
+		 */
+		@Override
+		public void close() {
+			server.release(generation);
+		}
+	}
+
+	/**
+	 * @return The number of servers which are running, but currently not leased.
+	 */
+	public static int getIdleCount() {
+		return IDLE.size();
+	}
+
+	/**
+	 * Shut down all servers which are currently not leased. Servers which are leased at the moment
+	 * are kept and returned to the pool when they are closed.
+	 */
+	public static void closeIdleServers() {
+		MockRESTServer server = IDLE.pollFirst();
+		while (server != null) {
+			server.shutdown();
+			server = IDLE.pollFirst();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.dstadler.commons.testing;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A HTTP request as parsed by the {@link MockRESTServer}.
+ */
+final class MockRequest {
+	private final String method;
+	private final String uri;
+	private final String path;
+	private final String query;
+	private final String version;
+	private final Map<String, String> headers;
+	private final InputStream body;
+
+	MockRequest(String method, String uri, String version, Map<String, String> headers, InputStream body) {
+		this.method = method;
+		this.uri = uri;
+		this.version = version;
+		this.headers = headers;
+		this.body = body;
+
+		int queryStart = uri.indexOf('?');
+		this.path = queryStart == -1 ? uri : uri.substring(0, queryStart);
+		this.query = queryStart == -1 ? null : uri.substring(queryStart + 1);
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	String getUri() {
+		return uri;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	String getQuery() {
+		return query;
+	}
+
+	String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param name The name of the header, case-insensitive
+	 * @return The value of the header or null if the request did not contain it, repeated headers are
+	 * 		combined into a comma-separated list.
+	 */
+	String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	InputStream getBody() {
+		return body;
+	}
+
+	boolean isHead() {
+		return "HEAD".equals(method);
+	}
+
+	/**
+	 * @return true if the client allows to keep the connection open after the response was sent.
+	 */
+	boolean isKeepAlive() {
+		String connection = headers.get("Connection");
+		if ("HTTP/1.0".equals(version)) {
+			return "keep-alive".equalsIgnoreCase(connection);
+		}
+
+		return !"close".equalsIgnoreCase(connection);
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + uri + " " + version;
+	}
+}
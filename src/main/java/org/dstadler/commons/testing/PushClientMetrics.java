@@ -0,0 +1,101 @@
+package org.dstadler.commons.testing;
+
+/**
+ * Counters of one client which is connected to a {@link PushFeed}, e.g. via
+ * {@link MockRESTServer#addSseRoute(String, PushFeed)}.
+ *
+ * The values are only updated by the thread which sends the messages to the client,
+ * so they are kept in plain volatile fields without any locking.
+ */
+public final class PushClientMetrics {
+	private final int id;
+
+	private volatile boolean connected = true;
+	private volatile long messagesSent;
+	private volatile long bytesSent;
+	private volatile long droppedMessages;
+	private volatile long lag;
+	private volatile long maxLag;
+
+	PushClientMetrics(int id) {
+		this.id = id;
+	}
+
+	void sent(int messages, long bytes) {
+		messagesSent += messages;
+		bytesSent += bytes;
+	}
+
+	void dropped(long messages) {
+		droppedMessages += messages;
+	}
+
+	void lag(long messages) {
+		lag = messages;
+		if (messages > maxLag) {
+			maxLag = messages;
+		}
+	}
+
+	void disconnected() {
+		lag = 0;
+		connected = false;
+	}
+
+	/**
+	 * @return The number of the client, starting at 1 for the first client of the feed.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return true while messages are sent to the client.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return The number of messages which were written to the client.
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * @return The number of bytes which were written for the messages, without the headers of the response.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return The number of messages which were skipped because the client fell behind by
+	 * 		more than {@link PushFeed.Builder#maxLag(int)} messages.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages;
+	}
+
+	/**
+	 * @return The number of messages which are due according to the rate of the feed, but
+	 * 		were not written yet, as of the last write to the client.
+	 */
+	public long getLag() {
+		return lag;
+	}
+
+	/**
+	 * @return The highest lag which was seen for this client.
+	 */
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	@Override
+	public String toString() {
+		return "client " + id + ": connected=" + connected + ", messagesSent=" + messagesSent + ", bytesSent=" + bytesSent +
+				", droppedMessages=" + droppedMessages + ", lag=" + lag + ", maxLag=" + maxLag;
+	}
+}
@@ -0,0 +1,295 @@
+package org.dstadler.commons.testing;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Describes the messages which the {@link MockRESTServer} pushes to clients of a
+ * Server-Sent Events or WebSocket endpoint, see {@link MockRESTServer#addSseRoute(String, PushFeed)}
+ * and {@link MockRESTServer#addWebSocketRoute(String, PushFeed)}.
+ *
+ * Messages are either emitted at a fixed rate or as fast as the client reads them. Each client
+ * receives its own sequence of messages, starting when it connects. All messages which are due
+ * are written together in one batch, so high rates do not cause one system-call per message.
+ *
+ * If a client reads slower than the rate of the feed, it falls behind. Once it is behind by
+ * more than {@link Builder#maxLag(int)} messages, the oldest messages are dropped, like a server
+ * with a bounded buffer per client would do. Lag and dropped messages are reported per client
+ * via {@link #getClients()}.
+ *
+ * A feed keeps the counters of its clients, so if the same instance is used for multiple
+ * routes, the clients of all routes are reported together.
+ *
+ * <code>
+ PushFeed feed = PushFeed.builder()
+         .rate(50_000)
+         .messages(sequence -> "{\"sequence\":" + sequence + "}")
+         .maxLag(10_000)
+         .build();
+ server.addSseRoute("/events", feed);
+ ...
+ feed.getDroppedMessages();
+ </code>
+ */
+public final class PushFeed {
+	private final double messagesPerSecond;
+	private final LongFunction<String> messages;
+	private final Supplier<? extends Iterator<String>> generator;
+	private final long limit;
+	private final int maxLag;
+	private final int batchSize;
+
+	private final AtomicInteger clientCount = new AtomicInteger();
+	private final List<PushClientMetrics> clients = new CopyOnWriteArrayList<>();
+
+	private PushFeed(Builder builder) {
+		this.messagesPerSecond = builder.messagesPerSecond;
+		this.messages = builder.messages;
+		this.generator = builder.generator;
+		this.limit = builder.limit;
+		this.maxLag = builder.maxLag;
+		this.batchSize = builder.batchSize;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Register a new client, called when the response to a client starts.
+	 */
+	PushClientMetrics clientConnected() {
+		PushClientMetrics client = new PushClientMetrics(clientCount.incrementAndGet());
+		clients.add(client);
+		return client;
+	}
+
+	/**
+	 * @return The messages for one client.
+	 */
+	Source newSource() {
+		return generator == null ? new SequenceSource(messages) : new GeneratorSource(generator.get());
+	}
+
+	/**
+	 * @return The number of nanoseconds between two messages, zero if messages are sent as fast as possible.
+	 */
+	long getIntervalNanos() {
+		return messagesPerSecond <= 0 ? 0 : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond));
+	}
+
+	long getLimit() {
+		return limit;
+	}
+
+	int getMaxLag() {
+		return maxLag;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return All clients which connected so far, including clients which are disconnected already.
+	 */
+	public List<PushClientMetrics> getClients() {
+		return Collections.unmodifiableList(clients);
+	}
+
+	/**
+	 * @return The number of clients which currently receive messages.
+	 */
+	public int getConnectedClients() {
+		int connected = 0;
+		for (PushClientMetrics client : clients) {
+			if (client.isConnected()) {
+				connected++;
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * @return The number of messages which were written to all clients.
+	 */
+	public long getMessagesSent() {
+		long sent = 0;
+		for (PushClientMetrics client : clients) {
+			sent += client.getMessagesSent();
+		}
+		return sent;
+	}
+
+	/**
+	 * @return The number of messages which were dropped for all clients.
+	 */
+	public long getDroppedMessages() {
+		long dropped = 0;
+		for (PushClientMetrics client : clients) {
+			dropped += client.getDroppedMessages();
+		}
+		return dropped;
+	}
+
+	@Override
+	public String toString() {
+		return "PushFeed{rate=" + messagesPerSecond + "/s, clients=" + clients.size() + ", messagesSent=" +
+				getMessagesSent() + ", droppedMessages=" + getDroppedMessages() + "}";
+	}
+
+	/**
+	 * The messages for one client, only used by the thread which sends to this client.
+	 */
+	abstract static class Source {
+		// the sequence number of the next message
+		long sequence;
+
+		abstract boolean hasNext();
+
+		abstract String next();
+
+		/**
+		 * Skip the given number of messages without sending them.
+		 */
+		abstract void skip(long count);
+	}
+
+	private static final class SequenceSource extends Source {
+		private final LongFunction<String> messages;
+
+		private SequenceSource(LongFunction<String> messages) {
+			this.messages = messages;
+		}
+
+		@Override
+		boolean hasNext() {
+			return true;
+		}
+
+		@Override
+		String next() {
+			return messages.apply(sequence++);
+		}
+
+		@Override
+		void skip(long count) {
+			// messages are created on demand, so there is nothing to do for skipped ones
+			sequence += count;
+		}
+	}
+
+	private static final class GeneratorSource extends Source {
+		private final Iterator<String> messages;
+
+		private GeneratorSource(Iterator<String> messages) {
+			this.messages = messages;
+		}
+
+		@Override
+		boolean hasNext() {
+			return messages.hasNext();
+		}
+
+		@Override
+		String next() {
+			sequence++;
+			return messages.next();
+		}
+
+		@Override
+		void skip(long count) {
+			for (long i = 0; i < count && messages.hasNext(); i++) {
+				next();
+			}
+		}
+	}
+
+	public static final class Builder {
+		private double messagesPerSecond;
+		private LongFunction<String> messages = sequence -> Long.toString(sequence);
+		private Supplier<? extends Iterator<String>> generator;
+		private long limit = Long.MAX_VALUE;
+		private int maxLag = 10_000;
+		private int batchSize = 1_000;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param messagesPerSecond The number of messages which are sent to each client per second,
+		 *                          zero to send messages as fast as the client reads them, which is the default.
+		 * @return This builder
+		 */
+		public Builder rate(double messagesPerSecond) {
+			Validate.isTrue(messagesPerSecond >= 0, "Rate cannot be negative, but had: %s", messagesPerSecond);
+			this.messagesPerSecond = messagesPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param messages Creates the message with the given sequence number, starting at 0 for each
+		 *                 client. It is called concurrently for all clients. By default the message
+		 *                 is the sequence number.
+		 * @return This builder
+		 */
+		public Builder messages(LongFunction<String> messages) {
+			this.messages = Validate.notNull(messages, "Messages cannot be null");
+			this.generator = null;
+			return this;
+		}
+
+		/**
+		 * @param generator Creates the messages for one client, the stream ends when the generator
+		 *                  has no more elements.
+		 * @return This builder
+		 */
+		public Builder generator(Supplier<? extends Iterator<String>> generator) {
+			this.generator = Validate.notNull(generator, "Generator cannot be null");
+			return this;
+		}
+
+		/**
+		 * @param limit The number of messages after which the stream to a client ends, by default it is endless.
+		 * @return This builder
+		 */
+		public Builder limit(long limit) {
+			Validate.isTrue(limit >= 0, "Limit cannot be negative, but had: %s", limit);
+			this.limit = limit;
+			return this;
+		}
+
+		/**
+		 * @param maxLag The number of due messages which are kept for a client which falls behind
+		 *               the rate of the feed, older ones are dropped. Defaults to 10,000.
+		 * @return This builder
+		 */
+		public Builder maxLag(int maxLag) {
+			Validate.isTrue(maxLag > 0, "Maximum lag needs to be positive, but had: %s", maxLag);
+			this.maxLag = maxLag;
+			return this;
+		}
+
+		/**
+		 * @param batchSize The maximum number of messages which are written together, defaults to 1,000.
+		 * @return This builder
+		 */
+		public Builder batchSize(int batchSize) {
+			Validate.isTrue(batchSize > 0, "Batch size needs to be positive, but had: %s", batchSize);
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public PushFeed build() {
+			return new PushFeed(this);
+		}
+	}
+}
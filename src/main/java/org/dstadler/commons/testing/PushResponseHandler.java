@@ -0,0 +1,483 @@
+package org.dstadler.commons.testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * Pushes the messages of a {@link PushFeed} to a client, either as Server-Sent Events
+ * ("text/event-stream") or as text-frames of a WebSocket (RFC 6455).
+ *
+ * All messages which are due are encoded into one buffer and written with a single write,
+ * for Server-Sent Events as one chunk of a response with "Transfer-Encoding: chunked".
+ *
+ * For WebSockets, frames of the client are read on a separate virtual thread: pings are
+ * answered, a close-frame ends the stream and all other frames are discarded.
+ */
+final class PushResponseHandler implements MockRESTServer.RequestHandler {
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private static final String HTTP_UPGRADE_REQUIRED = "426 Upgrade Required";
+
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private static final int CLOSE_NORMAL = 1000;
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+	// how long to wait for the close-frame of the client after the feed ended
+	private static final long CLOSE_TIMEOUT_MS = 1_000;
+
+	private static final byte[] SSE_HEAD = ("HTTP/1.1 200 OK\r\n" +
+			"Content-Type: text/event-stream\r\n" +
+			"Cache-Control: no-cache\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] SSE_CHUNKED_HEAD = (new String(SSE_HEAD, StandardCharsets.ISO_8859_1) +
+			"Transfer-Encoding: chunked\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+	private static final byte[] ID = "id: ".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] DATA = "data: ".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final PushFeed feed;
+	private final boolean webSocket;
+
+	private PushResponseHandler(PushFeed feed, boolean webSocket) {
+		this.feed = feed;
+		this.webSocket = webSocket;
+	}
+
+	static PushResponseHandler serverSentEvents(PushFeed feed) {
+		return new PushResponseHandler(feed, false);
+	}
+
+	static PushResponseHandler webSocket(PushFeed feed) {
+		return new PushResponseHandler(feed, true);
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		if (webSocket) {
+			handleWebSocket(request, connection);
+		} else {
+			handleServerSentEvents(request, connection);
+		}
+	}
+
+	private void handleServerSentEvents(MockRequest request, HttpConnection connection) throws IOException {
+		boolean chunked = !"HTTP/1.0".equals(request.getVersion());
+		if (!chunked) {
+			connection.closeAfterResponse();
+		}
+
+		connection.writeHead(chunked ? SSE_CHUNKED_HEAD : SSE_HEAD);
+		if (request.isHead()) {
+			return;
+		}
+
+		new Sender(connection, chunked, null).run();
+
+		if (chunked) {
+			connection.writeLastChunk();
+		}
+	}
+
+	private void handleWebSocket(MockRequest request, HttpConnection connection) throws IOException {
+		String key = request.getHeader("Sec-WebSocket-Key");
+		InputStream input = connection.upgradedInput();
+		if (!isWebSocketHandshake(request) || key == null || input == null) {
+			Properties headers = new Properties();
+			headers.setProperty("Upgrade", "websocket");
+			headers.setProperty("Sec-WebSocket-Version", "13");
+			connection.sendResponse(request, HTTP_UPGRADE_REQUIRED, NanoHTTPD.MIME_PLAINTEXT, headers,
+					"Expected a WebSocket handshake".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		// the connection is used for the WebSocket until it ends, no further HTTP requests are read from it
+		connection.closeAfterResponse();
+		connection.write(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n" +
+				"Upgrade: websocket\r\n" +
+				"Connection: Upgrade\r\n" +
+				"Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+
+		FrameReader reader = new FrameReader(input, Thread.currentThread());
+		Thread readerThread = Thread.ofVirtual().name(Thread.currentThread().getName() + "-websocket").start(reader);
+		try {
+			new Sender(connection, false, reader).run();
+
+			// wait for the client to confirm the close-frame, it then closes the connection
+			readerThread.join(CLOSE_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing the WebSocket");
+		} finally {
+			connection.close();
+			try {
+				readerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static boolean isWebSocketHandshake(MockRequest request) {
+		String upgrade = request.getHeader("Upgrade");
+		return "GET".equals(request.getMethod()) && "13".equals(request.getHeader("Sec-WebSocket-Version")) &&
+				upgrade != null && Arrays.asList(upgrade.toLowerCase(Locale.ROOT).split("\\s*,\\s*")).contains("websocket");
+	}
+
+	static String acceptKey(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest((key.trim() + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is required to be available", e);
+		}
+	}
+
+	static void writeFrame(ByteArrayOutputStream out, int opcode, byte[] payload, int offset, int length) {
+		// FIN, no extensions, frames of the server are not masked
+		out.write(0x80 | opcode);
+		if (length < 126) {
+			out.write(length);
+		} else if (length < 65536) {
+			out.write(126);
+			out.write(length >>> 8);
+			out.write(length);
+		} else {
+			out.write(127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) length >>> shift));
+			}
+		}
+		out.write(payload, offset, length);
+	}
+
+	private static byte[] closePayload(int code) {
+		return new byte[] { (byte) (code >>> 8), (byte) code };
+	}
+
+	/**
+	 * Sends the messages of the feed to one client on the thread of the connection.
+	 */
+	private final class Sender {
+		private final HttpConnection connection;
+		private final boolean chunked;
+		private final FrameReader reader;
+
+		private final PushClientMetrics client = feed.clientConnected();
+		private final PushFeed.Source source = feed.newSource();
+		private final BatchBuffer batch = new BatchBuffer();
+
+		private Sender(HttpConnection connection, boolean chunked, FrameReader reader) {
+			this.connection = connection;
+			this.chunked = chunked;
+			this.reader = reader;
+		}
+
+		private void run() throws IOException {
+			try {
+				long interval = feed.getIntervalNanos();
+				long limit = feed.getLimit();
+				long start = System.nanoTime();
+				while (true) {
+					if (reader != null) {
+						reader.takeControlFrames(batch);
+						if (reader.isDone()) {
+							// the client closed the WebSocket, send the pending close-frame and stop
+							flush(0);
+							return;
+						}
+					}
+
+					if (source.sequence >= limit || !hasNext()) {
+						break;
+					}
+
+					long available = limit - source.sequence;
+					if (interval > 0) {
+						// all messages up to now are due, the first one right away
+						long due = Math.min(limit, (System.nanoTime() - start) / interval + 1);
+						long lag = due - source.sequence;
+						if (lag <= 0) {
+							flush(0);
+							pause(start + source.sequence * interval);
+							continue;
+						}
+
+						if (lag > feed.getMaxLag()) {
+							long dropped = lag - feed.getMaxLag();
+							skip(dropped);
+							client.dropped(dropped);
+							lag = feed.getMaxLag();
+						}
+						client.lag(lag);
+						available = lag;
+					}
+
+					int count = 0;
+					while (count < available && count < feed.getBatchSize() && hasNext()) {
+						encode(source.sequence, nextMessage());
+						count++;
+					}
+					flush(count);
+				}
+
+				if (reader != null) {
+					writeFrame(batch, OPCODE_CLOSE, closePayload(CLOSE_NORMAL), 0, 2);
+					flush(0);
+				}
+			} finally {
+				client.disconnected();
+			}
+		}
+
+		private boolean hasNext() throws IOException {
+			try {
+				return source.hasNext();
+			} catch (RuntimeException e) {
+				throw generatorFailed(e);
+			}
+		}
+
+		private String nextMessage() throws IOException {
+			try {
+				return source.next();
+			} catch (RuntimeException e) {
+				throw generatorFailed(e);
+			}
+		}
+
+		private void skip(long count) throws IOException {
+			try {
+				source.skip(count);
+			} catch (RuntimeException e) {
+				throw generatorFailed(e);
+			}
+		}
+
+		private IOException generatorFailed(RuntimeException e) {
+			// the headers are sent already, so only closing the connection tells the client about the problem
+			connection.closeAfterResponse();
+			return new IOException("Generator of the pushed messages failed", e);
+		}
+
+		private void encode(long sequence, String message) {
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			if (reader != null) {
+				writeFrame(batch, OPCODE_TEXT, bytes, 0, bytes.length);
+				return;
+			}
+
+			batch.write(ID, 0, ID.length);
+			batch.writeAscii(Long.toString(sequence));
+			batch.write('\n');
+
+			// each line of the message is sent as separate "data" field
+			int lineStart = 0;
+			for (int i = 0; i <= bytes.length; i++) {
+				if (i == bytes.length || bytes[i] == '\n' || bytes[i] == '\r') {
+					batch.write(DATA, 0, DATA.length);
+					batch.write(bytes, lineStart, i - lineStart);
+					batch.write('\n');
+					if (i < bytes.length - 1 && bytes[i] == '\r' && bytes[i + 1] == '\n') {
+						i++;
+					}
+					lineStart = i + 1;
+				}
+			}
+			batch.write('\n');
+		}
+
+		/**
+		 * Write the batch with one call and count the given number of messages in it.
+		 */
+		private void flush(int messages) throws IOException {
+			if (batch.size() == 0) {
+				return;
+			}
+
+			int bytes = batch.size();
+			if (chunked) {
+				connection.writeChunk(batch.asByteBuffer());
+			} else {
+				connection.write(batch.asByteBuffer());
+			}
+			batch.reset();
+			client.sent(messages, bytes);
+		}
+
+		/**
+		 * Wait until the given time, a WebSocket-client can wake up the thread early by sending a ping or close-frame.
+		 */
+		private void pause(long untilNanos) throws InterruptedIOException {
+			long remaining = untilNanos - System.nanoTime();
+			while (remaining > 0 && (reader == null || !reader.hasControlFrames())) {
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the next message");
+				}
+				remaining = untilNanos - System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Reads the frames which the client sends via the WebSocket.
+	 */
+	private static final class FrameReader implements Runnable {
+		private final InputStream input;
+		private final Thread sender;
+
+		// encoded frames which the sender should write, e.g. answers to pings
+		private final Queue<byte[]> controlFrames = new ConcurrentLinkedQueue<>();
+		private volatile boolean done;
+
+		private FrameReader(InputStream input, Thread sender) {
+			this.input = input;
+			this.sender = sender;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (readFrame()) {
+					// handle frames until the client closes the WebSocket
+				}
+			} catch (IOException e) {
+				// the connection was closed
+			} finally {
+				done = true;
+				LockSupport.unpark(sender);
+			}
+		}
+
+		/**
+		 * @return false if no more frames should be read
+		 */
+		private boolean readFrame() throws IOException {
+			int first = input.read();
+			int second = input.read();
+			if (first == -1 || second == -1) {
+				return false;
+			}
+
+			int opcode = first & 0x0F;
+			long length = second & 0x7F;
+			if (length == 126) {
+				length = ((long) readByte() << 8) | readByte();
+			} else if (length == 127) {
+				length = 0;
+				for (int i = 0; i < 8; i++) {
+					length = (length << 8) | readByte();
+				}
+			}
+
+			boolean control = (opcode & 0x8) != 0;
+			boolean masked = (second & 0x80) != 0;
+			if (!masked || length < 0 || (control && length > 125) || (opcode > OPCODE_TEXT + 1 && !control)) {
+				// frames of clients are always masked, control-frames are short and opcodes 3-7 are reserved
+				sendControlFrame(OPCODE_CLOSE, closePayload(CLOSE_PROTOCOL_ERROR));
+				return false;
+			}
+
+			byte[] mask = input.readNBytes(4);
+			if (!control) {
+				// text, binary and continuation frames of the client are not used
+				input.skipNBytes(length);
+				return true;
+			}
+
+			byte[] payload = input.readNBytes((int) length);
+			if (mask.length < 4 || payload.length < length) {
+				return false;
+			}
+			for (int i = 0; i < payload.length; i++) {
+				payload[i] ^= mask[i % 4];
+			}
+
+			if (opcode == OPCODE_CLOSE) {
+				// echo the status code, the connection is closed after the close-frame was sent
+				sendControlFrame(OPCODE_CLOSE, payload.length >= 2 ? Arrays.copyOf(payload, 2) : new byte[0]);
+				return false;
+			}
+			if (opcode == OPCODE_PING) {
+				sendControlFrame(OPCODE_PONG, payload);
+			}
+			return true;
+		}
+
+		private int readByte() throws IOException {
+			int value = input.read();
+			if (value == -1) {
+				throw new IOException("WebSocket was closed in the middle of a frame");
+			}
+			return value;
+		}
+
+		private void sendControlFrame(int opcode, byte[] payload) {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 2);
+			writeFrame(frame, opcode, payload, 0, payload.length);
+			controlFrames.add(frame.toByteArray());
+			LockSupport.unpark(sender);
+		}
+
+		private boolean hasControlFrames() {
+			return !controlFrames.isEmpty() || done;
+		}
+
+		/**
+		 * Move all pending control-frames into the given batch.
+		 */
+		private void takeControlFrames(BatchBuffer batch) {
+			byte[] frame = controlFrames.poll();
+			while (frame != null) {
+				batch.write(frame, 0, frame.length);
+				frame = controlFrames.poll();
+			}
+		}
+
+		/**
+		 * @return true if the client closed the WebSocket or the connection, all control-frames
+		 * 		were queued before this returns true.
+		 */
+		private boolean isDone() {
+			return done && controlFrames.isEmpty();
+		}
+	}
+
+	/**
+	 * Collects the encoded messages of one batch and hands them out without copying.
+	 */
+	private static final class BatchBuffer extends ByteArrayOutputStream {
+		private BatchBuffer() {
+			super(64 * 1024);
+		}
+
+		private void writeAscii(String value) {
+			for (int i = 0; i < value.length(); i++) {
+				write(value.charAt(i));
+			}
+		}
+
+		private ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.dstadler.commons.testing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A token-bucket which limits the rate of requests that the {@link MockRESTServer}
+ * accepts for a route, additional requests are answered with "429 Too Many Requests"
+ * and a "Retry-After" header, see {@link MockRESTServer#setRateLimit(String, RateLimit)}.
+ *
+ * The bucket is refilled continuously with the given rate and holds at most "burst"
+ * tokens. Instead of a counter of tokens, only the time at which the bucket is full again
+ * is kept in a single atomic value (also known as "generic cell rate algorithm"), so
+ * a request is admitted or rejected with one compare-and-set and without any lock.
+ *
+ * A limit keeps state, so if the same instance is applied to multiple routes, they share
+ * the tokens.
+ *
+ * <code>
+ server.setRateLimit("/api/*", RateLimit.perSecond(100, 10));
+ </code>
+ */
+public final class RateLimit {
+	private final double permitsPerSecond;
+	private final int burst;
+
+	// time between two tokens and the time which is covered by a full bucket
+	private final long intervalNanos;
+	private final long burstNanos;
+
+	// the time at which the bucket is full again, in the scale of System.nanoTime()
+	private final AtomicLong fullAt;
+
+	private RateLimit(double permitsPerSecond, int burst) {
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.burstNanos = intervalNanos * burst;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * @param permitsPerSecond The number of requests which are allowed per second on average
+	 * @param burst The number of requests which are allowed at once after a period without requests, at least 1
+	 * @return A new rate limit
+	 */
+	public static RateLimit perSecond(double permitsPerSecond, int burst) {
+		Validate.isTrue(permitsPerSecond > 0, "Rate needs to be positive, but had: %s", permitsPerSecond);
+		Validate.isTrue(burst >= 1, "Burst needs to be at least 1, but had: %s", burst);
+		return new RateLimit(permitsPerSecond, burst);
+	}
+
+	/**
+	 * Take one token from the bucket if one is available.
+	 *
+	 * @return Zero if the request is admitted, otherwise the number of nanoseconds until the next token is available.
+	 */
+	long tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long current = fullAt.get();
+
+			// an empty bucket is full again after "burst" intervals, compare via subtraction to handle overflow of nanoTime
+			long next = (current - now < 0 ? now : current) + intervalNanos;
+			long wait = next - now - burstNanos;
+			if (wait > 0) {
+				return wait;
+			}
+
+			if (fullAt.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimit{" + permitsPerSecond + "/s, burst=" + burst + "}";
+	}
+}
@@ -0,0 +1,146 @@
+package org.dstadler.commons.testing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * Answers requests with the responses from a file that was written by {@link ExchangeRecorder}.
+ *
+ * The file is mapped into memory and indexed once by method and request-target, at this
+ * time only the keys of the records are read. A request is answered by writing the
+ * recorded bytes directly from the mapped file, without parsing them again. If multiple
+ * responses were recorded for the same request, they are replayed in the recorded order
+ * and then again from the start.
+ *
+ * Requests which were not recorded are answered with "404 Not Found".
+ */
+final class ReplayResponseHandler implements MockRESTServer.RequestHandler, Closeable {
+	private static final Logger log = Logger.getLogger(ReplayResponseHandler.class.getName());
+
+	private final FileChannel file;
+	private final ByteBuffer mapped;
+	private final Map<String, Responses> index;
+
+	ReplayResponseHandler(File recording) throws IOException {
+		file = FileChannel.open(recording.toPath(), StandardOpenOption.READ);
+		try {
+			long size = file.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Can only replay recordings of up to 2GB, but had " + size + " bytes for " + recording);
+			}
+
+			mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			index = buildIndex(mapped, recording);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private static Map<String, Responses> buildIndex(ByteBuffer mapped, File recording) throws IOException {
+		if (mapped.limit() < Integer.BYTES || mapped.getInt(0) != ExchangeRecorder.MAGIC) {
+			throw new IOException("File " + recording + " is not a recording of exchanges of the MockRESTServer");
+		}
+
+		Map<String, List<int[]>> positions = new HashMap<>();
+		int position = Integer.BYTES;
+		while (position < mapped.limit()) {
+			// a record that was cut off when the recording was not closed properly
+			if (mapped.limit() - position < Integer.BYTES) {
+				break;
+			}
+			int keyLength = mapped.getInt(position);
+			int responsePosition = position + Integer.BYTES + keyLength + 1 + Integer.BYTES;
+			if (keyLength < 0 || responsePosition > mapped.limit()) {
+				break;
+			}
+			int responseLength = mapped.getInt(responsePosition - Integer.BYTES);
+			if (responseLength < 0 || responsePosition + responseLength > mapped.limit()) {
+				break;
+			}
+
+			byte[] key = new byte[keyLength];
+			mapped.get(position + Integer.BYTES, key);
+			byte flags = mapped.get(position + Integer.BYTES + keyLength);
+
+			positions.computeIfAbsent(new String(key, StandardCharsets.UTF_8), k -> new ArrayList<>())
+					.add(new int[] { responsePosition, responseLength, flags });
+
+			position = responsePosition + responseLength;
+		}
+
+		if (position < mapped.limit()) {
+			log.warning("Ignoring incomplete record at the end of recording " + recording + " at position " + position);
+		}
+
+		Map<String, Responses> index = new HashMap<>();
+		positions.forEach((key, list) -> index.put(key, new Responses(list)));
+		return index;
+	}
+
+	/**
+	 * @return The number of different requests which have a recorded response.
+	 */
+	int size() {
+		return index.size();
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		Responses responses = index.get(ExchangeRecorder.key(request.getMethod(), request.getUri()));
+		if (responses == null) {
+			connection.sendResponse(request, NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, null,
+					("No response recorded for " + request.getMethod() + " " + request.getUri()).getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		int i = responses.next();
+		if ((responses.flags[i] & ExchangeRecorder.FLAG_CLOSE) != 0) {
+			connection.closeAfterResponse();
+		}
+		connection.write(mapped.slice(responses.positions[i], responses.lengths[i]));
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * The recorded responses for one request.
+	 */
+	private static final class Responses {
+		private final int[] positions;
+		private final int[] lengths;
+		private final byte[] flags;
+		private final AtomicInteger next = new AtomicInteger();
+
+		private Responses(List<int[]> records) {
+			positions = new int[records.size()];
+			lengths = new int[records.size()];
+			flags = new byte[records.size()];
+			for (int i = 0; i < records.size(); i++) {
+				positions[i] = records.get(i)[0];
+				lengths[i] = records.get(i)[1];
+				flags[i] = (byte) records.get(i)[2];
+			}
+		}
+
+		private int next() {
+			return Math.floorMod(next.getAndIncrement(), positions.length);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.dstadler.commons.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Consumes the body of a request while it is received, see
+ * {@link MockRESTServer#addUploadRoute(String, RequestBodySink)}.
+ *
+ * The body is handed over as stream which reads directly from the connection, so
+ * uploads of any size can be handled without keeping them in memory. Use
+ * {@link java.nio.channels.Channels#newChannel(InputStream)} if a
+ * {@link java.nio.channels.ReadableByteChannel} is needed.
+ */
+@FunctionalInterface
+public interface RequestBodySink {
+	/**
+	 * Read the body of one request.
+	 *
+	 * @param body The body of the request, it is only valid during this call
+	 * @return The text which is sent back to the client as body of a "200 OK" response
+	 * @throws IOException If reading the body fails, the connection is closed then
+	 */
+	String consume(InputStream body) throws IOException;
+
+	/**
+	 * @return A sink which reads and discards the body and responds with the number of bytes that were received.
+	 */
+	static RequestBodySink discard() {
+		return body -> Long.toString(body.transferTo(OutputStream.nullOutputStream()));
+	}
+
+	/**
+	 * @param algorithm The name of the {@link MessageDigest}, e.g. "SHA-256"
+	 * @return A sink which computes a hash of the body and responds with it as hex-string.
+	 * @throws IllegalArgumentException If the algorithm is not available
+	 */
+	static RequestBodySink hash(String algorithm) {
+		try {
+			// fail early for unknown algorithms, but use a separate digest for each request
+			MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm, e);
+		}
+
+		return body -> {
+			final MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+
+			byte[] buffer = new byte[64 * 1024];
+			int read = body.read(buffer);
+			while (read != -1) {
+				digest.update(buffer, 0, read);
+				read = body.read(buffer);
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		};
+	}
+
+	/**
+	 * Write the body to a new file in the runtime data directory, see
+	 * {@link TestEnvironment#createTempFile(String, String)}. The files are not removed
+	 * automatically, e.g. use {@link TestEnvironment#clearRuntimeData()}.
+	 *
+	 * @return A sink which stores the body in a file and responds with the absolute path of the file.
+	 */
+	static RequestBodySink spillToFile() {
+		return body -> {
+			File directory = new File(TestEnvironment.ABS_RUNTIME_DATA_PATH);
+			if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+				throw new IOException("Could not create directory " + directory);
+			}
+
+			File file = TestEnvironment.createTempFile("upload", ".bin");
+			Files.copy(body, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return file.getAbsolutePath();
+		};
+	}
+}
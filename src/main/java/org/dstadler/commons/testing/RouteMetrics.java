@@ -0,0 +1,145 @@
+package org.dstadler.commons.testing;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and handling-times of the requests which were answered by one route of
+ * a {@link MockRESTServer}.
+ *
+ * All counters are striped, so recording does not contend when many connections
+ * are served in parallel.
+ */
+public final class RouteMetrics {
+	private final String pattern;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder bytesSaved = new LongAdder();
+	private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+	private final LatencyHistogram handlingTime = new LatencyHistogram();
+
+	RouteMetrics(String pattern) {
+		this.pattern = pattern;
+	}
+
+	void record(int status, long in, long out, long saved, long handlingNanos) {
+		requests.increment();
+		bytesIn.add(in);
+		bytesOut.add(out);
+		if (saved > 0) {
+			bytesSaved.add(saved);
+		}
+		if (status > 0) {
+			statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+		}
+		handlingTime.record(handlingNanos);
+	}
+
+	/**
+	 * @return The pattern of the route, "*" for the default response of the server.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return The number of requests which were handled by this route.
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * @return The number of bytes which were received for the requests, including request-line and headers.
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return The number of bytes which were sent for the responses, including status-line and headers.
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @return The number of content bytes which were not sent because the client used a conditional
+	 * 		or a range request, e.g. the full size of the content for a "304 Not Modified". Only routes
+	 * 		which support such requests, like file routes, report this.
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	/**
+	 * @return The number of responses with status "200 OK".
+	 */
+	public long getFullResponses() {
+		return getStatusCount(200);
+	}
+
+	/**
+	 * @return The number of responses with status "304 Not Modified", i.e. conditional requests
+	 * 		which were answered without content.
+	 */
+	public long getNotModifiedResponses() {
+		return getStatusCount(304);
+	}
+
+	/**
+	 * @return The number of responses with status "206 Partial Content", i.e. range requests.
+	 */
+	public long getPartialResponses() {
+		return getStatusCount(206);
+	}
+
+	/**
+	 * @param status The HTTP status code, e.g. 200
+	 * @return The number of responses which were sent with this status code.
+	 */
+	public long getStatusCount(int status) {
+		LongAdder count = statusCounts.get(status);
+		return count == null ? 0 : count.sum();
+	}
+
+	/**
+	 * @return The number of responses per HTTP status code, requests without response, e.g.
+	 * 		because the connection was reset, are not included.
+	 */
+	public Map<Integer, Long> getStatusCounts() {
+		Map<Integer, Long> counts = new TreeMap<>();
+		statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+		return counts;
+	}
+
+	/**
+	 * @return The time in nanoseconds from receiving a request until the response was sent, including
+	 * 		delays which were added via a {@link FaultProfile}.
+	 */
+	public LatencyHistogram getHandlingTime() {
+		return handlingTime;
+	}
+
+	void reset() {
+		requests.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		bytesSaved.reset();
+		statusCounts.clear();
+		handlingTime.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%s: requests=%d, status=%s, bytesIn=%d, bytesOut=%d, p50=%.3fms, p99=%.3fms, max=%.3fms",
+				pattern, getRequests(), getStatusCounts(), getBytesIn(), getBytesOut(),
+				LatencyHistogram.toMillis(handlingTime.getValueAtPercentile(50.0)),
+				LatencyHistogram.toMillis(handlingTime.getValueAtPercentile(99.0)),
+				LatencyHistogram.toMillis(handlingTime.getMax()));
+	}
+}
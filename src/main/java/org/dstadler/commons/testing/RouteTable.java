@@ -0,0 +1,154 @@
+package org.dstadler.commons.testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Maps request-paths to values, used by the {@link MockRESTServer} for anything
+ * that can be configured per route.
+ *
+ * A pattern is either an exact path like "/api/users" or a prefix like
+ * "/api/*" which matches all paths starting with "/api/". A single "*" matches all
+ * paths. Optionally the pattern can be preceded by a HTTP method and a space, e.g.
+ * "POST /api/*", to only match requests with this method. Methods are matched
+ * case-insensitively, so patterns are normalized to upper-case methods, see {@link #normalize(String)}.
+ *
+ * If multiple patterns match, the most specific one wins: patterns with a method
+ * before patterns without, exact paths before prefixes and longer prefixes before
+ * shorter ones.
+ *
+ * Lookups are lock-free and do not allocate, updates copy the table.
+ *
+ * @param <T> The type of values which are stored
+ */
+final class RouteTable<T> {
+	private static final Comparator<Entry<?>> SPECIFICITY = Comparator
+			.comparing((Entry<?> entry) -> entry.method == null)
+			.thenComparing(entry -> entry.prefix)
+			.thenComparing(entry -> -entry.path.length());
+
+	private volatile Entry<?>[] entries = new Entry<?>[0];
+
+	/**
+	 * Normalize the pattern of a route as it is stored in the table: surrounding whitespace is
+	 * removed and the method is converted to upper-case, so e.g. "get /a" and " GET /a" are
+	 * the same route.
+	 *
+	 * @param pattern The pattern of the route, see the class description
+	 * @return The normalized pattern
+	 */
+	static String normalize(String pattern) {
+		return new Entry<>(pattern, null).pattern;
+	}
+
+	/**
+	 * Add or replace the value for the given pattern.
+	 *
+	 * @param pattern The pattern of the route, see the class description
+	 * @param value The value for this route
+	 */
+	synchronized void put(String pattern, T value) {
+		Validate.notNull(value, "Value for route %s cannot be null", pattern);
+		Entry<T> entry = new Entry<>(pattern, value);
+
+		List<Entry<?>> list = new ArrayList<>(Arrays.asList(entries));
+		list.removeIf(existing -> existing.pattern.equals(entry.pattern));
+		list.add(entry);
+		list.sort(SPECIFICITY);
+
+		entries = list.toArray(new Entry<?>[0]);
+	}
+
+	/**
+	 * Get the value which was put for the given pattern, other patterns which also
+	 * match the same requests are not considered.
+	 *
+	 * @param pattern The pattern of the route, see the class description
+	 * @return The value or null if there is no route with this pattern.
+	 */
+	@SuppressWarnings("unchecked")
+	T get(String pattern) {
+		String normalized = normalize(pattern);
+		for (Entry<?> entry : entries) {
+			if (entry.pattern.equals(normalized)) {
+				return (T) entry.value;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove the value for the given pattern, if there is one.
+	 *
+	 * @param pattern The pattern of the route, see the class description
+	 */
+	synchronized void remove(String pattern) {
+		Entry<T> entry = new Entry<>(pattern, null);
+
+		List<Entry<?>> list = new ArrayList<>(Arrays.asList(entries));
+		if (list.removeIf(existing -> existing.pattern.equals(entry.pattern))) {
+			entries = list.toArray(new Entry<?>[0]);
+		}
+	}
+
+	/**
+	 * Remove all routes.
+	 */
+	synchronized void clear() {
+		entries = new Entry<?>[0];
+	}
+
+	/**
+	 * Find the most specific value for the given request.
+	 *
+	 * @param method The HTTP method of the request
+	 * @param path The path of the request, without query-string
+	 * @return The value of the best matching route or null if no route matches.
+	 */
+	@SuppressWarnings("unchecked")
+	T match(String method, String path) {
+		for (Entry<?> entry : entries) {
+			if (entry.matches(method, path)) {
+				return (T) entry.value;
+			}
+		}
+
+		return null;
+	}
+
+	private static final class Entry<T> {
+		private final String pattern;
+		private final String method;
+		private final String path;
+		private final boolean prefix;
+		private final T value;
+
+		private Entry(String pattern, T value) {
+			Validate.notNull(pattern, "Pattern cannot be null");
+
+			String trimmed = pattern.trim();
+			int space = trimmed.indexOf(' ');
+			this.method = space == -1 ? null : trimmed.substring(0, space).toUpperCase(Locale.ROOT);
+			String pathPattern = space == -1 ? trimmed : trimmed.substring(space + 1).trim();
+
+			this.prefix = pathPattern.endsWith("*");
+			this.path = prefix ? pathPattern.substring(0, pathPattern.length() - 1) : pathPattern;
+			this.pattern = (method == null ? "" : method + " ") + pathPattern;
+			this.value = value;
+		}
+
+		private boolean matches(String requestMethod, String requestPath) {
+			if (method != null && !method.equalsIgnoreCase(requestMethod)) {
+				return false;
+			}
+
+			return prefix ? requestPath.startsWith(path) : requestPath.equals(path);
+		}
+	}
+}
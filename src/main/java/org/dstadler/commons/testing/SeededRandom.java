@@ -0,0 +1,29 @@
+package org.dstadler.commons.testing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
+
+/**
+ * Lock-free, seeded random generator based on the SplitMix64 algorithm.
+ *
+ * The state is advanced with a single atomic add, so many connection threads can draw
+ * values concurrently without contending on a lock. The sequence of values which is
+ * handed out is fully determined by the seed.
+ */
+final class SeededRandom implements RandomGenerator {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final AtomicLong state;
+
+	SeededRandom(long seed) {
+		this.state = new AtomicLong(seed);
+	}
+
+	@Override
+	public long nextLong() {
+		long z = state.addAndGet(GOLDEN_GAMMA);
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
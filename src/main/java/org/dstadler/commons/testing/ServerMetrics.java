@@ -0,0 +1,214 @@
+package org.dstadler.commons.testing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link MockRESTServer}, i.e. connection-counts and the {@link RouteMetrics}
+ * of all routes.
+ *
+ * This allows to see if time in a benchmark was spent in the client or in the mock:
+ * the handling-time of the routes only covers the time in the server.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder openConnections = new LongAdder();
+	private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+	// requests which are currently handled and requests which were rejected because of limits
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	private final LongAdder rateLimitedRequests = new LongAdder();
+	private final LongAdder concurrencyLimitedRequests = new LongAdder();
+
+	// number of closed connections by the number of requests that were served on them
+	private final Map<Integer, LongAdder> closedConnectionsByRequests = new ConcurrentHashMap<>();
+
+	ServerMetrics() {
+	}
+
+	void connectionOpened() {
+		acceptedConnections.increment();
+		openConnections.increment();
+	}
+
+	void connectionClosed(int requests) {
+		openConnections.decrement();
+		closedConnectionsByRequests.computeIfAbsent(requests, key -> new LongAdder()).increment();
+	}
+
+	Map<Integer, Long> getClosedConnectionsByRequests() {
+		Map<Integer, Long> counts = new TreeMap<>();
+		closedConnectionsByRequests.forEach((requests, count) -> counts.put(requests, count.sum()));
+		return counts;
+	}
+
+	/**
+	 * @return The number of requests in flight including the one which is started now.
+	 */
+	int requestStarted() {
+		return inFlightRequests.incrementAndGet();
+	}
+
+	void requestFinished() {
+		inFlightRequests.decrementAndGet();
+	}
+
+	void rateLimited() {
+		rateLimitedRequests.increment();
+	}
+
+	void concurrencyLimited() {
+		concurrencyLimitedRequests.increment();
+	}
+
+	/**
+	 * @param pattern The normalized pattern of the route, see {@link RouteTable#normalize(String)}
+	 */
+	RouteMetrics forRoute(String pattern) {
+		return routes.computeIfAbsent(pattern, RouteMetrics::new);
+	}
+
+	/**
+	 * Drop the metrics of a route which was replaced, the next call to {@link #forRoute(String)} starts new ones.
+	 */
+	void removeRoute(String pattern) {
+		routes.remove(pattern);
+	}
+
+	/**
+	 * @return The number of connections which were accepted.
+	 */
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	/**
+	 * @return The number of connections which are currently open.
+	 */
+	@Override
+	public long getOpenConnections() {
+		return openConnections.sum();
+	}
+
+	/**
+	 * @return The number of requests which are currently handled.
+	 */
+	@Override
+	public int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	/**
+	 * @return The number of requests which were answered with "429 Too Many Requests" because of a {@link RateLimit}.
+	 */
+	@Override
+	public long getRateLimitedRequests() {
+		return rateLimitedRequests.sum();
+	}
+
+	/**
+	 * @return The number of requests which were answered with "503 Service Unavailable" because the
+	 *         maximum of concurrent requests was reached, see {@link MockRESTServer#setMaxConcurrentRequests(int)}.
+	 */
+	@Override
+	public long getConcurrencyLimitedRequests() {
+		return concurrencyLimitedRequests.sum();
+	}
+
+	/**
+	 * @return The number of requests which were rejected because of any limit.
+	 */
+	@Override
+	public long getShedRequests() {
+		return getRateLimitedRequests() + getConcurrencyLimitedRequests();
+	}
+
+	/**
+	 * @return The number of requests of all routes.
+	 */
+	@Override
+	public long getRequests() {
+		return routes.values().stream().mapToLong(RouteMetrics::getRequests).sum();
+	}
+
+	/**
+	 * @return The number of bytes which were received for the requests of all routes.
+	 */
+	@Override
+	public long getBytesIn() {
+		return routes.values().stream().mapToLong(RouteMetrics::getBytesIn).sum();
+	}
+
+	/**
+	 * @return The number of bytes which were sent for the responses of all routes.
+	 */
+	@Override
+	public long getBytesOut() {
+		return routes.values().stream().mapToLong(RouteMetrics::getBytesOut).sum();
+	}
+
+	/**
+	 * @return The number of content bytes which were not sent for all routes because of conditional
+	 *         or range requests, see {@link RouteMetrics#getBytesSaved()}.
+	 */
+	@Override
+	public long getBytesSaved() {
+		return routes.values().stream().mapToLong(RouteMetrics::getBytesSaved).sum();
+	}
+
+	/**
+	 * @param pattern The pattern of the route as it was used when adding the route, the case of the
+	 *                method and surrounding whitespace do not matter, "*" for the default response of the server.
+	 * @return The metrics of the route or null if no such route was added.
+	 */
+	public RouteMetrics getRoute(String pattern) {
+		return routes.get(RouteTable.normalize(pattern));
+	}
+
+	/**
+	 * @return The metrics of all routes by their normalized pattern, i.e. with upper-case methods.
+	 */
+	public Map<String, RouteMetrics> getRoutes() {
+		return Collections.unmodifiableMap(new TreeMap<>(routes));
+	}
+
+	@Override
+	public Map<String, String> getRouteSummaries() {
+		Map<String, String> summaries = new TreeMap<>();
+		routes.forEach((pattern, metrics) -> summaries.put(pattern, metrics.toString()));
+		return summaries;
+	}
+
+	/**
+	 * Reset the counters of all routes, the number of open connections and requests in flight are kept.
+	 */
+	@Override
+	public void reset() {
+		acceptedConnections.reset();
+		rateLimitedRequests.reset();
+		concurrencyLimitedRequests.reset();
+		closedConnectionsByRequests.clear();
+		routes.values().forEach(RouteMetrics::reset);
+	}
+
+	/**
+	 * Reset all counters and remove the metrics of all routes, so only routes which are added
+	 * afterwards are reported.
+	 */
+	void clear() {
+		reset();
+		routes.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "acceptedConnections=" + getAcceptedConnections() + ", openConnections=" + getOpenConnections() +
+				", inFlightRequests=" + getInFlightRequests() + ", shedRequests=" + getShedRequests() +
+				", routes=" + getRouteSummaries().values();
+	}
+}
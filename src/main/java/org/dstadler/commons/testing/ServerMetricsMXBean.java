@@ -0,0 +1,39 @@
+package org.dstadler.commons.testing;
+
+import java.util.Map;
+
+/**
+ * JMX interface of the metrics of a {@link MockRESTServer}, registered as
+ * "org.dstadler.commons.testing:type=MockRESTServer,port=&lt;port&gt;" while the server is running.
+ */
+public interface ServerMetricsMXBean {
+	long getAcceptedConnections();
+
+	long getOpenConnections();
+
+	long getRequests();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getBytesSaved();
+
+	int getInFlightRequests();
+
+	long getRateLimitedRequests();
+
+	long getConcurrencyLimitedRequests();
+
+	long getShedRequests();
+
+	/**
+	 * @return A summary of the counters and handling-times per route.
+	 */
+	Map<String, String> getRouteSummaries();
+
+	/**
+	 * Reset all counters and histograms, e.g. after a warmup.
+	 */
+	void reset();
+}
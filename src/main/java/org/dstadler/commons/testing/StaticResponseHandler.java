@@ -0,0 +1,69 @@
+package org.dstadler.commons.testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends the same response for every request.
+ *
+ * The complete response, i.e. status-line, headers and body, is encoded once into
+ * read-only direct buffers, so answering a request neither encodes anything nor
+ * copies the data into a temporary direct buffer before it is sent to the socket.
+ *
+ * As the response never changes, it does not contain a "Date" header.
+ */
+final class StaticResponseHandler implements MockRESTServer.RequestHandler {
+	private final ByteBuffer keepAliveResponse;
+	private final ByteBuffer closeResponse;
+	private final ByteBuffer keepAliveHead;
+	private final ByteBuffer closeHead;
+
+	StaticResponseHandler(String status, String mimeType, byte[] body) {
+		this(status, mimeType, "", body);
+	}
+
+	/**
+	 * @param headers Additional headers, each terminated by CRLF
+	 */
+	StaticResponseHandler(String status, String mimeType, String headers, byte[] body) {
+		StringBuilder head = new StringBuilder(128)
+				.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (mimeType != null) {
+			head.append("Content-Type: ").append(mimeType).append("\r\n");
+		}
+		head.append(headers);
+		head.append("Content-Length: ").append(body.length).append("\r\n");
+
+		String keepAlive = head + "\r\n";
+		String close = head + "Connection: close\r\n\r\n";
+
+		keepAliveHead = encode(keepAlive, null);
+		closeHead = encode(close, null);
+		keepAliveResponse = encode(keepAlive, body);
+		closeResponse = encode(close, body);
+	}
+
+	private static ByteBuffer encode(String head, byte[] body) {
+		byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(headBytes.length + (body == null ? 0 : body.length));
+		buffer.put(headBytes);
+		if (body != null) {
+			buffer.put(body);
+		}
+		return buffer.flip().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		final ByteBuffer response;
+		if (request.isHead()) {
+			response = connection.isKeepAlive() ? keepAliveHead : closeHead;
+		} else {
+			response = connection.isKeepAlive() ? keepAliveResponse : closeResponse;
+		}
+
+		// the buffers are shared by all connections, so each write needs its own position
+		connection.write(response.duplicate());
+	}
+}
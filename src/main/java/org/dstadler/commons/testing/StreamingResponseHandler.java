@@ -0,0 +1,182 @@
+package org.dstadler.commons.testing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Sends a response body of unknown, possibly unlimited, length with
+ * "Transfer-Encoding: chunked" while it is produced.
+ *
+ * The body is taken from a generator ({@link Iterator}) or a {@link Flow.Publisher}, which
+ * is created anew for each request. Only one element is requested at a time and only after
+ * the previous one was written to the socket, so a slow client slows down the producer
+ * and the memory used by the server does not grow with the size of the stream.
+ *
+ * Clients which only speak HTTP/1.0 receive the body without chunks and the end of the
+ * body is signaled by closing the connection.
+ */
+final class StreamingResponseHandler implements MockRESTServer.RequestHandler {
+	private final Supplier<? extends Iterator<ByteBuffer>> generator;
+	private final Supplier<? extends Flow.Publisher<ByteBuffer>> publisher;
+
+	// status-line and headers of the response, encoded once
+	private final byte[] chunkedHead;
+	private final byte[] plainHead;
+
+	private StreamingResponseHandler(String mimeType, Supplier<? extends Iterator<ByteBuffer>> generator,
+			Supplier<? extends Flow.Publisher<ByteBuffer>> publisher) {
+		this.generator = generator;
+		this.publisher = publisher;
+
+		String head = "HTTP/1.1 200 OK\r\n" +
+				"Content-Type: " + mimeType + "\r\n";
+		this.plainHead = head.getBytes(StandardCharsets.ISO_8859_1);
+		this.chunkedHead = (head + "Transfer-Encoding: chunked\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	static StreamingResponseHandler fromGenerator(String mimeType, Supplier<? extends Iterator<ByteBuffer>> generator) {
+		return new StreamingResponseHandler(mimeType, generator, null);
+	}
+
+	static StreamingResponseHandler fromPublisher(String mimeType, Supplier<? extends Flow.Publisher<ByteBuffer>> publisher) {
+		return new StreamingResponseHandler(mimeType, null, publisher);
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		boolean chunked = !"HTTP/1.0".equals(request.getVersion());
+		if (!chunked) {
+			connection.closeAfterResponse();
+		}
+
+		connection.writeHead(chunked ? chunkedHead : plainHead);
+		if (request.isHead()) {
+			return;
+		}
+
+		if (generator != null) {
+			sendGenerated(connection, chunked);
+		} else {
+			sendPublished(connection, chunked);
+		}
+
+		if (chunked) {
+			connection.writeLastChunk();
+		}
+	}
+
+	private void sendGenerated(HttpConnection connection, boolean chunked) throws IOException {
+		Iterator<ByteBuffer> chunks = generator.get();
+		while (true) {
+			final ByteBuffer chunk;
+			try {
+				if (!chunks.hasNext()) {
+					return;
+				}
+				chunk = chunks.next();
+			} catch (RuntimeException e) {
+				// the headers are sent already, so only closing the connection tells the client about the problem
+				connection.closeAfterResponse();
+				throw new IOException("Generator of the streamed response failed", e);
+			}
+
+			write(connection, chunk, chunked);
+		}
+	}
+
+	private void sendPublished(HttpConnection connection, boolean chunked) throws IOException {
+		BodySubscriber subscriber = new BodySubscriber();
+		publisher.get().subscribe(subscriber);
+
+		try {
+			ByteBuffer chunk = subscriber.next();
+			while (chunk != null) {
+				write(connection, chunk, chunked);
+				chunk = subscriber.next();
+			}
+		} catch (IOException e) {
+			connection.closeAfterResponse();
+			subscriber.cancel();
+			throw e;
+		}
+	}
+
+	private static void write(HttpConnection connection, ByteBuffer chunk, boolean chunked) throws IOException {
+		if (chunked) {
+			connection.writeChunk(chunk);
+		} else {
+			connection.write(chunk);
+		}
+	}
+
+	/**
+	 * Hands over the items of a publisher to the thread of the connection, requesting
+	 * the next item only when the previous one was taken.
+	 */
+	private static final class BodySubscriber implements Flow.Subscriber<ByteBuffer> {
+		private static final Object COMPLETE = new Object();
+
+		// holds at most one item plus the terminal signal
+		private final BlockingQueue<Object> items = new LinkedBlockingQueue<>();
+		private volatile Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(ByteBuffer item) {
+			items.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			items.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			items.add(COMPLETE);
+		}
+
+		/**
+		 * @return The next item or null if the publisher completed
+		 * @throws IOException If the publisher failed or the connection is closed while waiting
+		 */
+		private ByteBuffer next() throws IOException {
+			final Object item;
+			try {
+				item = items.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the publisher of the streamed response");
+			}
+
+			if (item == COMPLETE) {
+				return null;
+			}
+			if (item instanceof Throwable) {
+				throw new IOException("Publisher of the streamed response failed", (Throwable) item);
+			}
+
+			subscription.request(1);
+			return (ByteBuffer) item;
+		}
+
+		private void cancel() {
+			Flow.Subscription current = subscription;
+			if (current != null) {
+				current.cancel();
+			}
+		}
+	}
+}
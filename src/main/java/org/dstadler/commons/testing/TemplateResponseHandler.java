@@ -0,0 +1,371 @@
+package org.dstadler.commons.testing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+import org.dstadler.commons.http.NanoHTTPD;
+
+/**
+ * Renders a response from a template whose body contains placeholders which are
+ * replaced for each request, see {@link MockRESTServer#addTemplateRoute(String, String, String, String)}.
+ *
+ * The template is compiled once into encoded literal segments and slots for the placeholders.
+ * A response is rendered directly into a re-used direct buffer of the connection: values are
+ * copied from the request-line or written as digits, so no strings are built per request.
+ * As the length of the body is known only afterwards, the body is rendered first and the
+ * headers are placed right in front of it.
+ */
+final class TemplateResponseHandler implements MockRESTServer.RequestHandler {
+	private static final int SLOT_COUNTER = 0;
+	private static final int SLOT_TIMESTAMP = 1;
+	private static final int SLOT_PATH = 2;
+	private static final int SLOT_QUERY = 3;
+
+	// the longest decimal representation of a long value
+	private static final int MAX_DIGITS = 20;
+
+	private static final byte[] KEEP_ALIVE_END = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] CLOSE_END = "\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final String routePattern;
+
+	// method and path of the template, identifies the template within its group
+	private final String template;
+
+	// the segments of the path, null for a variable
+	private final String[] pathSegments;
+
+	// status-line and headers up to the value of the Content-Length
+	private final byte[] headStart;
+
+	// the body consists of literals[0], slots[0], literals[1], ..., slots[n-1], literals[n]
+	private final byte[][] literals;
+	private final int[] slotTypes;
+	private final int[] slotSegments;
+	private final byte[][] slotNames;
+	private final int literalLength;
+
+	private final AtomicLong counter = new AtomicLong();
+
+	/**
+	 * @param pathTemplate The path of the route with variables like "/users/{id}", optionally preceded by a method
+	 * @param status The HTTP status to return, see NanoHTTPD.HTTP_...
+	 * @param mimeType The mime-type to set for the response
+	 * @param bodyTemplate The body with placeholders
+	 * @throws IllegalArgumentException If one of the templates is invalid
+	 */
+	TemplateResponseHandler(String pathTemplate, String status, String mimeType, String bodyTemplate) {
+		Validate.notNull(pathTemplate, "Path template cannot be null");
+		Validate.notNull(bodyTemplate, "Body template cannot be null");
+
+		String trimmed = pathTemplate.trim();
+		int space = trimmed.indexOf(' ');
+		String method = space == -1 ? "" : trimmed.substring(0, space + 1).toUpperCase(Locale.ROOT);
+		String path = space == -1 ? trimmed : trimmed.substring(space + 1).trim();
+
+		// the route matches everything below the first variable, the remaining segments are checked per request
+		int firstVariable = path.indexOf('{');
+		this.routePattern = method + (firstVariable == -1 ? path : path.substring(0, firstVariable) + "*");
+		this.template = method + path;
+		this.pathSegments = path.split("/", -1);
+		List<String> variables = new ArrayList<>();
+		for (int i = 0; i < pathSegments.length; i++) {
+			String segment = pathSegments[i];
+			if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+				variables.add(segment.substring(1, segment.length() - 1));
+				pathSegments[i] = null;
+			} else {
+				Validate.isTrue(segment.indexOf('{') == -1 && segment.indexOf('}') == -1,
+						"Variables need to span a complete segment of the path, but had: %s", pathTemplate);
+				// keeps the index of the variable in the list aligned with the segments
+				variables.add(null);
+			}
+		}
+
+		StringBuilder head = new StringBuilder(128)
+				.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (mimeType != null) {
+			head.append("Content-Type: ").append(mimeType).append("\r\n");
+		}
+		head.append("Content-Length: ");
+		this.headStart = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+		List<byte[]> literalList = new ArrayList<>();
+		List<int[]> slotList = new ArrayList<>();
+		List<byte[]> nameList = new ArrayList<>();
+		int length = 0;
+		int position = 0;
+		while (true) {
+			int start = bodyTemplate.indexOf("${", position);
+			byte[] literal = bodyTemplate.substring(position, start == -1 ? bodyTemplate.length() : start).getBytes(StandardCharsets.UTF_8);
+			literalList.add(literal);
+			length += literal.length;
+			if (start == -1) {
+				break;
+			}
+
+			int end = bodyTemplate.indexOf('}', start);
+			Validate.isTrue(end != -1, "Placeholder at position %s is not closed in template: %s", start, bodyTemplate);
+			String placeholder = bodyTemplate.substring(start + 2, end).trim();
+			if ("counter".equals(placeholder)) {
+				slotList.add(new int[] { SLOT_COUNTER, -1 });
+				nameList.add(null);
+			} else if ("timestamp".equals(placeholder)) {
+				slotList.add(new int[] { SLOT_TIMESTAMP, -1 });
+				nameList.add(null);
+			} else if (placeholder.startsWith("path.")) {
+				int segment = variables.indexOf(placeholder.substring(5));
+				Validate.isTrue(segment != -1, "Unknown path variable '%s', path template is: %s", placeholder, pathTemplate);
+				slotList.add(new int[] { SLOT_PATH, segment });
+				nameList.add(null);
+			} else if (placeholder.startsWith("query.") && placeholder.length() > 6) {
+				slotList.add(new int[] { SLOT_QUERY, -1 });
+				nameList.add(placeholder.substring(6).getBytes(StandardCharsets.ISO_8859_1));
+			} else {
+				throw new IllegalArgumentException("Unknown placeholder '" + placeholder + "', expected one of counter, timestamp, " +
+						"path.<variable> or query.<parameter>");
+			}
+			position = end + 1;
+		}
+
+		this.literals = literalList.toArray(new byte[0][]);
+		this.slotTypes = slotList.stream().mapToInt(slot -> slot[0]).toArray();
+		this.slotSegments = slotList.stream().mapToInt(slot -> slot[1]).toArray();
+		this.slotNames = nameList.toArray(new byte[0][]);
+		this.literalLength = length;
+	}
+
+	/**
+	 * @return The pattern of the route which covers all paths that can match the template.
+	 */
+	String getRoutePattern() {
+		return routePattern;
+	}
+
+	@Override
+	public void handle(MockRequest request, HttpConnection connection) throws IOException {
+		if (!matchesPath(request.getPath())) {
+			sendNotFound(request, connection);
+			return;
+		}
+		render(request, connection);
+	}
+
+	private static void sendNotFound(MockRequest request, HttpConnection connection) throws IOException {
+		connection.sendResponse(request, NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, null,
+				("No template matches " + request.getPath()).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void render(MockRequest request, HttpConnection connection) throws IOException {
+		// values are parts of the request-line or numbers, so this is an upper bound for the size of the response
+		byte[] end = connection.isKeepAlive() ? KEEP_ALIVE_END : CLOSE_END;
+		int headReserve = headStart.length + MAX_DIGITS + end.length;
+		int capacity = headReserve + literalLength + slotTypes.length * Math.max(MAX_DIGITS, request.getUri().length());
+		ByteBuffer buffer = connection.responseBuffer(capacity);
+
+		// render the body behind the space which is reserved for the head
+		buffer.position(headReserve);
+		for (int i = 0; i < slotTypes.length; i++) {
+			buffer.put(literals[i]);
+			renderSlot(i, request, buffer);
+		}
+		buffer.put(literals[slotTypes.length]);
+		int bodyLength = buffer.position() - headReserve;
+
+		// put the head directly in front of the body
+		int headLength = headStart.length + digits(bodyLength) + end.length;
+		int start = headReserve - headLength;
+		buffer.position(start);
+		buffer.put(headStart);
+		putDigits(buffer, bodyLength);
+		buffer.put(end);
+
+		buffer.limit(request.isHead() ? headReserve : headReserve + bodyLength);
+		buffer.position(start);
+		connection.write(buffer);
+	}
+
+	boolean matchesPath(String path) {
+		int segmentStart = 0;
+		for (int i = 0; i < pathSegments.length; i++) {
+			if (segmentStart > path.length()) {
+				return false;
+			}
+
+			int segmentEnd = segmentEnd(path, segmentStart);
+			String literal = pathSegments[i];
+			if (literal == null) {
+				// variables need a value
+				if (segmentEnd == segmentStart) {
+					return false;
+				}
+			} else if (literal.length() != segmentEnd - segmentStart || !path.startsWith(literal, segmentStart)) {
+				return false;
+			}
+			segmentStart = segmentEnd + 1;
+		}
+
+		// no additional segments
+		return segmentStart == path.length() + 1;
+	}
+
+	private static int segmentEnd(String path, int segmentStart) {
+		int end = path.indexOf('/', segmentStart);
+		return end == -1 ? path.length() : end;
+	}
+
+	private void renderSlot(int slot, MockRequest request, ByteBuffer buffer) {
+		switch (slotTypes[slot]) {
+			case SLOT_COUNTER:
+				putDigits(buffer, counter.incrementAndGet());
+				break;
+			case SLOT_TIMESTAMP:
+				putDigits(buffer, System.currentTimeMillis());
+				break;
+			case SLOT_PATH:
+				String path = request.getPath();
+				int segmentStart = 0;
+				for (int i = 0; i < slotSegments[slot]; i++) {
+					segmentStart = segmentEnd(path, segmentStart) + 1;
+				}
+				putChars(buffer, path, segmentStart, segmentEnd(path, segmentStart));
+				break;
+			case SLOT_QUERY:
+				putQueryParameter(buffer, request.getQuery(), slotNames[slot]);
+				break;
+			default:
+				throw new IllegalStateException("Unknown slot-type " + slotTypes[slot]);
+		}
+	}
+
+	/**
+	 * Copy the value of the given parameter as it was sent by the client, nothing is written if
+	 * the parameter is missing.
+	 */
+	private static void putQueryParameter(ByteBuffer buffer, String query, byte[] name) {
+		if (query == null) {
+			return;
+		}
+
+		int start = 0;
+		while (start < query.length()) {
+			int end = query.indexOf('&', start);
+			if (end == -1) {
+				end = query.length();
+			}
+
+			if (hasName(query, start, end, name)) {
+				int valueStart = start + name.length;
+				if (valueStart < end) {
+					// skip the '='
+					valueStart++;
+				}
+				putChars(buffer, query, valueStart, end);
+				return;
+			}
+			start = end + 1;
+		}
+	}
+
+	private static boolean hasName(String query, int start, int end, byte[] name) {
+		if (end - start < name.length || (end - start > name.length && query.charAt(start + name.length) != '=')) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (query.charAt(start + i) != (char) (name[i] & 0xFF)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The request-line is read as ISO-8859-1, so each char is written as one byte.
+	 */
+	private static void putChars(ByteBuffer buffer, String value, int start, int end) {
+		for (int i = start; i < end; i++) {
+			buffer.put((byte) value.charAt(i));
+		}
+	}
+
+	static int digits(long value) {
+		int digits = value < 0 ? 2 : 1;
+		long remaining = Math.abs(value / 10);
+		while (remaining > 0) {
+			digits++;
+			remaining /= 10;
+		}
+		return digits;
+	}
+
+	static void putDigits(ByteBuffer buffer, long value) {
+		if (value < 0) {
+			buffer.put((byte) '-');
+		}
+
+		// write from the last digit backwards, this also works for Long.MIN_VALUE
+		int length = digits(value) - (value < 0 ? 1 : 0);
+		int end = buffer.position() + length;
+		long remaining = value;
+		for (int i = end - 1; i >= end - length; i--) {
+			buffer.put(i, (byte) ('0' + Math.abs(remaining % 10)));
+			remaining /= 10;
+		}
+		buffer.position(end);
+	}
+
+	/**
+	 * The templates which share the same route pattern, e.g. "GET /users/{id}" and
+	 * "GET /users/{id}/orders/{order}" which both are routed via "GET /users/*".
+	 *
+	 * A request is answered by the first template whose path matches, the templates are kept
+	 * in the order in which they were added. Adding a template with the same method and path
+	 * as an existing one replaces it.
+	 */
+	static final class Group implements MockRESTServer.RequestHandler {
+		private final List<TemplateResponseHandler> templates = new CopyOnWriteArrayList<>();
+
+		synchronized void add(TemplateResponseHandler handler) {
+			int index = 0;
+			while (index < templates.size() && !templates.get(index).template.equals(handler.template)) {
+				index++;
+			}
+			if (index < templates.size()) {
+				templates.set(index, handler);
+			} else {
+				templates.add(handler);
+			}
+		}
+
+		@Override
+		public void handle(MockRequest request, HttpConnection connection) throws IOException {
+			String path = request.getPath();
+			for (TemplateResponseHandler handler : templates) {
+				if (handler.matchesPath(path)) {
+					handler.render(request, connection);
+					return;
+				}
+			}
+			sendNotFound(request, connection);
+		}
+
+		@Override
+		public String toString() {
+			return "Templates" + templates;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Template{" + routePattern + ", segments=" + Arrays.toString(pathSegments) +
+				", literals=" + literals.length + ", slots=" + slotTypes.length + "}";
+	}
+}
@@ -0,0 +1,104 @@
+package org.dstadler.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dstadler.commons.testing.ThreadTestHelper;
+import org.junit.jupiter.api.Test;
+
+public class AppendOnlyListTest {
+	private static final int NUMBER_OF_THREADS = 10;
+	private static final int NUMBER_OF_TESTS = 1000;
+
+	@Test
+	public void testAppend() {
+		AppendOnlyList<String> list = new AppendOnlyList<>();
+		assertEquals(0, list.size());
+		assertTrue(list.snapshot().isEmpty());
+
+		// spans multiple chunks
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, list.append("element " + i));
+		}
+		assertEquals(1000, list.size());
+		assertEquals("element 0", list.get(0));
+		assertEquals("element 31", list.get(31));
+		assertEquals("element 32", list.get(32));
+		assertEquals("element 999", list.get(999));
+
+		List<String> since = list.since(990);
+		assertEquals(10, since.size());
+		assertEquals("element 990", since.get(0));
+		assertTrue(list.since(1000).isEmpty());
+		assertTrue(list.since(2000).isEmpty());
+
+		assertThrows(IndexOutOfBoundsException.class, () -> list.get(1000));
+		assertThrows(IllegalArgumentException.class, () -> list.since(-1));
+		assertThrows(NullPointerException.class, () -> list.append(null));
+	}
+
+	@Test
+	public void testSnapshotIsStable() {
+		AppendOnlyList<Integer> list = new AppendOnlyList<>();
+		list.append(1);
+		list.append(2);
+
+		List<Integer> snapshot = list.snapshot();
+		list.append(3);
+
+		// appending does not change the snapshot and does not invalidate iterators
+		assertEquals(List.of(1, 2), snapshot);
+		assertEquals(List.of(1, 2, 3), list.snapshot());
+		assertThrows(UnsupportedOperationException.class, () -> snapshot.add(4));
+	}
+
+	@Test
+	public void testAwaitVisibleTimesOut() {
+		AppendOnlyList<String> list = new AppendOnlyList<>();
+		assertTrue(list.awaitVisible(list.append("element"), Duration.ofSeconds(10)));
+
+		// nothing was appended with this sequence number, so it never becomes visible
+		assertFalse(list.awaitVisible(1, Duration.ofMillis(50)));
+	}
+
+	@Test
+	public void testConcurrentAppend() throws Throwable {
+		AppendOnlyList<String> list = new AppendOnlyList<>();
+
+		ThreadTestHelper helper = new ThreadTestHelper(NUMBER_OF_THREADS, NUMBER_OF_TESTS);
+		helper.executeTest(new ThreadTestHelper.TestRunnable() {
+			@Override
+			public void doEnd(int threadNum) {
+				// nothing to do
+			}
+
+			@Override
+			public void run(int threadNum, int itNum) {
+				int sequence = list.append(threadNum + "-" + itNum);
+
+				// readers always see a prefix without gaps, it may not include this element yet
+				// if a writer of a lower sequence number did not finish yet
+				List<String> snapshot = list.snapshot();
+				if (!snapshot.isEmpty()) {
+					assertNotNull(snapshot.get(snapshot.size() - 1));
+				}
+
+				assertTrue(list.awaitVisible(sequence, Duration.ofSeconds(10)));
+				assertTrue(list.size() > sequence);
+				assertEquals(threadNum + "-" + itNum, list.get(sequence));
+			}
+		});
+
+		assertEquals(NUMBER_OF_THREADS * NUMBER_OF_TESTS, list.size());
+		Set<String> elements = new HashSet<>(list.snapshot());
+		assertEquals(NUMBER_OF_THREADS * NUMBER_OF_TESTS, elements.size());
+	}
+}
@@ -3,17 +3,44 @@ package org.dstadler.commons.email;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
+import com.dumbster.smtp.SmtpMessage;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.HtmlEmail;
+import org.dstadler.commons.net.SocketUtils;
 import org.dstadler.commons.testing.MemoryLeakVerifier;
+import org.dstadler.commons.testing.TestEnvironment;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
@@ -100,6 +127,319 @@ public class MockSMTPServerTest {
 		}
 	}
 
+	@Test
+	public void testGetMessagesSince() throws Exception {
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.start();
+
+			buildEmail(server.getPort()).send();
+			Iterator<String> messages = server.getMessages();
+
+			buildEmail(server.getPort()).send();
+
+			// the iterator is a snapshot, it does not fail or change when more messages arrive
+			assertTrue(messages.hasNext());
+			messages.next();
+			assertFalse(messages.hasNext());
+
+			assertEquals(2, server.getMessagesSince(0).size());
+			assertEquals(1, server.getMessagesSince(1).size());
+			assertTrue(server.getMessagesSince(2).isEmpty());
+		}
+	}
+
+	@Test
+	public void testAwaitMessages() throws Exception {
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.start();
+
+			assertTrue(server.awaitMessages(0, Duration.ZERO));
+			assertFalse(server.awaitMessages(1, Duration.ofMillis(50)));
+			assertNull(server.awaitMessage(message -> true, Duration.ofMillis(50)));
+
+			CompletableFuture<String> sent = CompletableFuture.supplyAsync(() -> {
+				try {
+					Thread.sleep(100);
+					buildEmail(server.getPort()).send();
+					HtmlEmail email = buildEmail(server.getPort());
+					email.setSubject("second");
+					return email.send();
+				} catch (EmailException | AddressException | InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+
+			String message = server.awaitMessage(msg -> msg.contains("Subject: second"), Duration.ofSeconds(30));
+			assertNotNull(message);
+			assertTrue(server.awaitMessages(2, Duration.ofSeconds(30)));
+			assertNotNull(sent.get(30, TimeUnit.SECONDS));
+
+			// messages which arrived earlier are found without waiting
+			assertTrue(server.awaitMessage(msg -> msg.contains("Subject: somesubj"), Duration.ZERO).contains("somemessage"));
+
+			// no more messages can arrive after stop, so waiting ends right away
+			server.stop();
+			long start = System.nanoTime();
+			assertFalse(server.awaitMessages(3, Duration.ofSeconds(30)));
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		}
+	}
+
+	@Test
+	public void testIndexedQueries() throws Exception {
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.indexHeaders("x-ticket");
+			server.start();
+
+			String messageId = buildEmail(server.getPort()).send();
+			HtmlEmail email = buildEmail(server.getPort());
+			email.setSubject("other");
+			email.setTo(Arrays.asList(InternetAddress.parse("other@example.com")));
+			email.send();
+
+			// a recipient which is only in the envelope, and an additional indexed header
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+				out.write("EHLO localhost\r\nMAIL FROM:<Sender@Example.com> BODY=8BITMIME\r\n" +
+						"RCPT TO:<somebody@example.com>\r\nRCPT TO: <hidden@example.com>\r\nRCPT TO:<Hidden@Example.com>\r\nDATA\r\n");
+				out.flush();
+				while (!input.readLine().startsWith("354 ")) {
+					// skip responses
+				}
+				out.write("Subject: ticket\r\nX-Ticket:  1234 \r\n\r\nbody\r\n.\r\nQUIT\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+			}
+			assertTrue(server.awaitMessages(3, Duration.ofSeconds(30)));
+
+			assertEquals(2, server.getMessagesTo("somebody@example.com").size());
+			assertEquals(2, server.getMessagesTo("SOMEBODY@example.com").size());
+			assertEquals(1, server.getMessagesTo("other@example.com").size());
+			assertTrue(server.getMessagesTo("somebody@example.com").get(1).contains("Subject: ticket"), "In the order of receipt");
+			// the recipient was given twice, but is only found once
+			assertEquals(1, server.getMessagesTo("hidden@example.com").size());
+			assertTrue(server.getMessagesTo("hidden@example.com").get(0).contains("Subject: ticket"));
+			assertTrue(server.getMessagesTo("nobody@example.com").isEmpty());
+
+			assertEquals(2, server.getMessagesFrom("from@example.com").size());
+			assertEquals(1, server.getMessagesFrom("sender@example.com").size());
+
+			List<String> byId = server.getMessagesWithHeader("Message-ID", messageId);
+			assertEquals(1, byId.size());
+			assertTrue(byId.get(0).contains("Subject: somesubj"), "Had: " + byId);
+			assertEquals(1, server.getMessagesWithHeader("subject", "other").size());
+			assertEquals(1, server.getMessagesWithHeader("X-Ticket", "1234").size());
+			assertTrue(server.getMessagesWithHeader("Subject", "none").isEmpty());
+
+			assertThrows(IllegalArgumentException.class, () -> server.getMessagesWithHeader("To", "somebody@example.com"));
+		}
+	}
+
+	@Test
+	public void testSpillLargeMessages() throws Exception {
+		TestEnvironment.createOrClearRuntimeData();
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.setSpillThreshold(10_000);
+			server.start();
+
+			HtmlEmail email = buildEmail(server.getPort());
+			email.setTextMsg("x".repeat(200_000));
+			email.send();
+			buildEmail(server.getPort()).send();
+
+			List<String> messages = server.getMessagesSince(0);
+			assertEquals(2, messages.size());
+			assertTrue(messages.get(0).length() > 200_000, "Had: " + messages.get(0).length());
+			assertTrue(messages.get(0).contains("x".repeat(70)));
+			assertTrue(messages.get(1).contains("somemessage"), "Had: " + messages.get(1));
+
+			// only the large body was written to a file
+			try (Stream<Path> files = Files.walk(Path.of(TestEnvironment.ABS_RUNTIME_DATA_PATH))) {
+				long spooled = files.filter(file -> file.toString().endsWith(".spool"))
+						.mapToLong(file -> file.toFile().length())
+						.sum();
+				assertTrue(spooled >= 200_000 && spooled < messages.get(0).length() + 10_000, "Had: " + spooled);
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	public void testParallelSessions() throws Exception {
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.start();
+
+			// a session which stays open does not block other clients
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+				assertTrue(input.readLine().startsWith("220 "));
+				out.write("HELO localhost\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+
+				ExecutorService executor = Executors.newFixedThreadPool(10);
+				try {
+					List<Future<String>> results = new ArrayList<>();
+					for (int i = 0; i < 20; i++) {
+						results.add(executor.submit(() -> buildEmail(server.getPort()).send()));
+					}
+					for (Future<String> result : results) {
+						assertNotNull(result.get(30, TimeUnit.SECONDS));
+					}
+				} finally {
+					executor.shutdownNow();
+				}
+				assertEquals(20, server.getMessageCount());
+
+				out.write("MAIL FROM:<from@example.com>\r\nRCPT TO:<somebody@example.com>\r\nDATA\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("354 "));
+				out.write("Subject: open session\r\n\r\nbody\r\n.\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+
+				// the message is available as soon as the server acknowledged it
+				assertEquals(21, server.getMessageCount());
+			}
+		}
+	}
+
+	@Test
+	public void testPipeliningAndChunking() throws Exception {
+		try (MockSMTPServer server = new MockSMTPServer()) {
+			verifier.addObject(server);
+			server.start();
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+				assertTrue(input.readLine().startsWith("220 "));
+
+				out.write("EHLO localhost\r\n");
+				out.flush();
+				assertEquals("250-localhost", input.readLine());
+				assertEquals("250-PIPELINING", input.readLine());
+				assertEquals("250 CHUNKING", input.readLine());
+
+				// the whole transaction is sent at once, a line of the content spans both chunks
+				String first = "Subject: chunked\r\n\r\nfirst ";
+				String second = "part\r\n.dot\r\n";
+				out.write("MAIL FROM:<from@example.com>\r\nRCPT TO:<somebody@example.com>\r\n" +
+						"BDAT " + first.length() + "\r\n" + first +
+						"BDAT " + second.length() + " LAST\r\n" + second +
+						"MAIL FROM:<from@example.com>\r\nRCPT TO:<somebody@example.com>\r\nDATA\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("250 "));
+				assertEquals("250 " + first.length() + " octets received", input.readLine());
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("354 "));
+
+				// lines starting with a dot are dot-stuffed by the client when using DATA
+				out.write("Subject: data\r\n\r\n..dot\r\n.\r\nDATA\r\nBDAT 0 LAST\r\nQUIT\r\n");
+				out.flush();
+				assertTrue(input.readLine().startsWith("250 "));
+				assertTrue(input.readLine().startsWith("503 "));
+				assertTrue(input.readLine().startsWith("503 "));
+				assertTrue(input.readLine().startsWith("221 "));
+				assertNull(input.readLine());
+			}
+
+			List<String> messages = server.getMessagesSince(0);
+			assertEquals(2, messages.size());
+			assertEquals("Subject: chunked\n\nfirst part.dot\n", messages.get(0));
+			assertEquals("Subject: data\n\n.dot\n", messages.get(1));
+		}
+	}
+
+	@Test
+	public void testHeadersAndBodyAreDecodedOnAccess() throws Exception {
+		int port = SocketUtils.getNextFreePort(15110, 15119);
+		SafeCloseSmtpServer server = SafeCloseSmtpServer.start(port);
+		try (Socket socket = new Socket("localhost", port)) {
+			BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+			out.write("helo localhost\r\nmail from:<from@example.com>\r\nrcpt to:<somebody@example.com>\r\ndata\r\n");
+			out.flush();
+			assertTrue(input.readLine().startsWith("220 "));
+			assertTrue(input.readLine().startsWith("250 "));
+			assertTrue(input.readLine().startsWith("250 "));
+			assertTrue(input.readLine().startsWith("250 "));
+			assertTrue(input.readLine().startsWith("354 "));
+
+			out.write("Subject: Gr\u00fc\u00dfe\r\nX-Test: 1\r\nX-Test: 2\r\n\r\n\u00fcn\u00efcode\r\n\r\nend\r\n.\r\nquit\r\n");
+			out.flush();
+			assertTrue(input.readLine().startsWith("250 "));
+			assertTrue(input.readLine().startsWith("221 "));
+
+			SmtpMessage message = server.getReceivedEmail(0).get(0);
+			assertEquals("Gr\u00fc\u00dfe", message.getHeaderValue("Subject"));
+			assertEquals(2, message.getHeaderValues("X-Test").length);
+			assertEquals("\u00fcn\u00efcode\nend", message.getBody());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testStopWaitsForSessions() throws Exception {
+		MockSMTPServer server = new MockSMTPServer();
+		verifier.addObject(server);
+		server.start();
+
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			assertTrue(input.readLine().startsWith("220 "));
+
+			// the idle session is closed after the grace period of stop()
+			server.stop();
+			assertFalse(server.isRunning());
+			assertNull(input.readLine());
+		}
+	}
+
+	@Test
+	public void testStartAndStopAsync() throws Exception {
+		int port = SocketUtils.getNextFreePort(15110, 15119);
+
+		SafeCloseSmtpServer server = SafeCloseSmtpServer.startAsync(port).get(10, TimeUnit.SECONDS);
+		assertFalse(server.isStopped());
+
+		buildEmail(port).send();
+		assertEquals(1, server.getReceivedEmailSize());
+
+		CompletableFuture<Void> stopped = server.stopAsync();
+		assertTrue(server.isStopped());
+		stopped.get(10, TimeUnit.SECONDS);
+		assertSame(stopped, server.stopAsync());
+
+		// the port can be used again right away
+		SafeCloseSmtpServer.start(port).stop();
+	}
+
+	@Test
+	public void testStartFailsOnUsedPort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			ExecutionException e = assertThrows(ExecutionException.class,
+					() -> SafeCloseSmtpServer.startAsync(socket.getLocalPort()).get(10, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IOException, "Had: " + e.getCause());
+
+			assertThrows(UncheckedIOException.class, () -> SafeCloseSmtpServer.start(socket.getLocalPort()));
+		}
+	}
+
 	private static HtmlEmail buildEmail(int port) throws EmailException, AddressException {
 		HtmlEmail email = new HtmlEmail();
 		email.setHostName("localhost");
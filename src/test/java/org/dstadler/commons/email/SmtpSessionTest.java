@@ -0,0 +1,88 @@
+package org.dstadler.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SmtpSessionTest {
+	private static final String ENVELOPE = "EHLO localhost\r\nMAIL FROM:<from@example.com>\r\nRCPT TO:<to@example.com>\r\n";
+
+	@Test
+	public void testBodyTooLarge() throws IOException {
+		List<StoredSmtpMessage> messages = new ArrayList<>();
+		try (MessageBodyBuffer bodies = new MessageBodyBuffer(null, 1024, 10)) {
+			String response = converse(bodies, messages,
+					ENVELOPE + "DATA\r\nSubject: large\r\n\r\n01234567890123456789\r\n.\r\n" +
+					ENVELOPE + "DATA\r\nSubject: small\r\n\r\n0123\r\n.\r\nQUIT\r\n");
+
+			// the large message is rejected, the session continues with the next one
+			assertTrue(response.contains("\r\n552 "), "Had: " + response);
+			assertEquals(1, messages.size());
+			assertEquals("small", messages.get(0).getHeaderValue("Subject"));
+			assertEquals("0123", messages.get(0).getBody());
+		}
+	}
+
+	@Test
+	public void testLastChunkWithoutLineEnd() throws IOException {
+		List<StoredSmtpMessage> messages = new ArrayList<>();
+		try (MessageBodyBuffer bodies = new MessageBodyBuffer(null, 1024)) {
+			String body = "Subject: chunk\r\n\r\nabc\r\n\r";
+			String headerOnly = "Subject: header";
+			String response = converse(bodies, messages,
+					ENVELOPE + "BDAT " + body.length() + " LAST\r\n" + body +
+					ENVELOPE + "BDAT " + headerOnly.length() + " LAST\r\n" + headerOnly + "QUIT\r\n");
+			assertTrue(response.endsWith("250 OK\r\n221 localhost Dumbster service closing transmission channel\r\n"), "Had: " + response);
+
+			// the final '\r' is kept and no line-terminator is added
+			assertEquals(2, messages.size());
+			assertEquals("chunk", messages.get(0).getHeaderValue("Subject"));
+			assertEquals("abc\r", messages.get(0).getBody());
+
+			assertEquals("header", messages.get(1).getHeaderValue("Subject"));
+			assertEquals("", messages.get(1).getBody());
+		}
+	}
+
+	private static String converse(MessageBodyBuffer bodies, List<StoredSmtpMessage> messages, String input) throws IOException {
+		ReadableByteChannel reader = Channels.newChannel(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		WritableByteChannel writer = Channels.newChannel(output);
+
+		new SmtpSession(new ByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				return reader.read(dst);
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				return writer.write(src);
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		}, bodies, messages::add).run();
+
+		return output.toString(StandardCharsets.US_ASCII);
+	}
+}
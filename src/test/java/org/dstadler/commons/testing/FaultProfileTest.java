@@ -0,0 +1,101 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+public class FaultProfileTest {
+	@Test
+	void testNone() {
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, FaultProfile.NONE.nextDelayNanos());
+			assertEquals(0, FaultProfile.NONE.nextTimeToFirstByteNanos());
+			assertFalse(FaultProfile.NONE.nextReset());
+			assertFalse(FaultProfile.NONE.nextError());
+		}
+		assertEquals(0, FaultProfile.NONE.getBytesPerSecond());
+	}
+
+	@Test
+	void testSeedIsReproducible() {
+		FaultProfile profile1 = createProfile(42);
+		FaultProfile profile2 = createProfile(42);
+		FaultProfile profile3 = createProfile(43);
+
+		boolean different = false;
+		for (int i = 0; i < 100; i++) {
+			long delay = profile1.nextDelayNanos();
+			assertEquals(delay, profile2.nextDelayNanos());
+			different |= delay != profile3.nextDelayNanos();
+
+			assertEquals(profile1.nextReset(), profile2.nextReset());
+			assertEquals(profile1.nextError(), profile2.nextError());
+			profile3.nextReset();
+			profile3.nextError();
+		}
+
+		assertTrue(different, "Different seeds should produce different delays");
+	}
+
+	@Test
+	void testErrorBurst() {
+		FaultProfile profile = FaultProfile.builder()
+				.errorBurst(0.1, 5)
+				.seed(1)
+				.build();
+
+		int errors = 0;
+		int run = 0;
+		for (int i = 0; i < 10_000; i++) {
+			if (profile.nextError()) {
+				errors++;
+				run++;
+			} else {
+				// bursts can follow each other directly, so runs are a multiple of the burst-length
+				assertEquals(0, run % 5, "Had a burst of " + run + " errors");
+				run = 0;
+			}
+		}
+
+		assertTrue(errors > 1000 && errors < 9000, "Had: " + errors);
+	}
+
+	@Test
+	void testResetProbability() {
+		FaultProfile profile = FaultProfile.builder()
+				.resetProbability(0.25)
+				.build();
+
+		int resets = 0;
+		for (int i = 0; i < 10_000; i++) {
+			if (profile.nextReset()) {
+				resets++;
+			}
+		}
+
+		assertTrue(resets > 2000 && resets < 3000, "Had: " + resets);
+	}
+
+	@Test
+	void testInvalidArguments() {
+		assertThrows(IllegalArgumentException.class, () -> FaultProfile.builder().bandwidth(-1));
+		assertThrows(IllegalArgumentException.class, () -> FaultProfile.builder().resetProbability(1.1));
+		assertThrows(IllegalArgumentException.class, () -> FaultProfile.builder().errorBurst(-0.1, 1));
+		assertThrows(IllegalArgumentException.class, () -> FaultProfile.builder().errorBurst(0.5, 0));
+		assertThrows(NullPointerException.class, () -> FaultProfile.builder().delay(null));
+	}
+
+	private static FaultProfile createProfile(long seed) {
+		return FaultProfile.builder()
+				.delay(LatencyDistribution.uniform(Duration.ofMillis(1), Duration.ofMillis(100)))
+				.resetProbability(0.1)
+				.errorBurst(0.1, 3)
+				.seed(seed)
+				.build();
+	}
+}
@@ -0,0 +1,110 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Uses the examples from RFC 7541, Appendix C.
+ */
+public class HpackTest {
+	@Test
+	void testEncodeInteger() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.encodeInteger(out, 0, 5, 10);
+		assertEquals("0a", HexFormat.of().formatHex(out.toByteArray()));
+
+		out.reset();
+		Hpack.encodeInteger(out, 0, 5, 1337);
+		assertEquals("1f9a0a", HexFormat.of().formatHex(out.toByteArray()));
+
+		out.reset();
+		Hpack.encodeInteger(out, 0x80, 7, 2);
+		assertEquals("82", HexFormat.of().formatHex(out.toByteArray()));
+	}
+
+	@Test
+	void testDecodeHuffman() throws IOException {
+		byte[] data = HexFormat.of().parseHex("f1e3c2e5f23a6ba0ab90f4ff");
+		assertEquals("www.example.com", Hpack.decodeHuffman(data, 0, data.length));
+
+		data = HexFormat.of().parseHex("a8eb10649cbf");
+		assertEquals("no-cache", Hpack.decodeHuffman(data, 0, data.length));
+
+		data = HexFormat.of().parseHex("6402");
+		assertEquals("302", Hpack.decodeHuffman(data, 0, data.length));
+	}
+
+	@Test
+	void testDecodeHuffmanInvalidPadding() {
+		// "0" is encoded as 00000, padding with zeros is not allowed
+		assertThrows(IOException.class, () -> Hpack.decodeHuffman(new byte[] { 0 }, 0, 1));
+	}
+
+	@Test
+	void testDecodeRequestsWithoutHuffman() throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("828684410f7777772e6578616d706c652e636f6d")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+
+		// refers to the dynamic table which was filled by the first request
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("828684be58086e6f2d6361636865")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+	}
+
+	@Test
+	void testDecodeRequestsWithHuffman() throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("828684418cf1e3c2e5f23a6ba0ab90f4ff")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("828684be5886a8eb10649cbf")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+	}
+
+	@Test
+	void testDecodeResponsesWithEviction() throws IOException {
+		// a table of 256 bytes, so entries are evicted with the later responses
+		Hpack.Decoder decoder = new Hpack.Decoder(256);
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d")),
+				":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+
+		assertHeaders(decoder.decode(HexFormat.of().parseHex("4803333037c1c0bf")),
+				":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+	}
+
+	@Test
+	void testDecodeInvalidIndex() {
+		Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertThrows(IOException.class, () -> decoder.decode(new byte[] { (byte) 0xbe }));
+		assertThrows(IOException.class, () -> decoder.decode(new byte[] { (byte) 0x80 }));
+	}
+
+	@Test
+	void testEncodeAndDecode() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.encodeStatus(out, 404);
+		Hpack.encodeHeader(out, "content-type", "text/plain");
+		Hpack.encodeHeader(out, "x-long", "a".repeat(1000));
+
+		assertHeaders(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(out.toByteArray()),
+				":status", "404", "content-type", "text/plain", "x-long", "a".repeat(1000));
+	}
+
+	private static void assertHeaders(List<String[]> headers, String... expected) {
+		assertEquals(expected.length / 2, headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			assertArrayEquals(new String[] { expected[i * 2], expected[i * 2 + 1] }, headers.get(i));
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyDistributionTest {
+	private final SeededRandom random = new SeededRandom(42);
+
+	@Test
+	void testFixed() {
+		LatencyDistribution distribution = LatencyDistribution.fixed(Duration.ofMillis(5));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(5_000_000L, distribution.nextNanos(random));
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> LatencyDistribution.fixed(Duration.ofMillis(-1)));
+	}
+
+	@Test
+	void testUniform() {
+		LatencyDistribution distribution = LatencyDistribution.uniform(Duration.ofMillis(10), Duration.ofMillis(20));
+		for (int i = 0; i < 1000; i++) {
+			long nanos = distribution.nextNanos(random);
+			assertTrue(nanos >= 10_000_000L && nanos < 20_000_000L, "Had: " + nanos);
+		}
+
+		assertThrows(IllegalArgumentException.class,
+				() -> LatencyDistribution.uniform(Duration.ofMillis(20), Duration.ofMillis(10)));
+	}
+
+	@Test
+	void testLogNormal() {
+		LatencyDistribution distribution = LatencyDistribution.logNormal(Duration.ofMillis(10), 0.5);
+
+		long[] values = new long[10_001];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = distribution.nextNanos(random);
+			assertTrue(values[i] > 0, "Had: " + values[i]);
+		}
+		Arrays.sort(values);
+
+		long median = values[values.length / 2];
+		assertTrue(median > 9_000_000L && median < 11_000_000L, "Had median: " + median);
+
+		// long tail to the right
+		long p99 = values[values.length * 99 / 100];
+		assertTrue(p99 - median > median - values[values.length / 100], "Had: " + p99 + " and " + median);
+
+		assertThrows(IllegalArgumentException.class, () -> LatencyDistribution.logNormal(Duration.ZERO, 0.5));
+		assertThrows(IllegalArgumentException.class, () -> LatencyDistribution.logNormal(Duration.ofMillis(1), -0.5));
+	}
+
+	@Test
+	void testReplay() {
+		LatencyDistribution distribution = LatencyDistribution.replay(
+				Duration.ofMillis(1), Duration.ofMillis(2), Duration.ofMillis(3));
+
+		Set<Long> seen = new TreeSet<>();
+		for (int i = 0; i < 1000; i++) {
+			seen.add(distribution.nextNanos(random));
+		}
+
+		assertEquals(Set.of(1_000_000L, 2_000_000L, 3_000_000L), seen);
+
+		assertThrows(IllegalArgumentException.class, LatencyDistribution::replay);
+		assertThrows(IllegalArgumentException.class, () -> LatencyDistribution.replay(Duration.ofMillis(-1)));
+	}
+
+	@Test
+	void testNone() {
+		assertEquals(0, LatencyDistribution.NONE.nextNanos(random));
+	}
+}
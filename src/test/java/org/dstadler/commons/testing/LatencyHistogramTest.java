@@ -0,0 +1,107 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0.0001);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		TestHelpers.assertContains(histogram.toString(), "count=0");
+	}
+
+	@Test
+	void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10_000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		assertEquals(10_000, histogram.getCount());
+		assertEquals(1000, histogram.getMin());
+		assertEquals(10_000_000, histogram.getMax());
+		assertEquals(5_000_500, histogram.getMean(), 0.0001);
+
+		assertWithinOnePercent(5_000_000, histogram.getValueAtPercentile(50));
+		assertWithinOnePercent(9_900_000, histogram.getValueAtPercentile(99));
+		assertWithinOnePercent(9_990_000, histogram.getValueAtPercentile(99.9));
+		assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+		assertWithinOnePercent(1000, histogram.getValueAtPercentile(0));
+	}
+
+	@Test
+	void testSmallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 256; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(127, histogram.getValueAtPercentile(50));
+		assertEquals(255, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	void testBuckets() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100_000; i++) {
+			long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+			int index = LatencyHistogram.indexOf(value);
+			long highest = LatencyHistogram.highestValueOf(index);
+
+			assertTrue(highest >= value, "Had " + highest + " for " + value);
+			assertTrue(highest - value <= value / 128, "Had " + highest + " for " + value);
+			assertEquals(index, LatencyHistogram.indexOf(highest));
+		}
+
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+	}
+
+	@Test
+	void testNegativeAndReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	void testInvalidPercentile() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(-1));
+		assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(100.1));
+	}
+
+	@Test
+	void testMultipleThreads() throws Throwable {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		ThreadTestHelper helper = new ThreadTestHelper(10, 10_000);
+		helper.executeTest((threadNum, itNum) -> histogram.record(itNum));
+
+		assertEquals(100_000, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(9999, histogram.getMax());
+	}
+
+	private static void assertWithinOnePercent(long expected, long actual) {
+		assertTrue(Math.abs(expected - actual) <= expected / 100, "Expected " + expected + ", but had " + actual);
+	}
+}
@@ -0,0 +1,193 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.junit.jupiter.api.Test;
+
+public class LoadGeneratorTest {
+	@Test
+	void testClosedLoop() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost:" + server.getPort() + "/"))
+					.closedLoop(4)
+					.warmup(Duration.ofMillis(200))
+					.duration(Duration.ofMillis(500))
+					.build()
+					.run();
+
+			assertTrue(result.getCount() > 0, "Had: " + result);
+			assertEquals(0, result.getErrors(), "Had: " + result);
+			assertTrue(result.getThroughput() > 0, "Had: " + result);
+			assertTrue(result.getElapsed().toMillis() >= 500, "Had: " + result);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			result.print(new PrintStream(out, true, StandardCharsets.UTF_8));
+			TestHelpers.assertContains(out.toString(StandardCharsets.UTF_8), "p50=", "p99=", "p999=", "req/s");
+		}
+	}
+
+	@Test
+	void testOpenLoop() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost:" + server.getPort() + "/"))
+					.openLoop(100)
+					.duration(Duration.ofSeconds(1))
+					.build()
+					.run();
+
+			assertEquals(100, result.getCount(), "Had: " + result);
+			assertEquals(0, result.getErrors(), "Had: " + result);
+		}
+	}
+
+	@Test
+	void testOpenLoopCorrectsCoordinatedOmission() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.setFaultProfile(FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofMillis(100)))
+					.build());
+
+			// only one request can be outstanding, so requests queue up behind each
+			// other and the waiting time needs to be included in the latencies
+			LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost:" + server.getPort() + "/"))
+					.client(client)
+					.openLoop(20)
+					.maxOutstanding(1)
+					.duration(Duration.ofMillis(500))
+					.build()
+					.run();
+
+			assertEquals(10, result.getCount(), "Had: " + result);
+			assertTrue(result.getHistogram().getMax() > TimeUnit.MILLISECONDS.toNanos(500),
+					"Latency of the last request should include the time it was queued, had: " + result);
+		}
+	}
+
+	@Test
+	void testErrors() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, "Not found")) {
+			LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost:" + server.getPort() + "/"))
+					.duration(Duration.ofMillis(200))
+					.build()
+					.run();
+
+			assertTrue(result.getCount() > 0, "Had: " + result);
+			assertEquals(result.getCount(), result.getErrors(), "Had: " + result);
+		}
+	}
+
+	@Test
+	void testOpenLoopSendFails() throws InterruptedException {
+		// with only two permits the run would block if a failed send did not give back its permit
+		LoadGenerator.Result result = LoadGenerator.builder(URI.create("http://localhost/"))
+				.client(new FailingClient())
+				.openLoop(100)
+				.maxOutstanding(2)
+				.duration(Duration.ofMillis(100))
+				.build()
+				.run();
+
+		assertEquals(10, result.getCount(), "Had: " + result);
+		assertEquals(10, result.getErrors(), "Had: " + result);
+	}
+
+	@Test
+	void testInvalidArguments() {
+		LoadGenerator.Builder builder = LoadGenerator.builder(URI.create("http://localhost/"));
+		assertThrows(IllegalArgumentException.class, () -> builder.closedLoop(0));
+		assertThrows(IllegalArgumentException.class, () -> builder.openLoop(0));
+		assertThrows(IllegalArgumentException.class, () -> builder.maxOutstanding(0));
+		assertThrows(IllegalArgumentException.class, () -> builder.duration(Duration.ZERO));
+		assertThrows(IllegalArgumentException.class, () -> builder.warmup(Duration.ofSeconds(-1)));
+	}
+
+	/**
+	 * A client which cannot send any request, sendAsync() throws instead of returning a failed future.
+	 */
+	private static final class FailingClient extends HttpClient {
+		@Override
+		public Optional<CookieHandler> cookieHandler() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<Duration> connectTimeout() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Redirect followRedirects() {
+			return Redirect.NEVER;
+		}
+
+		@Override
+		public Optional<ProxySelector> proxy() {
+			return Optional.empty();
+		}
+
+		@Override
+		public SSLContext sslContext() {
+			return null;
+		}
+
+		@Override
+		public SSLParameters sslParameters() {
+			return null;
+		}
+
+		@Override
+		public Optional<Authenticator> authenticator() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Version version() {
+			return Version.HTTP_1_1;
+		}
+
+		@Override
+		public Optional<Executor> executor() {
+			return Optional.empty();
+		}
+
+		@Override
+		public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) throws IOException {
+			throw new IOException("Cannot send");
+		}
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler) {
+			throw new IllegalStateException("Cannot send");
+		}
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler,
+				HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+			throw new IllegalStateException("Cannot send");
+		}
+	}
+}
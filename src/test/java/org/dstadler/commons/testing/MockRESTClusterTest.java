@@ -0,0 +1,124 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.UrlUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class MockRESTClusterTest {
+	@AfterEach
+	void tearDown() throws InterruptedException {
+		ThreadTestHelper.waitForThreadToFinishSubstring("MockRESTServer-", 10_000);
+		ThreadTestHelper.assertNoThreadLeft("Still had threads from MockRESTServer left", "MockRESTServer-");
+	}
+
+	@Test
+	void testNodes() throws IOException {
+		AtomicInteger calls = new AtomicInteger();
+		try (MockRESTCluster cluster = new MockRESTCluster(3,
+				() -> new NanoHTTPD.Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "call " + calls.incrementAndGet()))) {
+			assertEquals(3, cluster.size());
+			assertEquals(3, cluster.getNodes().size());
+
+			List<String> urls = cluster.getUrls();
+			assertEquals(3, new HashSet<>(urls).size(), "Had: " + urls);
+			assertEquals("http://localhost:" + cluster.getNode(1).getPort(), urls.get(1));
+
+			for (String url : urls) {
+				TestHelpers.assertContains(UrlUtils.retrieveData(url + "/", 10_000), "call ");
+			}
+			assertEquals(3, calls.get());
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> new MockRESTCluster(0, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK"));
+	}
+
+	@Test
+	void testKillAndRevive() throws IOException, InterruptedException {
+		try (MockRESTCluster cluster = new MockRESTCluster(2, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(cluster.getUrls().get(0) + "/")).build();
+			assertEquals("OK", client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+
+			// keep a connection open to the node which is killed
+			try (Socket socket = new Socket("localhost", cluster.getNode(0).getPort())) {
+				socket.setSoTimeout(10_000);
+				cluster.kill(0);
+				assertFalse(cluster.isUp(0));
+				assertTrue(cluster.isUp(1));
+
+				// the open connection was closed and new connections are refused
+				assertEquals(-1, socket.getInputStream().read());
+				assertThrows(ConnectException.class, () -> new Socket("localhost", cluster.getNode(0).getPort()).close());
+				assertThrows(IOException.class, () -> client.send(request, HttpResponse.BodyHandlers.ofString()));
+
+				// killing twice has no effect
+				cluster.kill(0);
+			}
+
+			// other nodes are not affected
+			assertEquals("OK", UrlUtils.retrieveData(cluster.getUrls().get(1) + "/", 10_000));
+
+			cluster.revive(0);
+			assertTrue(cluster.isUp(0));
+			assertEquals("OK", client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+
+			// reviving a running node has no effect
+			cluster.revive(0);
+			assertEquals("OK", UrlUtils.retrieveData(cluster.getUrls().get(0) + "/", 10_000));
+		}
+	}
+
+	@Test
+	void testHeterogeneousNodes() throws IOException, InterruptedException {
+		try (MockRESTCluster cluster = new MockRESTCluster(3, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			cluster.getNode(1).setFaultProfile(FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofMillis(200)))
+					.build());
+			cluster.getNode(2).setFaultProfile(FaultProfile.builder()
+					.errorBurst(1, 1)
+					.build());
+
+			long[] durations = new long[3];
+			int[] status = new int[3];
+			for (int node = 0; node < 3; node++) {
+				for (int i = 0; i < node + 1; i++) {
+					long start = System.nanoTime();
+					status[node] = client.send(HttpRequest.newBuilder(URI.create(cluster.getUrls().get(node) + "/")).build(),
+							HttpResponse.BodyHandlers.ofString()).statusCode();
+					durations[node] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				}
+			}
+
+			assertArrayEquals(new int[] { 200, 200, 503 }, status);
+			assertTrue(durations[1] >= 200, "Node 1 should be slow, but took " + durations[1] + "ms");
+
+			// the metrics are recorded after the response was sent
+			for (int i = 0; i < 100 && cluster.getMetrics(2).getRequests() < 3; i++) {
+				Thread.sleep(10);
+			}
+			assertArrayEquals(new long[] { 1, 2, 3 }, cluster.getRequestsPerNode());
+			assertEquals(3, cluster.getMetrics(2).getRoute("*").getStatusCount(503));
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.dstadler.commons.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dstadler.commons.http.NanoHTTPD;
+import org.dstadler.commons.net.UrlUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class MockRESTServerPoolTest {
+	@AfterEach
+	void tearDown() throws InterruptedException {
+		MockRESTServerPool.closeIdleServers();
+		assertEquals(0, MockRESTServerPool.getIdleCount());
+
+		ThreadTestHelper.waitForThreadToFinishSubstring("MockRESTServer-", 10_000);
+		ThreadTestHelper.assertNoThreadLeft("Still had threads from MockRESTServer left", "MockRESTServer-");
+	}
+
+	@Test
+	void testLeaseReusesServer() throws IOException {
+		final MockRESTServer first;
+		try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "first")) {
+			MockRESTServer server = lease.getServer();
+			assertEquals("first", UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+			first = server;
+		}
+		assertEquals(1, MockRESTServerPool.getIdleCount());
+
+		AtomicInteger calls = new AtomicInteger();
+		try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(calls::incrementAndGet, NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "second")) {
+			MockRESTServer server = lease.getServer();
+			assertSame(first, server);
+			assertEquals(0, MockRESTServerPool.getIdleCount());
+
+			assertEquals("second", UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+			assertEquals(1, calls.get());
+		}
+
+		try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(() -> new NanoHTTPD.Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "third"))) {
+			MockRESTServer server = lease.getServer();
+			assertSame(first, server);
+			assertEquals("third", UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testLeaseInParallel() throws IOException {
+		try (MockRESTServerPool.Lease lease1 = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "1");
+			 MockRESTServerPool.Lease lease2 = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "2")) {
+			MockRESTServer server1 = lease1.getServer();
+			MockRESTServer server2 = lease2.getServer();
+			assertNotEquals(server1.getPort(), server2.getPort());
+			assertEquals("1", UrlUtils.retrieveData("http://localhost:" + server1.getPort(), 10_000));
+			assertEquals("2", UrlUtils.retrieveData("http://localhost:" + server2.getPort(), 10_000));
+		}
+
+		assertEquals(2, MockRESTServerPool.getIdleCount());
+	}
+
+	@Test
+	void testLeaseResetsState() throws IOException, InterruptedException {
+		File file = File.createTempFile("MockRESTServerPoolTest", ".txt");
+		File recording = File.createTempFile("MockRESTServerPoolTest", ".rec");
+		try {
+			Files.writeString(file.toPath(), "file content");
+
+			try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+				 HttpClient client = HttpClient.newHttpClient()) {
+				MockRESTServer server = lease.getServer();
+				server.addFileRoute("/file", file, NanoHTTPD.MIME_PLAINTEXT);
+				server.setFaultProfile("/error", FaultProfile.builder().errorBurst(1, 1).build());
+				server.startRecording(recording);
+
+				// keep a connection open across the release
+				HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/file")).build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals("file content", response.body());
+				assertEquals(503, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/error")).build(),
+						HttpResponse.BodyHandlers.ofString()).statusCode());
+
+				// the metrics are recorded after the response was sent
+				for (int i = 0; i < 100 && server.getMetrics().getRequests() < 2; i++) {
+					Thread.sleep(10);
+				}
+				assertEquals(2, server.getMetrics().getRequests());
+			}
+
+			// recording was stopped and the file was released
+			assertTrue(recording.length() > 0);
+			assertTrue(file.delete());
+
+			try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "new")) {
+				MockRESTServer server = lease.getServer();
+				assertEquals(0, server.getMetrics().getRequests());
+				assertEquals(0, server.getMetrics().getOpenConnections());
+				assertNull(server.getMetrics().getRoute("/file"));
+
+				long length = recording.length();
+				assertEquals("new", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/file", 10_000));
+				assertEquals("new", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/error", 10_000));
+				assertEquals(length, recording.length());
+
+				assertEquals(2, server.getMetrics().getRequests());
+				assertEquals(1L, server.getRequestsPerConnection().size());
+			}
+		} finally {
+			assertTrue(!file.exists() || file.delete());
+			assertTrue(recording.delete());
+		}
+	}
+
+	@Test
+	void testIdleServerIsNotLeased() throws IOException {
+		final int port;
+		try (MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			MockRESTServer server = lease.getServer();
+			port = server.getPort();
+		}
+
+		IOException e = assertThrows(IOException.class, () -> UrlUtils.retrieveData("http://localhost:" + port, 10_000));
+		TestHelpers.assertContains(e, "503");
+	}
+
+	@Test
+	void testCloseTwice() throws IOException {
+		MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+		MockRESTServer server = lease.getServer();
+		lease.close();
+		lease.close();
+
+		// the server is returned only once and is still running
+		assertEquals(1, MockRESTServerPool.getIdleCount());
+		try (MockRESTServerPool.Lease again = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "again")) {
+			MockRESTServer leased = again.getServer();
+			assertSame(server, leased);
+			assertEquals(0, MockRESTServerPool.getIdleCount());
+			assertEquals("again", UrlUtils.retrieveData("http://localhost:" + leased.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testStaleCloseAfterReLease() throws IOException {
+		MockRESTServerPool.Lease first = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "first");
+		first.close();
+
+		try (MockRESTServerPool.Lease second = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "second")) {
+			MockRESTServer server = second.getServer();
+			assertSame(first.getServer(), server);
+
+			// a late cleanup of the first lease does not return the server which is leased again
+			first.close();
+			first.getServer().close();
+			assertEquals(0, MockRESTServerPool.getIdleCount());
+			assertEquals("second", UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+
+			// so another lease gets a different server
+			try (MockRESTServerPool.Lease third = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "third")) {
+				assertNotEquals(server.getPort(), third.getServer().getPort());
+			}
+		}
+
+		assertEquals(2, MockRESTServerPool.getIdleCount());
+	}
+
+	@Test
+	void testCloseIdleServers() throws IOException {
+		MockRESTServerPool.Lease lease = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+		MockRESTServer server = lease.getServer();
+		lease.close();
+
+		MockRESTServerPool.closeIdleServers();
+		assertEquals(0, MockRESTServerPool.getIdleCount());
+		assertThrows(IOException.class, () -> UrlUtils.retrieveData("http://localhost:" + server.getPort(), 1_000));
+
+		// a new server is started
+		try (MockRESTServerPool.Lease next = MockRESTServerPool.lease(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "new")) {
+			MockRESTServer leased = next.getServer();
+			assertNotEquals(server, leased);
+			assertEquals("new", UrlUtils.retrieveData("http://localhost:" + leased.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testPrivateConstructor() throws Exception {
+		PrivateConstructorCoverage.executePrivateConstructor(MockRESTServerPool.class);
+	}
+}
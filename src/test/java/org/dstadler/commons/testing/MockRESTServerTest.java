@@ -1,9 +1,11 @@
 package org.dstadler.commons.testing;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -16,15 +18,54 @@ import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Just verify that the host where the tests are run does what we
@@ -38,6 +79,9 @@ public class MockRESTServerTest {
         ThreadTestHelper.waitForThreadToFinishSubstring("NanoHTTP", 10_000);
 
         ThreadTestHelper.assertNoThreadLeft("Still had threads from NanoHTTP left", "NanoHTTP");
+
+        ThreadTestHelper.waitForThreadToFinishSubstring("MockRESTServer-", 10_000);
+        ThreadTestHelper.assertNoThreadLeft("Still had threads from MockRESTServer left", "MockRESTServer-");
     }
 
     @Test
@@ -256,4 +300,1431 @@ public class MockRESTServerTest {
 			servers.get(i).close();
 		}
 	}
+
+	@Test
+	void testKeepAlive() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 Socket socket = new Socket("localhost", server.getPort())) {
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+					"POST /2 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\nbody" +
+					"GET /3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+
+			String responses = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+			assertEquals(3, responses.split("HTTP/1.1 200 OK").length - 1,
+					"Should get three responses on one connection, had: " + responses);
+			assertTrue(responses.endsWith("Connection: close\r\n\r\nOK"), "Had: " + responses);
+		}
+	}
+
+	@Test
+	void testFaultProfileDelay() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setFaultProfile("/slow/*", FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofMillis(300)))
+					.timeToFirstByte(LatencyDistribution.fixed(Duration.ofMillis(200)))
+					.build());
+
+			long start = System.nanoTime();
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/fast", 10_000));
+			long fast = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			start = System.nanoTime();
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/slow/call", 10_000));
+			long slow = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertTrue(slow >= 500, "Should be delayed, but took " + slow + "ms");
+			assertTrue(fast < slow, "Should not be delayed, but took " + fast + "ms");
+		}
+	}
+
+	@Test
+	void testFaultProfileDelayDoesNotBlockThreads() throws Exception {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setFaultProfile(FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofSeconds(1)))
+					.build());
+
+			HttpClient client = HttpClient.newHttpClient();
+			List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < 500; i++) {
+				responses.add(client.sendAsync(
+						HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/" + i)).build(),
+						HttpResponse.BodyHandlers.ofString()));
+			}
+			for (CompletableFuture<HttpResponse<String>> response : responses) {
+				assertEquals("OK", response.get().body());
+			}
+			long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertTrue(duration < 10_000, "All delays should run in parallel, but took " + duration + "ms");
+		}
+	}
+
+	@Test
+	void testFaultProfileBandwidth() throws IOException {
+		String body = "x".repeat(20_000);
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, body)) {
+			server.setFaultProfile(FaultProfile.builder()
+					.bandwidth(40_000)
+					.build());
+
+			long start = System.nanoTime();
+			assertEquals(body, UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+			long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertTrue(duration >= 400, "Should be throttled, but took " + duration + "ms");
+		}
+	}
+
+	@Test
+	void testFaultProfileReset() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setFaultProfile("GET /reset", FaultProfile.builder()
+					.resetProbability(1.0)
+					.build());
+
+			assertThrows(IOException.class,
+					() -> UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/reset", 10_000));
+
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/other", 10_000));
+		}
+	}
+
+	@Test
+	void testFaultProfileResetSendsRST() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 Socket socket = new Socket("localhost", server.getPort())) {
+			server.setFaultProfile(FaultProfile.builder()
+					.resetProbability(1.0)
+					.build());
+
+			socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			InputStream input = socket.getInputStream();
+
+			TestHelpers.assertContains(assertThrows(SocketException.class, input::read), "reset");
+		}
+	}
+
+	@Test
+	void testFaultProfileErrorBurst() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setFaultProfile(FaultProfile.builder()
+					.errorBurst(1.0, 3)
+					.build());
+
+			for (int i = 0; i < 3; i++) {
+				TestHelpers.assertContains(assertThrows(IOException.class,
+						() -> UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000)),
+						"503");
+			}
+
+			server.setFaultProfile(FaultProfile.NONE);
+
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testFileRoute() throws IOException, InterruptedException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File file = TestEnvironment.createTempFile("MockRESTServerTest", ".txt");
+			byte[] content = new byte[100_000];
+			for (int i = 0; i < content.length; i++) {
+				content[i] = (byte) ('a' + i % 26);
+			}
+			Files.write(file.toPath(), content);
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+				 HttpClient client = HttpClient.newHttpClient()) {
+				server.addFileRoute("/file", file, "application/octet-stream");
+				server.addMappedFileRoute("/mapped", file, "application/octet-stream");
+
+				for (String path : new String[] { "/file", "/mapped" }) {
+					URI uri = URI.create("http://localhost:" + server.getPort() + path);
+
+					HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(uri).build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(200, response.statusCode());
+					assertEquals("100000", response.headers().firstValue("Content-Length").orElse(null));
+					assertEquals("bytes", response.headers().firstValue("Accept-Ranges").orElse(null));
+					assertArrayEquals(content, response.body());
+
+					response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=10-19").build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(206, response.statusCode());
+					assertEquals("bytes 10-19/100000", response.headers().firstValue("Content-Range").orElse(null));
+					assertArrayEquals(Arrays.copyOfRange(content, 10, 20), response.body());
+
+					response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=-5").build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(206, response.statusCode());
+					assertArrayEquals(Arrays.copyOfRange(content, 99_995, 100_000), response.body());
+
+					response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=0-1, 10-12").build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(206, response.statusCode());
+					assertEquals("multipart/byteranges; boundary=MockRESTServer_byteranges_boundary",
+							response.headers().firstValue("Content-Type").orElse(null));
+					assertEquals("--MockRESTServer_byteranges_boundary\r\n" +
+							"Content-Type: application/octet-stream\r\n" +
+							"Content-Range: bytes 0-1/100000\r\n\r\n" +
+							"ab\r\n" +
+							"--MockRESTServer_byteranges_boundary\r\n" +
+							"Content-Type: application/octet-stream\r\n" +
+							"Content-Range: bytes 10-12/100000\r\n\r\n" +
+							"klm\r\n" +
+							"--MockRESTServer_byteranges_boundary--\r\n", new String(response.body(), StandardCharsets.ISO_8859_1));
+
+					response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=200000-").build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(416, response.statusCode());
+					assertEquals("bytes */100000", response.headers().firstValue("Content-Range").orElse(null));
+
+					response = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+							HttpResponse.BodyHandlers.ofByteArray());
+					assertEquals(200, response.statusCode());
+					assertEquals(0, response.body().length);
+				}
+
+				// other paths are still answered by the default response
+				assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/other", 10_000));
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testCacheableRoute() throws IOException, InterruptedException {
+		byte[] content = new byte[10_000];
+		Arrays.fill(content, (byte) 'x');
+		Instant lastModified = Instant.parse("2024-03-01T10:15:30Z");
+
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addCacheableRoute("/cached", "application/octet-stream", content, lastModified);
+			URI uri = URI.create("http://localhost:" + server.getPort() + "/cached");
+
+			HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, response.statusCode());
+			assertArrayEquals(content, response.body());
+			assertEquals("Fri, 1 Mar 2024 10:15:30 GMT", response.headers().firstValue("Last-Modified").orElse(null));
+			String etag = response.headers().firstValue("ETag").orElseThrow();
+			assertTrue(etag.startsWith("\"") && etag.endsWith("\""), "Had: " + etag);
+
+			// a client which revalidates its cached copy
+			response = client.send(HttpRequest.newBuilder(uri).header("If-None-Match", "\"other\", " + etag).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(304, response.statusCode());
+			assertEquals(0, response.body().length);
+			assertEquals(etag, response.headers().firstValue("ETag").orElse(null));
+
+			response = client.send(HttpRequest.newBuilder(uri).header("If-Modified-Since", "Fri, 1 Mar 2024 10:15:30 GMT").build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(304, response.statusCode());
+
+			// "If-None-Match" takes precedence over "If-Modified-Since"
+			response = client.send(HttpRequest.newBuilder(uri).header("If-None-Match", "\"other\"")
+							.header("If-Modified-Since", "Fri, 1 Mar 2024 10:15:30 GMT").build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, response.statusCode());
+
+			response = client.send(HttpRequest.newBuilder(uri).header("If-Modified-Since", "Thu, 29 Feb 2024 10:15:30 GMT").build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, response.statusCode());
+
+			// a client which resumes a download
+			response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=9000-").header("If-Range", etag).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(206, response.statusCode());
+			assertEquals(1_000, response.body().length);
+
+			// the content changed in the meantime, so the full content is sent
+			response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=9000-").header("If-Range", "\"old\"").build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, response.statusCode());
+			assertEquals(10_000, response.body().length);
+
+			// the metrics are recorded after the response was sent
+			RouteMetrics metrics = server.getMetrics().getRoute("/cached");
+			for (int i = 0; i < 100 && metrics.getRequests() < 7; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(4, metrics.getFullResponses());
+			assertEquals(2, metrics.getNotModifiedResponses());
+			assertEquals(1, metrics.getPartialResponses());
+			assertEquals(2 * 10_000 + 9_000, metrics.getBytesSaved());
+			assertEquals(metrics.getBytesSaved(), server.getMetrics().getBytesSaved());
+		}
+	}
+
+	@Test
+	void testFileRouteThrottled() throws IOException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File file = TestEnvironment.createTempFile("MockRESTServerTest", ".txt");
+			String body = "x".repeat(20_000);
+			Files.writeString(file.toPath(), body);
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				server.addFileRoute("*", file, NanoHTTPD.MIME_PLAINTEXT);
+				server.setFaultProfile(FaultProfile.builder()
+						.bandwidth(40_000)
+						.build());
+
+				long start = System.nanoTime();
+				assertEquals(body, UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+				long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+				assertTrue(duration >= 400, "Should be throttled, but took " + duration + "ms");
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testFileRouteMissingFile() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			assertThrows(IOException.class,
+					() -> server.addFileRoute("/file", new File("not-existing-file"), NanoHTTPD.MIME_PLAINTEXT));
+		}
+	}
+
+	@Test
+	void testStreamingRoute() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addStreamingRoute("/feed", "application/x-ndjson", () -> IntStream.range(0, 10_000)
+					.mapToObj(i -> ByteBuffer.wrap(("{\"id\":" + i + "}\n").getBytes(StandardCharsets.UTF_8)))
+					.iterator());
+
+			HttpResponse<Stream<String>> response = client.send(
+					HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/feed")).build(),
+					HttpResponse.BodyHandlers.ofLines());
+			assertEquals(200, response.statusCode());
+			assertEquals("chunked", response.headers().firstValue("Transfer-Encoding").orElse(null));
+			assertEquals("application/x-ndjson", response.headers().firstValue("Content-Type").orElse(null));
+
+			List<String> lines = response.body().collect(Collectors.toList());
+			assertEquals(10_000, lines.size());
+			assertEquals("{\"id\":9999}", lines.get(9_999));
+
+			// the connection can be re-used after the streamed response
+			assertEquals("OK", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/other")).build(),
+					HttpResponse.BodyHandlers.ofString()).body());
+		}
+	}
+
+	@Test
+	void testStreamingRouteBackpressure() throws IOException, InterruptedException {
+		AtomicLong generated = new AtomicLong();
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			// an endless stream
+			server.addStreamingRoute("*", NanoHTTPD.MIME_PLAINTEXT, () -> Stream.generate(() -> {
+				generated.incrementAndGet();
+				return ByteBuffer.allocate(1024);
+			}).iterator());
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				assertTrue(socket.getInputStream().read(new byte[100]) > 0);
+
+				// as the client does not read, the generator stops once the socket-buffers are full
+				long count;
+				do {
+					count = generated.get();
+					Thread.sleep(200);
+				} while (count != generated.get());
+
+				assertTrue(count < 100_000, "Had: " + count);
+			}
+		}
+	}
+
+	@Test
+	void testStreamingRouteGeneratorFails() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addStreamingRoute("*", NanoHTTPD.MIME_PLAINTEXT, () -> IntStream.range(0, 10)
+					.mapToObj(i -> {
+						if (i == 5) {
+							throw new IllegalStateException("Test-exception");
+						}
+						return ByteBuffer.wrap("chunk".getBytes(StandardCharsets.UTF_8));
+					})
+					.iterator());
+
+			assertThrows(IOException.class,
+					() -> UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testStreamingRouteHttp10() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 Socket socket = new Socket("localhost", server.getPort())) {
+			server.addStreamingRoute("*", NanoHTTPD.MIME_PLAINTEXT, () -> List.of(
+					ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)),
+					ByteBuffer.wrap("def".getBytes(StandardCharsets.UTF_8))).iterator());
+
+			socket.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+
+			assertFalse(response.contains("Transfer-Encoding"), "Had: " + response);
+			assertTrue(response.endsWith("\r\n\r\nabcdef"), "Had: " + response);
+		}
+	}
+
+	@Test
+	void testPublisherRoute() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addPublisherRoute("/feed", NanoHTTPD.MIME_PLAINTEXT, () -> {
+				SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+				Thread.ofVirtual().start(() -> {
+					// items which are submitted before the server subscribed would be lost
+					while (!publisher.hasSubscribers()) {
+						Thread.yield();
+					}
+					for (int i = 0; i < 1_000; i++) {
+						// blocks when the subscriber does not keep up
+						publisher.submit(ByteBuffer.wrap((i + "\n").getBytes(StandardCharsets.UTF_8)));
+					}
+					publisher.close();
+				});
+				return publisher;
+			});
+
+			HttpResponse<Stream<String>> response = client.send(
+					HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/feed")).build(),
+					HttpResponse.BodyHandlers.ofLines());
+			assertEquals(200, response.statusCode());
+
+			List<String> lines = response.body().collect(Collectors.toList());
+			assertEquals(1_000, lines.size());
+			assertEquals("999", lines.get(999));
+		}
+	}
+
+	@Test
+	void testPublisherRouteFails() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addPublisherRoute("*", NanoHTTPD.MIME_PLAINTEXT, () -> {
+				SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+				Thread.ofVirtual().start(() -> {
+					publisher.submit(ByteBuffer.wrap("chunk".getBytes(StandardCharsets.UTF_8)));
+					publisher.closeExceptionally(new IllegalStateException("Test-exception"));
+				});
+				return publisher;
+			});
+
+			assertThrows(IOException.class,
+					() -> UrlUtils.retrieveData("http://localhost:" + server.getPort(), 10_000));
+		}
+	}
+
+	@Test
+	void testTemplateRoute() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addTemplateRoute("GET /users/{id}/orders/{order}", NanoHTTPD.HTTP_OK, "application/json",
+					"{\"user\":\"${path.id}\",\"order\":\"${path.order}\",\"page\":\"${query.page}\"," +
+							"\"count\":${counter},\"time\":${timestamp}}");
+
+			long before = System.currentTimeMillis();
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+					URI.create("http://localhost:" + server.getPort() + "/users/42/orders/a%20b?size=10&page=3")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			assertEquals("application/json", response.headers().firstValue("Content-Type").orElse(null));
+
+			String body = response.body();
+			assertTrue(body.startsWith("{\"user\":\"42\",\"order\":\"a%20b\",\"page\":\"3\",\"count\":1,\"time\":"),
+					"Had: " + body);
+			long time = Long.parseLong(body.substring(body.lastIndexOf(':') + 1, body.length() - 1));
+			assertTrue(time >= before && time <= System.currentTimeMillis(), "Had: " + body);
+
+			// the counter increases and missing query-parameters are empty
+			body = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/orders/1")).build(),
+					HttpResponse.BodyHandlers.ofString()).body();
+			assertTrue(body.startsWith("{\"user\":\"7\",\"order\":\"1\",\"page\":\"\",\"count\":2,"), "Had: " + body);
+
+			// paths which do not match the template
+			assertEquals(404, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7")).build(),
+					HttpResponse.BodyHandlers.ofString()).statusCode());
+			assertEquals(404, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/items/1")).build(),
+					HttpResponse.BodyHandlers.ofString()).statusCode());
+			assertEquals(404, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/orders/1/2")).build(),
+					HttpResponse.BodyHandlers.ofString()).statusCode());
+
+			// other methods are answered by the default response
+			assertEquals("OK", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/orders/1"))
+					.POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString()).body());
+		}
+	}
+
+	@Test
+	void testTemplateRouteSharedPrefix() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			// both templates are routed via "GET /users/*"
+			server.addTemplateRoute("GET /users/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "user ${path.id}");
+			server.addTemplateRoute("GET /users/{id}/orders/{order}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT,
+					"order ${path.order} of ${path.id}");
+
+			assertEquals("user 7", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7")).build(),
+					HttpResponse.BodyHandlers.ofString()).body());
+			assertEquals("order 1 of 7", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/orders/1")).build(),
+					HttpResponse.BodyHandlers.ofString()).body());
+			assertEquals(404, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/items/1")).build(),
+					HttpResponse.BodyHandlers.ofString()).statusCode());
+
+			// the same template replaces the previous one
+			server.addTemplateRoute("GET /users/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "replaced ${path.id}");
+			assertEquals("replaced 7", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7")).build(),
+					HttpResponse.BodyHandlers.ofString()).body());
+			assertEquals("order 2 of 7", client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/users/7/orders/2")).build(),
+					HttpResponse.BodyHandlers.ofString()).body());
+
+			// one route with the metrics of both templates, they are recorded after the response was sent
+			RouteMetrics metrics = server.getMetrics().getRoute("GET /users/*");
+			for (int i = 0; i < 100 && metrics.getRequests() < 5; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(5, metrics.getRequests());
+		}
+	}
+
+	@Test
+	void testTemplateRouteHttp10() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 Socket socket = new Socket("localhost", server.getPort())) {
+			server.addTemplateRoute("/items/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "item ${path.id}");
+
+			socket.getOutputStream().write("GET /items/abc HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+
+			assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), "Had: " + response);
+			assertTrue(response.contains("\r\nContent-Length: 8\r\nConnection: close\r\n\r\n"), "Had: " + response);
+			assertTrue(response.endsWith("\r\n\r\nitem abc"), "Had: " + response);
+		}
+	}
+
+	@Test
+	void testTemplateRouteInvalid() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			assertThrows(IllegalArgumentException.class,
+					() -> server.addTemplateRoute("/items/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "${unknown}"));
+			assertThrows(IllegalArgumentException.class,
+					() -> server.addTemplateRoute("/items/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "${path.other}"));
+			assertThrows(IllegalArgumentException.class,
+					() -> server.addTemplateRoute("/items/{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "${counter"));
+			assertThrows(IllegalArgumentException.class,
+					() -> server.addTemplateRoute("/items/id-{id}", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "${path.id}"));
+		}
+	}
+
+	@Test
+	void testSseRoute() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			PushFeed feed = PushFeed.builder()
+					.generator(() -> List.of("first", "two\nlines", "").iterator())
+					.build();
+			server.addSseRoute("/events", feed);
+
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/events")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			assertEquals("text/event-stream", response.headers().firstValue("Content-Type").orElseThrow());
+			assertEquals("id: 0\ndata: first\n\nid: 1\ndata: two\ndata: lines\n\nid: 2\ndata: \n\n", response.body());
+
+			assertEquals(1, feed.getClients().size());
+			PushClientMetrics metrics = feed.getClients().get(0);
+			assertEquals(3, metrics.getMessagesSent());
+			assertEquals(response.body().length(), metrics.getBytesSent());
+			assertEquals(0, metrics.getDroppedMessages());
+			assertFalse(metrics.isConnected());
+
+			// many messages are batched into few writes
+			PushFeed large = PushFeed.builder()
+					.limit(100_000)
+					.build();
+			server.addSseRoute("/large", large);
+
+			try (Stream<String> lines = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/large")).build(),
+					HttpResponse.BodyHandlers.ofLines()).body()) {
+				assertEquals(100_000, lines.filter(line -> line.startsWith("data: ")).count());
+			}
+			assertEquals(100_000, large.getMessagesSent());
+			assertEquals(0, large.getConnectedClients());
+		}
+	}
+
+	@Test
+	void testSseRouteDropsMessagesForSlowClients() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			PushFeed feed = PushFeed.builder()
+					.rate(20_000)
+					.limit(10_000)
+					.maxLag(100)
+					.build();
+			server.addSseRoute("/events", feed);
+
+			// the client cannot keep up with the rate as sending is throttled
+			server.setFaultProfile("/events", FaultProfile.builder()
+					.bandwidth(50_000)
+					.build());
+
+			String body = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/events")).build(),
+					HttpResponse.BodyHandlers.ofString()).body();
+
+			PushClientMetrics metrics = feed.getClients().get(0);
+			assertTrue(metrics.getDroppedMessages() > 0, "Had: " + metrics);
+			assertEquals(10_000, metrics.getMessagesSent() + metrics.getDroppedMessages(), "Had: " + metrics);
+			assertEquals(100, metrics.getMaxLag(), "Had: " + metrics);
+			assertEquals(metrics.getDroppedMessages(), feed.getDroppedMessages());
+
+			// the ids show the gaps and end with the last message
+			List<Long> ids = body.lines().filter(line -> line.startsWith("id: "))
+					.map(line -> Long.parseLong(line.substring(4))).collect(Collectors.toList());
+			assertEquals(metrics.getMessagesSent(), ids.size());
+			assertEquals(9_999L, ids.get(ids.size() - 1).longValue());
+			assertTrue(ids.get(ids.size() - 1) - ids.get(0) >= ids.size(), "Should have gaps, but had " + ids.size() + " ids");
+		}
+	}
+
+	@Test
+	void testWebSocketRoute() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			PushFeed feed = PushFeed.builder()
+					.messages(sequence -> "message " + sequence)
+					.limit(3)
+					.build();
+			server.addWebSocketRoute("/ws", feed);
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				socket.setSoTimeout(10_000);
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+
+				// the example of RFC 6455
+				out.write(("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+						"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				String head = readHead(in);
+				TestHelpers.assertContains(head, "HTTP/1.1 101 Switching Protocols", "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+
+				for (int i = 0; i < 3; i++) {
+					assertEquals(0x81, in.read());
+					assertEquals("message " + i, new String(in.readNBytes(in.read()), StandardCharsets.UTF_8));
+				}
+
+				// the server closes the WebSocket at the end of the feed
+				assertEquals(0x88, in.read());
+				assertEquals(2, in.read());
+				assertArrayEquals(new byte[] { 0x03, (byte) 0xe8 }, in.readNBytes(2));
+				writeMaskedFrame(out, 0x88, new byte[] { 0x03, (byte) 0xe8 });
+				assertEquals(-1, in.read());
+			}
+
+			assertEquals(3, feed.getMessagesSent());
+
+			// requests without handshake are rejected
+			assertThrows(IOException.class,
+					() -> UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/ws", 10_000));
+		}
+	}
+
+	@Test
+	void testWebSocketPingAndClose() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			PushFeed feed = PushFeed.builder()
+					.rate(10)
+					.build();
+			server.addWebSocketRoute("/ws", feed);
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				socket.setSoTimeout(10_000);
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+
+				out.write(("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+						"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				TestHelpers.assertContains(readHead(in), "HTTP/1.1 101 Switching Protocols");
+
+				// the first message is sent right away
+				assertEquals(0x81, in.read());
+				assertEquals("0", new String(in.readNBytes(in.read()), StandardCharsets.UTF_8));
+
+				// the ping is answered without waiting for the next message, text-frames of the client are ignored
+				writeMaskedFrame(out, 0x81, "ignored".getBytes(StandardCharsets.UTF_8));
+				writeMaskedFrame(out, 0x89, "ping".getBytes(StandardCharsets.UTF_8));
+				int opcode = in.read();
+				byte[] payload = in.readNBytes(in.read());
+				while (opcode == 0x81) {
+					opcode = in.read();
+					payload = in.readNBytes(in.read());
+				}
+				assertEquals(0x8a, opcode);
+				assertEquals("ping", new String(payload, StandardCharsets.UTF_8));
+
+				// the close-frame is confirmed and the connection closed
+				writeMaskedFrame(out, 0x88, new byte[] { 0x03, (byte) 0xe9 });
+				opcode = in.read();
+				payload = in.readNBytes(in.read());
+				while (opcode == 0x81) {
+					opcode = in.read();
+					payload = in.readNBytes(in.read());
+				}
+				assertEquals(0x88, opcode);
+				assertArrayEquals(new byte[] { 0x03, (byte) 0xe9 }, payload);
+				assertEquals(-1, in.read());
+			}
+
+			// the metrics are recorded after the connection was closed
+			RouteMetrics metrics = server.getMetrics().getRoute("/ws");
+			for (int i = 0; i < 100 && metrics.getRequests() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, feed.getConnectedClients());
+			assertEquals(1, metrics.getStatusCount(101));
+		}
+	}
+
+	private static String readHead(InputStream in) throws IOException {
+		StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			int b = in.read();
+			if (b == -1) {
+				fail("Unexpected end of stream after " + head);
+			}
+			head.append((char) b);
+		}
+		return head.toString();
+	}
+
+	private static void writeMaskedFrame(OutputStream out, int first, byte[] payload) throws IOException {
+		byte[] mask = { 1, 2, 3, 4 };
+		out.write(first);
+		out.write(0x80 | payload.length);
+		out.write(mask);
+		for (int i = 0; i < payload.length; i++) {
+			out.write(payload[i] ^ mask[i % 4]);
+		}
+		out.flush();
+	}
+
+	@Test
+	void testStaticResponse() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK \u00e4");
+			 Socket socket = new Socket("localhost", server.getPort())) {
+			server.addStaticRoute("/static", NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_HTML, "<b>missing</b>".getBytes(StandardCharsets.UTF_8));
+
+			OutputStream output = socket.getOutputStream();
+			InputStream input = socket.getInputStream();
+
+			// the same pre-encoded response is sent for each request on the connection
+			String expected = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nOK \u00c3\u00a4";
+			for (int i = 0; i < 3; i++) {
+				output.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				assertEquals(expected, new String(input.readNBytes(expected.length()), StandardCharsets.ISO_8859_1));
+			}
+
+			String head = "HTTP/1.1 404 Not Found\r\nContent-Type: text/html\r\nContent-Length: 14\r\n\r\n";
+			output.write("HEAD /static HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertEquals(head, new String(input.readNBytes(head.length()), StandardCharsets.ISO_8859_1));
+
+			output.write("GET /static HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			assertEquals("HTTP/1.1 404 Not Found\r\nContent-Type: text/html\r\nContent-Length: 14\r\nConnection: close\r\n\r\n<b>missing</b>",
+					new String(input.readAllBytes(), StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	void testCompressedRoute() throws IOException, InterruptedException {
+		byte[] body = "some text which compresses well, ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addCompressedRoute("/text", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, body);
+
+			HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/text"))
+					.header("Accept-Encoding", "gzip, deflate").build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElseThrow());
+			assertEquals("Accept-Encoding", response.headers().firstValue("Vary").orElseThrow());
+			assertTrue(response.body().length < body.length / 10, "Had " + response.body().length + " bytes");
+			try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+				assertArrayEquals(body, stream.readAllBytes());
+			}
+
+			response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/text"))
+					.header("Accept-Encoding", "gzip;q=0.5, deflate").build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals("deflate", response.headers().firstValue("Content-Encoding").orElseThrow());
+			try (InputStream stream = new InflaterInputStream(new ByteArrayInputStream(response.body()))) {
+				assertArrayEquals(body, stream.readAllBytes());
+			}
+
+			response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/text")).build(),
+					HttpResponse.BodyHandlers.ofByteArray());
+			assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+			assertArrayEquals(body, response.body());
+
+			response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/text"))
+					.method("HEAD", HttpRequest.BodyPublishers.noBody())
+					.header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElseThrow());
+			assertEquals(0, response.body().length);
+		}
+	}
+
+	@Test
+	void testCompressedRouteNegotiation() {
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate(null));
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate(""));
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate("br"));
+		assertEquals(CompressedResponseHandler.GZIP, CompressedResponseHandler.negotiate("gzip"));
+		assertEquals(CompressedResponseHandler.GZIP, CompressedResponseHandler.negotiate("x-gzip"));
+		assertEquals(CompressedResponseHandler.GZIP, CompressedResponseHandler.negotiate("deflate, gzip"));
+		assertEquals(CompressedResponseHandler.GZIP, CompressedResponseHandler.negotiate("*"));
+		assertEquals(CompressedResponseHandler.GZIP, CompressedResponseHandler.negotiate("br;q=1.0, GZIP;q=0.8, identity;q=0.5"));
+		assertEquals(CompressedResponseHandler.DEFLATE, CompressedResponseHandler.negotiate("deflate"));
+		assertEquals(CompressedResponseHandler.DEFLATE, CompressedResponseHandler.negotiate("gzip;q=0, *"));
+		assertEquals(CompressedResponseHandler.DEFLATE, CompressedResponseHandler.negotiate("gzip;q=0.2, deflate;q=0.3"));
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate("gzip;q=0.5, identity"));
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate("gzip;q=0, deflate;q=0"));
+		assertEquals(CompressedResponseHandler.IDENTITY, CompressedResponseHandler.negotiate("gzip;q=invalid"));
+	}
+
+	@Test
+	void testUploadRoute() throws IOException, InterruptedException, NoSuchAlgorithmException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addUploadRoute("/discard", RequestBodySink.discard());
+			server.addUploadRoute("/hash", RequestBodySink.hash("SHA-256"));
+
+			// the body is produced while it is sent and never held in memory
+			long size = 64L * 1024 * 1024;
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/discard"))
+					.POST(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(
+							() -> new InputStream() {
+								private long remaining = size;
+
+								@Override
+								public int read() {
+									byte[] b = new byte[1];
+									return read(b, 0, 1) == -1 ? -1 : b[0];
+								}
+
+								@Override
+								public int read(byte[] b, int off, int len) {
+									if (remaining <= 0) {
+										return -1;
+									}
+									int count = (int) Math.min(len, remaining);
+									Arrays.fill(b, off, off + count, (byte) 'x');
+									remaining -= count;
+									return count;
+								}
+							}), size)).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+			assertEquals(Long.toString(size), response.body());
+			assertTrue(server.getMetrics().getRoute("/discard").getBytesIn() >= size);
+
+			byte[] data = "some data to hash".getBytes(StandardCharsets.UTF_8);
+			response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/hash"))
+					.POST(HttpRequest.BodyPublishers.ofByteArray(data)).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data)), response.body());
+		}
+	}
+
+	@Test
+	void testUploadRouteSpillToFile() throws IOException, InterruptedException {
+		TestEnvironment.createOrClearRuntimeData();
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			server.addUploadRoute("/upload", RequestBodySink.spillToFile());
+
+			byte[] data = new byte[3 * 1024 * 1024 + 17];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) i;
+			}
+
+			// chunked, with "Expect: 100-continue"
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/upload"))
+					.expectContinue(true)
+					.POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(data))).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, response.statusCode());
+
+			File file = new File(response.body());
+			assertEquals(new File(TestEnvironment.ABS_RUNTIME_DATA_PATH), file.getParentFile());
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testExpectContinue() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addUploadRoute("/upload", RequestBodySink.discard());
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				OutputStream out = socket.getOutputStream();
+				InputStream in = socket.getInputStream();
+
+				// the body is requested by the server
+				out.write("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				assertEquals("HTTP/1.1 100 Continue\r\n\r\n", new String(in.readNBytes(25), StandardCharsets.ISO_8859_1));
+				out.write("12345".getBytes(StandardCharsets.ISO_8859_1));
+
+				String response = readResponse(in);
+				TestHelpers.assertContains(response, "HTTP/1.1 200 OK", "Content-Length: 1\r\n");
+				assertTrue(response.endsWith("\r\n\r\n5"), "Had: " + response);
+				TestHelpers.assertNotContains(response, "Connection: close");
+
+				// the default route does not read the body, so the connection is closed afterwards
+				out.write("POST /other HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				response = new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+				TestHelpers.assertContains(response, "HTTP/1.1 200 OK", "Connection: close\r\n");
+				TestHelpers.assertNotContains(response, "100 Continue");
+				assertTrue(response.endsWith("\r\n\r\nOK"), "Had: " + response);
+			}
+		}
+	}
+
+	private static String readResponse(InputStream in) throws IOException {
+		StringBuilder response = new StringBuilder();
+		while (!response.toString().endsWith("\r\n\r\n")) {
+			response.append((char) in.read());
+		}
+
+		String head = response.toString();
+		int start = head.indexOf("Content-Length: ") + 16;
+		int length = Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)));
+		return head + new String(in.readNBytes(length), StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	void testMetrics() throws Exception {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addStaticRoute("/missing", NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, "missing".getBytes(StandardCharsets.UTF_8));
+			server.setFaultProfile("/missing", FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofMillis(50)))
+					.build());
+
+			for (int i = 0; i < 3; i++) {
+				assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/", 10_000));
+			}
+			assertThrows(IOException.class,
+					() -> UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/missing", 10_000));
+
+			// the metrics are recorded after the response was sent
+			ServerMetrics metrics = server.getMetrics();
+			for (int i = 0; i < 100 && metrics.getRequests() < 4; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(4, metrics.getRequests());
+			assertTrue(metrics.getAcceptedConnections() >= 1, "Had: " + metrics);
+			assertTrue(metrics.getBytesIn() > 0, "Had: " + metrics);
+
+			RouteMetrics defaultRoute = metrics.getRoute("*");
+			assertEquals(3, defaultRoute.getRequests());
+			assertEquals(3, defaultRoute.getStatusCount(200));
+			assertEquals(3 * ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n\r\nOK").length(),
+					defaultRoute.getBytesOut());
+
+			RouteMetrics missing = metrics.getRoute("/missing");
+			assertEquals(1, missing.getRequests());
+			assertEquals(1, missing.getStatusCount(404));
+			assertEquals(0, missing.getStatusCount(200));
+			assertTrue(missing.getHandlingTime().getMin() >= TimeUnit.MILLISECONDS.toNanos(50),
+					"Handling time should include the delay, had: " + missing);
+
+			// the same values are available via JMX
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("org.dstadler.commons.testing:type=MockRESTServer,port=" + server.getPort());
+			assertEquals(4L, mbeanServer.getAttribute(name, "Requests"));
+			assertNotNull(mbeanServer.getAttribute(name, "RouteSummaries"));
+
+			metrics.reset();
+			assertEquals(0, metrics.getRequests());
+			assertEquals(0, defaultRoute.getStatusCount(200));
+		}
+
+		// unregistered when the server is closed
+		assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+				new ObjectName("org.dstadler.commons.testing:type=MockRESTServer,*"), null).isEmpty());
+	}
+
+	@Test
+	void testMetricsOfEquivalentPatterns() throws Exception {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addStaticRoute("get /a", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "first".getBytes(StandardCharsets.UTF_8));
+			server.addStaticRoute(" GET /a", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "second".getBytes(StandardCharsets.UTF_8));
+
+			assertEquals("second", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a", 10_000));
+
+			ServerMetrics metrics = server.getMetrics();
+			for (int i = 0; i < 100 && metrics.getRequests() < 1; i++) {
+				Thread.sleep(10);
+			}
+
+			// both patterns are the same route, so there is only one entry
+			assertEquals(List.of("*", "GET /a"), new ArrayList<>(metrics.getRoutes().keySet()));
+			assertSame(metrics.getRoute("GET /a"), metrics.getRoute("get /a"));
+			assertEquals(1, metrics.getRoute("get /a").getRequests());
+
+			// the metrics of a replaced route are not continued
+			server.addStaticRoute("GET /a", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "third".getBytes(StandardCharsets.UTF_8));
+			assertEquals(0, metrics.getRoute("GET /a").getRequests());
+			assertEquals(List.of("*", "GET /a"), new ArrayList<>(metrics.getRoutes().keySet()));
+		}
+	}
+
+	@Test
+	void testReplacedRouteIsClosed() throws IOException {
+		AtomicBoolean closed = new AtomicBoolean();
+		class ClosingHandler implements MockRESTServer.RequestHandler, Closeable {
+			@Override
+			public void handle(MockRequest request, HttpConnection connection) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		}
+
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.addRoute("/file", new ClosingHandler());
+			assertFalse(closed.get());
+
+			// e.g. the file of a file-route is released as soon as the route is replaced
+			server.addStaticRoute("/file", NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK".getBytes(StandardCharsets.UTF_8));
+			assertTrue(closed.get());
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/file", 10_000));
+		}
+	}
+
+	@Test
+	void testRateLimit() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setRateLimit("/limited", RateLimit.perSecond(1, 3));
+
+			HttpClient client = HttpClient.newHttpClient();
+			HttpRequest limited = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/limited")).build();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(200, client.send(limited, HttpResponse.BodyHandlers.ofString()).statusCode());
+			}
+
+			HttpResponse<String> response = client.send(limited, HttpResponse.BodyHandlers.ofString());
+			assertEquals(429, response.statusCode());
+			assertEquals("1", response.headers().firstValue("Retry-After").orElseThrow());
+			assertEquals(429, client.send(limited, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+			// other routes are not limited
+			assertEquals(200, client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/other")).build(),
+					HttpResponse.BodyHandlers.ofString()).statusCode());
+
+			assertEquals(2, server.getMetrics().getRateLimitedRequests());
+			assertEquals(2, server.getMetrics().getShedRequests());
+			assertEquals(0, server.getMetrics().getConcurrencyLimitedRequests());
+
+			server.removeRateLimit("/limited");
+			assertEquals(200, client.send(limited, HttpResponse.BodyHandlers.ofString()).statusCode());
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> RateLimit.perSecond(0, 1));
+		assertThrows(IllegalArgumentException.class, () -> RateLimit.perSecond(1, 0));
+	}
+
+	@Test
+	void testMaxConcurrentRequests() throws Exception {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setMaxConcurrentRequests(2);
+			server.setFaultProfile(FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofSeconds(1)))
+					.build());
+
+			HttpClient client = HttpClient.newHttpClient();
+			List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				responses.add(client.sendAsync(
+						HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/" + i)).build(),
+						HttpResponse.BodyHandlers.ofString()));
+			}
+
+			int ok = 0;
+			int unavailable = 0;
+			for (CompletableFuture<HttpResponse<String>> future : responses) {
+				HttpResponse<String> response = future.get();
+				if (response.statusCode() == 200) {
+					ok++;
+				} else {
+					assertEquals(503, response.statusCode());
+					assertEquals("1", response.headers().firstValue("Retry-After").orElseThrow());
+					unavailable++;
+				}
+			}
+
+			assertTrue(ok >= 2, "Had " + ok + " successful and " + unavailable + " rejected requests");
+			assertTrue(unavailable >= 1, "Had " + ok + " successful and " + unavailable + " rejected requests");
+			assertEquals(unavailable, server.getMetrics().getConcurrencyLimitedRequests());
+			assertEquals(unavailable, server.getMetrics().getShedRequests());
+			assertEquals(0, server.getMetrics().getInFlightRequests());
+		}
+	}
+
+	@Test
+	void testConnectionLimit() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.setConnectionLimit(1, 10);
+
+			byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+			try (Socket first = new Socket("localhost", server.getPort());
+				 Socket second = new Socket("localhost", server.getPort())) {
+				first.getOutputStream().write(request);
+				TestHelpers.assertContains(readResponse(first.getInputStream()), "HTTP/1.1 200 OK");
+
+				// the second connection waits in the backlog until the first one is closed
+				second.getOutputStream().write(request);
+				second.setSoTimeout(500);
+				assertThrows(SocketTimeoutException.class, () -> second.getInputStream().read());
+
+				first.close();
+				second.setSoTimeout(10_000);
+				TestHelpers.assertContains(readResponse(second.getInputStream()), "HTTP/1.1 200 OK");
+			}
+
+			// removing the limit binds the socket again with the default backlog
+			server.setConnectionLimit(0, 1024);
+			assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/", 10_000));
+		}
+	}
+
+	@Test
+	void testRecordAndReplay() throws IOException, InterruptedException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File recording = TestEnvironment.createTempFile("MockRESTServerTest", ".rec");
+			assertTrue(recording.delete());
+
+			AtomicLong counter = new AtomicLong();
+			try (MockRESTServer server = new MockRESTServer(() ->
+					new NanoHTTPD.Response(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "response " + counter.incrementAndGet()))) {
+				server.startRecording(recording);
+
+				assertEquals("response 1", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=1", 10_000));
+				assertEquals("response 2", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=1", 10_000));
+				assertEquals("response 3", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/b", 10_000));
+
+				// the exchange is recorded after the response was sent
+				Thread.sleep(100);
+				server.stopRecording();
+
+				assertEquals("response 4", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/c", 10_000));
+			}
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				server.addReplayRoute("*", recording);
+
+				// recorded responses are replayed in order and then again from the start
+				assertEquals("response 1", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=1", 10_000));
+				assertEquals("response 2", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=1", 10_000));
+				assertEquals("response 1", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=1", 10_000));
+				assertEquals("response 3", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/b", 10_000));
+
+				// not recorded
+				TestHelpers.assertContains(assertThrows(IOException.class,
+						() -> UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/a?x=2", 10_000)), "404");
+				TestHelpers.assertContains(assertThrows(IOException.class,
+						() -> UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/c", 10_000)), "404");
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testRecordAndReplayFileRoute() throws IOException, InterruptedException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File recording = TestEnvironment.createTempFile("MockRESTServerTest", ".rec");
+			assertTrue(recording.delete());
+			File content = TestEnvironment.createTempFile("MockRESTServerTest", ".txt");
+			String text = "file content ".repeat(10_000);
+			Files.writeString(content.toPath(), text);
+
+			// the region of the file is copied into the recording when the exchange is recorded
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				server.addFileRoute("/file", content, NanoHTTPD.MIME_PLAINTEXT);
+				server.startRecording(recording);
+
+				assertEquals(text, UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/file", 10_000));
+
+				Thread.sleep(100);
+				server.stopRecording();
+			}
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				server.addReplayRoute("*", recording);
+
+				assertEquals(text, UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/file", 10_000));
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testReplayManyExchanges() throws IOException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File recording = TestEnvironment.createTempFile("MockRESTServerTest", ".rec");
+			assertTrue(recording.delete());
+
+			try (ExchangeRecorder recorder = new ExchangeRecorder(recording)) {
+				for (int i = 0; i < 20_000; i++) {
+					String body = "body " + i;
+					recorder.record(new MockRequest("GET", "/item/" + i, "HTTP/1.1", Collections.emptyMap(), InputStream.nullInputStream()),
+							("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1),
+							false);
+				}
+			}
+
+			// simulate a recording which was not closed properly
+			Files.write(recording.toPath(), new byte[] { 0, 0, 0, 10, 'G', 'E' }, StandardOpenOption.APPEND);
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				long start = System.nanoTime();
+				server.addReplayRoute("/item/*", recording);
+				log.info("Indexing 20000 recorded exchanges took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+				assertEquals("body 0", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/item/0", 10_000));
+				assertEquals("body 19999", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/item/19999", 10_000));
+				assertEquals("OK", UrlUtils.retrieveData("http://localhost:" + server.getPort() + "/other", 10_000));
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testReplayInvalidFile() throws IOException {
+		TestEnvironment.createOrClearRuntimeData();
+		try {
+			File file = TestEnvironment.createTempFile("MockRESTServerTest", ".rec");
+			Files.writeString(file.toPath(), "some text");
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+				TestHelpers.assertContains(assertThrows(IOException.class,
+						() -> server.addReplayRoute("*", file)), "is not a recording");
+			}
+		} finally {
+			TestEnvironment.clearRuntimeData();
+		}
+	}
+
+	@Test
+	void testConnectionReuse() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newHttpClient()) {
+			HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/")).build();
+			for (int i = 0; i < 10; i++) {
+				assertEquals("OK", client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+			}
+
+			assertEquals(Map.of(10, 1L), server.getRequestsPerConnection());
+			server.assertRequestsPerConnectionAtLeast(10);
+			server.assertMaxConnections(1);
+		}
+	}
+
+	@Test
+	void testConnectionReuseFails() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			// a new connection for each request
+			for (int i = 0; i < 3; i++) {
+				try (Socket socket = new Socket("localhost", server.getPort())) {
+					socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+					TestHelpers.assertContains(new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1), "OK");
+				}
+			}
+
+			assertEquals(Map.of(1, 3L), server.getRequestsPerConnection());
+			server.assertRequestsPerConnectionAtLeast(1);
+			server.assertMaxConnections(3);
+
+			TestHelpers.assertContains(assertThrows(AssertionError.class,
+					() -> server.assertRequestsPerConnectionAtLeast(2)), "3 requests on 3 connections");
+			TestHelpers.assertContains(assertThrows(AssertionError.class,
+					() -> server.assertMaxConnections(2)), "at most 2 connections, but had 3");
+		}
+	}
+
+	@Test
+	void testHttp2Upgrade() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build()) {
+			server.enableHttp2(Http2Config.DEFAULT);
+
+			HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/")).build();
+			for (int i = 0; i < 10; i++) {
+				HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+				assertEquals(HttpClient.Version.HTTP_2, response.version());
+				assertEquals(200, response.statusCode());
+				assertEquals("OK", response.body());
+				assertEquals(NanoHTTPD.MIME_PLAINTEXT, response.headers().firstValue("Content-Type").orElseThrow());
+			}
+
+			// a request with body after the upgrade
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/"))
+					.POST(HttpRequest.BodyPublishers.ofString("some data")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(HttpClient.Version.HTTP_2, response.version());
+			assertEquals("OK", response.body());
+
+			assertEquals(Map.of(11, 1L), server.getRequestsPerConnection());
+			server.assertMaxConnections(1);
+		}
+	}
+
+	@Test
+	void testHttp2NotEnabled() throws IOException, InterruptedException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+			 HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build()) {
+			// the upgrade is ignored
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+			assertEquals("OK", response.body());
+
+			// prior knowledge is rejected
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				socket.getOutputStream().write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				TestHelpers.assertContains(new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1),
+						"HTTP/1.1 505 HTTP Version Not Supported", "HTTP/2 is not enabled");
+			}
+		}
+	}
+
+	@Test
+	void testHttp2LargeResponses() throws IOException, InterruptedException {
+		File file = File.createTempFile("MockRESTServerTest", ".bin");
+		try {
+			byte[] content = new byte[1024 * 1024];
+			for (int i = 0; i < content.length; i++) {
+				content[i] = (byte) i;
+			}
+			Files.write(file.toPath(), content);
+
+			try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK");
+				 HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build()) {
+				// small windows require many WINDOW_UPDATEs from the client
+				server.enableHttp2(Http2Config.builder()
+						.initialWindowSize(16 * 1024)
+						.build());
+				server.addFileRoute("/file", file, "application/octet-stream");
+				server.addStreamingRoute("/stream", NanoHTTPD.MIME_PLAINTEXT,
+						() -> Stream.of("a", "bb", "ccc").map(str -> ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8))).iterator());
+
+				// the first request upgrades the connection, all others are sent as streams on it
+				HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/stream")).build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(HttpClient.Version.HTTP_2, response.version());
+				assertEquals("abbccc", response.body());
+
+				List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+				for (int i = 0; i < 10; i++) {
+					responses.add(client.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/file")).build(),
+							HttpResponse.BodyHandlers.ofByteArray()));
+				}
+				for (CompletableFuture<HttpResponse<byte[]>> future : responses) {
+					assertEquals(HttpClient.Version.HTTP_2, future.join().version());
+					assertArrayEquals(content, future.join().body());
+				}
+
+				server.assertMaxConnections(1);
+			}
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	void testHttp2PriorKnowledgeRefusesStreams() throws IOException {
+		try (MockRESTServer server = new MockRESTServer(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, "OK")) {
+			server.enableHttp2(Http2Config.builder()
+					.maxConcurrentStreams(1)
+					.build());
+			server.setFaultProfile("/slow", FaultProfile.builder()
+					.delay(LatencyDistribution.fixed(Duration.ofMillis(300)))
+					.build());
+
+			try (Socket socket = new Socket("localhost", server.getPort())) {
+				OutputStream out = socket.getOutputStream();
+				out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, new byte[0]);
+				writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM, 1,
+						requestHeaders("/slow", server.getPort()));
+				writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM, 3,
+						requestHeaders("/fast", server.getPort()));
+
+				// the second stream is refused while the first one is still handled
+				Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				boolean refused = false;
+				List<String[]> headers = null;
+				StringBuilder body = new StringBuilder();
+				while (true) {
+					int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+					int type = in.readUnsignedByte();
+					int flags = in.readUnsignedByte();
+					int streamId = in.readInt();
+					byte[] payload = in.readNBytes(length);
+
+					if (type == Http2Connection.TYPE_RST_STREAM) {
+						assertEquals(3, streamId);
+						assertEquals(Http2Connection.REFUSED_STREAM, ByteBuffer.wrap(payload).getInt());
+						refused = true;
+					} else if (type == Http2Connection.TYPE_HEADERS) {
+						assertEquals(1, streamId);
+						headers = decoder.decode(payload);
+					} else if (type == Http2Connection.TYPE_DATA) {
+						assertEquals(1, streamId);
+						body.append(new String(payload, StandardCharsets.UTF_8));
+						if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+							break;
+						}
+					}
+				}
+
+				assertTrue(refused, "Stream 3 should be refused");
+				assertNotNull(headers);
+				assertArrayEquals(new String[] { ":status", "200" }, headers.get(0));
+				assertEquals("OK", body.toString());
+			}
+		}
+	}
+
+	private static byte[] requestHeaders(String path, int port) {
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		Hpack.encodeHeader(block, ":method", "GET");
+		Hpack.encodeHeader(block, ":scheme", "http");
+		Hpack.encodeHeader(block, ":authority", "localhost:" + port);
+		Hpack.encodeHeader(block, ":path", path);
+		return block.toByteArray();
+	}
+
+	private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+		out.write(ByteBuffer.allocate(9 + payload.length)
+				.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length)
+				.put((byte) type).put((byte) flags).putInt(streamId).put(payload).array());
+	}
 }